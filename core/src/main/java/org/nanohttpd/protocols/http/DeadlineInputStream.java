@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http;
+
+import javax.net.ssl.SSLSocket;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * Fails reads from the client once a read deadline passed. A read blocked at that moment is woken by shutting down
+ * the input of the socket, which leaves the output open for the {@code 408} response. A TLS socket cannot be shut down
+ * halfway and is closed instead.
+ */
+final class DeadlineInputStream extends FilterInputStream {
+
+    private final Socket socket;
+
+    private volatile ReadDeadline expired;
+
+    private volatile boolean reading;
+
+    /**
+     * Whether a read failed because of the deadline.
+     */
+    private volatile boolean tripped;
+
+    /**
+     * Counts the requests, so that a timer of an earlier request that was too late to be cancelled has no effect.
+     */
+    private volatile int request;
+
+    /**
+     * @param socket the socket to shut down, {@code null} to only fail the reads that start after the deadline.
+     */
+    DeadlineInputStream(InputStream in, Socket socket) {
+        super(in);
+        this.socket = socket;
+    }
+
+    /**
+     * Called by the timer once the deadline passed.
+     *
+     * @param request the request the deadline was set for, as returned by {@link #nextRequest()}.
+     */
+    synchronized void expire(ReadDeadline deadline, int request) {
+        if (expired != null || request != this.request)
+            return;
+
+        expired = deadline;
+        if (!reading || socket == null)
+            return;
+        try {
+            if (socket instanceof SSLSocket)
+                socket.close();
+            else
+                socket.shutdownInput();
+        } catch (IOException e) {
+            NanoHTTPD.safeClose(socket);
+        }
+    }
+
+    /**
+     * Forget a deadline of the previous request that passed without failing a read.
+     *
+     * @return the number of the next request.
+     */
+    synchronized int nextRequest() {
+        expired = null;
+        tripped = false;
+        return ++request;
+    }
+
+    /**
+     * @return the deadline that failed a read, {@code null} if none did.
+     */
+    ReadDeadline getTripped() {
+        return tripped ? expired : null;
+    }
+
+    private void begin() throws ReadDeadlineException {
+        reading = true;
+        ReadDeadline deadline = expired;
+        if (deadline != null) {
+            reading = false;
+            tripped = true;
+            throw new ReadDeadlineException(deadline);
+        }
+    }
+
+    private int end(int read) throws ReadDeadlineException {
+        reading = false;
+        ReadDeadline deadline = expired;
+        if (read < 0 && deadline != null) {
+            tripped = true;
+            throw new ReadDeadlineException(deadline);
+        }
+        return read;
+    }
+
+    @Override
+    public int read() throws IOException {
+        begin();
+        try {
+            return end(in.read());
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        begin();
+        try {
+            return end(in.read(b, off, len));
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        begin();
+        try {
+            long skipped = in.skip(n);
+            reading = false;
+            return skipped;
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    private IOException fail(IOException e) {
+        reading = false;
+        ReadDeadline deadline = expired;
+        if (deadline == null || e instanceof ReadDeadlineException)
+            return e;
+        tripped = true;
+        ReadDeadlineException timeout = new ReadDeadlineException(deadline);
+        timeout.initCause(e);
+        return timeout;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http;
+
+import org.nanohttpd.protocols.http.response.CoalescingOutputStream;
+import org.nanohttpd.util.concurrent.TimingWheel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aborts the connection of a client that is too slow to take the response: when a single write blocks past the write
+ * deadline, or when the rate the client takes the bytes at falls below the minimum write rate. The rate only counts
+ * the time spent blocked in writes, the time the server takes to produce the response is not held against the client.
+ * It is measured over a sliding window of that time, made of a few slots.
+ * <p/>
+ * Aborting closes the socket, which also wakes a write blocked at that moment.
+ */
+final class DeadlineOutputStream extends CoalescingOutputStream {
+
+    private static final int WINDOW_SLOTS = 8;
+
+    /**
+     * Writes that block for less are not counted as stalls, copying the bytes to the socket takes some time too.
+     */
+    private static final long STALL_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final NanoHTTPD httpd;
+
+    private final Socket socket;
+
+    private final long[] slotBytes = new long[WINDOW_SLOTS];
+
+    private final long[] slotNanos = new long[WINDOW_SLOTS];
+
+    private int slot;
+
+    private long writeStart;
+
+    private TimingWheel.Timeout timeout;
+
+    /**
+     * Counts the writes, so that a timer of an earlier write that was too late to be cancelled has no effect.
+     */
+    private int write;
+
+    private boolean writing;
+
+    private boolean expired;
+
+    private WriteDeadlineException failure;
+
+    private volatile long stallNanos;
+
+    /**
+     * Milliseconds a write may block if less than the write deadline of the server, 0 for no limit of its own.
+     */
+    private volatile int deadlineLimit;
+
+    /**
+     * The write deadline of the current write.
+     */
+    private int deadline;
+
+    /**
+     * @param socket the socket to close when aborting, {@code null} to close the output stream instead.
+     */
+    DeadlineOutputStream(NanoHTTPD httpd, OutputStream out, int size, WritableByteChannel channel, Socket socket) {
+        super(out, size, channel);
+        this.httpd = httpd;
+        this.socket = socket;
+    }
+
+    /**
+     * @return nanoseconds the writes of this connection spent blocked on the client.
+     */
+    long getStallNanos() {
+        return stallNanos;
+    }
+
+    /**
+     * Let the writes from now on block for at most the given time, even if the write deadline of the server is longer
+     * or disabled.
+     */
+    void limitWriteDeadline(int millis) {
+        deadlineLimit = millis;
+    }
+
+    @Override
+    protected void beginWrite() throws IOException {
+        final int write;
+        synchronized (this) {
+            if (failure != null)
+                throw failure;
+            write = ++this.write;
+            writing = true;
+        }
+        writeStart = System.nanoTime();
+
+        int deadline = httpd.getWriteDeadline();
+        int limit = deadlineLimit;
+        if (limit > 0 && (deadline <= 0 || limit < deadline))
+            deadline = limit;
+        this.deadline = deadline;
+        if (deadline > 0) {
+            timeout = httpd.getTimingWheel().schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    expire(write);
+                }
+            }, deadline);
+        }
+    }
+
+    @Override
+    protected void endWrite(long written) throws IOException {
+        long elapsed = System.nanoTime() - writeStart;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        // a write aborted at the deadline stalled as well
+        if (elapsed >= STALL_THRESHOLD_NANOS) {
+            stallNanos += elapsed;
+            httpd.addWriteStall(elapsed);
+        }
+        synchronized (this) {
+            writing = false;
+            if (expired && failure == null) {
+                httpd.writeDeadlineExpired();
+                failure = new WriteDeadlineException("The client did not take the response for " + deadline
+                        + " ms.");
+            }
+            if (failure != null)
+                throw failure;
+        }
+
+        if (written > 0)
+            measure(written, elapsed);
+    }
+
+    /**
+     * Add the write to the current slot of the window, and check the rate over the whole window when the slot is full.
+     */
+    private void measure(long written, long elapsed) throws IOException {
+        slotBytes[slot] += written;
+        slotNanos[slot] += elapsed;
+
+        int minRate = httpd.getMinWriteRate();
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(httpd.getMinWriteRateWindow());
+        if (minRate <= 0 || slotNanos[slot] < windowNanos / WINDOW_SLOTS)
+            return;
+
+        long bytes = 0;
+        long nanos = 0;
+        for (int i = 0; i < WINDOW_SLOTS; i++) {
+            bytes += slotBytes[i];
+            nanos += slotNanos[i];
+        }
+        slot = (slot + 1) % WINDOW_SLOTS;
+        slotBytes[slot] = 0;
+        slotNanos[slot] = 0;
+
+        if (nanos >= windowNanos && bytes * 1e9 / nanos < minRate) {
+            WriteDeadlineException failure = new WriteDeadlineException("The client took the response at less than "
+                    + minRate + " bytes per second.");
+            synchronized (this) {
+                this.failure = failure;
+            }
+            httpd.minWriteRateViolated();
+            abort();
+            throw failure;
+        }
+    }
+
+    /**
+     * Called by the timer once the write deadline passed.
+     *
+     * @param write the write the deadline was set for.
+     */
+    private synchronized void expire(int write) {
+        if (!writing || write != this.write)
+            return;
+
+        expired = true;
+        abort();
+    }
+
+    private void abort() {
+        if (socket != null)
+            NanoHTTPD.safeClose(socket);
+        else
+            NanoHTTPD.safeClose(out);
+    }
+}
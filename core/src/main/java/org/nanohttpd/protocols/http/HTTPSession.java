@@ -31,7 +31,9 @@
 package org.nanohttpd.protocols.http;
 
 import org.nanohttpd.protocols.http.content.CookieHandler;
+import org.nanohttpd.protocols.http.request.BodyStore;
 import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.protocols.http.request.MultipartListener;
 import org.nanohttpd.protocols.http.response.ResponseException;
 
 import java.io.IOException;
@@ -50,8 +52,22 @@ public interface HTTPSession {
 
     Map<String, String> getHeaders();
 
+    /**
+     * @return the body of the request, which ends where the body ends as given by its {@code Content-Length} or chunks.
+     * For a request without a body this is the connection stream, which an upgraded connection, e.g. a WebSocket,
+     * goes on with.
+     */
     InputStream getInputStream();
 
+    /**
+     * Read the whole body of the request, unless that has been done already, e.g. by {@link #parseBody(Map)} for a
+     * body that is not multipart/form-data. It is held in the heap, direct memory or a temporary file depending on
+     * its size, see {@link NanoHTTPD#setBodyStoreLimits(int, int)}, and can be read until the response has been sent.
+     *
+     * @return the body, empty for a request without one.
+     */
+    BodyStore getBody() throws IOException;
+
     Method getMethod();
 
     /**
@@ -80,6 +96,14 @@ public interface HTTPSession {
      */
     void parseBody(Map<String, String> files) throws IOException, ResponseException;
 
+    /**
+     * Parse a multipart/form-data body while it is read and hand its parts to a listener, which decides where their
+     * content goes. Unless it has been read by {@link #getBody()} before, the body is not held anywhere.
+     *
+     * @param listener receives the parts.
+     */
+    void parseMultipartBody(MultipartListener listener) throws IOException, ResponseException;
+
     /**
      * Get the remote ip address of the requester.
      *
@@ -32,32 +32,44 @@ package org.nanohttpd.protocols.http;
 
 import org.nanohttpd.protocols.http.content.ContentType;
 import org.nanohttpd.protocols.http.content.CookieHandler;
+import org.nanohttpd.protocols.http.request.BodyInputStream;
+import org.nanohttpd.protocols.http.request.BodyStore;
+import org.nanohttpd.protocols.http.request.ChunkedInputStream;
+import org.nanohttpd.protocols.http.request.FixedLengthInputStream;
+import org.nanohttpd.protocols.http.request.FormDataCollector;
 import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.protocols.http.request.MultipartListener;
+import org.nanohttpd.protocols.http.request.MultipartParser;
+import org.nanohttpd.protocols.http.request.RequestBodyException;
+import org.nanohttpd.protocols.http.request.RequestHeaders;
+import org.nanohttpd.protocols.http.request.RequestParser;
+import org.nanohttpd.protocols.http.response.AsyncResponse;
 import org.nanohttpd.protocols.http.response.DefaultStatusCode;
 import org.nanohttpd.protocols.http.response.Response;
 import org.nanohttpd.protocols.http.response.ResponseException;
 import org.nanohttpd.protocols.http.tempfiles.TempFile;
 import org.nanohttpd.protocols.http.tempfiles.TempFileManager;
+import org.nanohttpd.util.concurrent.TimingWheel;
 
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
 
 public class HTTPSessionImpl implements HTTPSession {
 
     public static final String POST_DATA = "postData";
 
-    private static final int REQUEST_BUFFER_LEN = 512,
-            MEMORY_STORE_LIMIT = 1024;
-
     public static final int BUFFER_SIZE = 8192,
             MAX_HEADER_SIZE = 1024;
 
@@ -65,224 +77,125 @@ public class HTTPSessionImpl implements HTTPSession {
 
     private final TempFileManager tempFileManager;
 
-    private final OutputStream outputStream;
+    private final DeadlineOutputStream outputStream;
 
     private final BufferedInputStream inputStream;
 
+    private final DeadlineInputStream deadlineInputStream;
+
+    /**
+     * The client socket, {@code null} if the session was given only its streams.
+     */
+    private final Socket socket;
+
+    /**
+     * The read deadlines of the current request, indexed by {@link ReadDeadline#ordinal()}.
+     */
+    private final TimingWheel.Timeout[] deadlines = new TimingWheel.Timeout[ReadDeadline.values().length];
+
+    /**
+     * When the first byte of the next request arrived, if it was read before the session got the connection.
+     */
+    private long requestStart;
+
+    private final RequestParser parser;
+
+    private final RequestHeaders headers;
+
     private int splitbyte;
 
     private int rlen;
 
+    private long contentLength;
+
     private String uri;
 
     private Method method;
 
-    private Map<String, List<String>> parms;
-
-    private Map<String, String> headers;
+    private final Map<String, List<String>> parms = new HashMap<>();
 
     private CookieHandler cookies;
 
     private String queryParameterString;
 
-    private String remoteIp;
+    private final String remoteIp;
 
     private String protocolVersion;
 
-    public HTTPSessionImpl(NanoHTTPD httpd, TempFileManager tempFileManager, InputStream inputStream,
-                           OutputStream outputStream) {
-        this.httpd = httpd;
-        this.tempFileManager = tempFileManager;
-        this.inputStream = new BufferedInputStream(inputStream, HTTPSessionImpl.BUFFER_SIZE);
-        this.outputStream = outputStream;
-    }
+    private int requestCount;
 
-    public HTTPSessionImpl(NanoHTTPD httpd, TempFileManager tempFileManager, InputStream inputStream,
-                           OutputStream outputStream, InetAddress inetAddress) {
-        this(httpd, tempFileManager, inputStream, outputStream);
-        this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" :
-                inetAddress.getHostAddress();
-        this.headers = new HashMap<>();
-    }
+    private boolean keepAlive;
 
     /**
-     * Decodes the sent headers and loads the data into Key/value pairs
+     * The body of the current request, {@code null} if it has none, see {@link #getInputStream()}.
      */
-    private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, List<String>> parms, Map<String,
-            String> headers) throws ResponseException {
-        try {
-            // Read the request line
-            String inLine = in.readLine();
-            if (inLine == null) {
-                return;
-            }
-
-            StringTokenizer st = new StringTokenizer(inLine);
-            if (!st.hasMoreTokens()) {
-                throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET" + " " +
-                        "/example/file.html");
-            }
+    private BodyInputStream body;
 
-            pre.put("method", st.nextToken());
+    private BodyStore bodyStore;
 
-            if (!st.hasMoreTokens()) {
-                throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET" + " " +
-                        "/example/file.html");
-            }
-
-            String uri = st.nextToken();
+    /**
+     * The response to the last request while it is pending, see {@link #getPendingResponse()}.
+     */
+    private AsyncResponse pending;
 
-            // Decode parameters from the URI
-            int qmi = uri.indexOf('?');
-            if (qmi >= 0) {
-                decodeParms(uri.substring(qmi + 1), parms);
-                uri = NanoHTTPD.decodePercent(uri.substring(0, qmi));
-            } else {
-                uri = NanoHTTPD.decodePercent(uri);
-            }
+    /**
+     * The response that was sent and still writes to the connection until {@link #pending} is done, see
+     * {@link Response#getConnectionHold()}.
+     */
+    private Response heldResponse;
 
-            // If there's another token, its protocol version,
-            // followed by HTTP headers.
-            // NOTE: this now forces header names lower case since they are
-            // case insensitive and vary by client.
-            if (st.hasMoreTokens()) {
-                protocolVersion = st.nextToken();
-            } else {
-                protocolVersion = "HTTP/1.1";
-                NanoHTTPD.LOG.log(Level.FINE, "No protocol version specified. Assuming HTTP/1.1.");
-            }
+    /**
+     * Whether the session waits for the next request with none of it received yet, see {@link #closeIfIdle()}.
+     * Guarded by the session.
+     */
+    private boolean idle;
 
-            String line = in.readLine();
-            while (line != null && !line.trim().isEmpty()) {
-                int p = line.indexOf(':');
-                if (p >= 0) {
-                    headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                }
-                line = in.readLine();
-            }
+    public HTTPSessionImpl(NanoHTTPD httpd, TempFileManager tempFileManager, InputStream inputStream,
+                           OutputStream outputStream) {
+        this(httpd, tempFileManager, inputStream, outputStream, (String) null, null, null);
+    }
 
-            pre.put("uri", uri);
-        } catch (IOException e) {
-            throw new ResponseException(DefaultStatusCode.INTERNAL_ERROR, "SERVER INTERNAL ERROR", e);
-        }
+    public HTTPSessionImpl(NanoHTTPD httpd, TempFileManager tempFileManager, InputStream inputStream,
+                           OutputStream outputStream, InetAddress inetAddress) {
+        this(httpd, tempFileManager, inputStream, outputStream, inetAddress, null);
     }
 
     /**
-     * Decodes the Multipart Body data and put it into Key/Value pairs.
+     * @param channel the plain TCP channel the output stream writes to, or {@code null}. With a channel, file bodies
+     *                are sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
      */
-    private void decodeMultipartFormData(ContentType contentType, ByteBuffer fbuf, Map<String, List<String>> parms,
-                                         Map<String, String> files) throws ResponseException {
-        int pcount = 0;
-        try {
-            int[] boundaryIdxs = getBoundaryPositions(fbuf, contentType.getBoundary().getBytes());
-            if (boundaryIdxs.length < 2) {
-                throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is multipart/" +
-                        "form-data but contains less than two boundary strings.");
-            }
-
-            byte[] partHeaderBuff = new byte[MAX_HEADER_SIZE];
-            for (int boundaryIdx = 0; boundaryIdx < boundaryIdxs.length - 1; boundaryIdx++) {
-                fbuf.position(boundaryIdxs[boundaryIdx]);
-                int len = Math.min(fbuf.remaining(), MAX_HEADER_SIZE);
-                fbuf.get(partHeaderBuff, 0, len);
-                BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(
-                        partHeaderBuff, 0, len), Charset.forName(contentType.getEncoding())), len);
-
-                int headerLines = 0;
-                // First line is boundary string
-                String mpline = in.readLine();
-                headerLines++;
-                if (mpline == null || !mpline.contains(contentType.getBoundary())) {
-                    throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is " +
-                            "multipart/form-data but chunk does not start with boundary.");
-                }
-
-                String partName = null, fileName = null, partContentType = null;
-                // Parse the reset of the header lines
-                mpline = in.readLine();
-                headerLines++;
-                while (mpline != null && mpline.trim().length() > 0) {
-                    Matcher matcher = NanoHTTPD.CONTENT_DISPOSITION_PATTERN.matcher(mpline);
-                    if (matcher.matches()) {
-                        String attributeString = matcher.group(2);
-                        matcher = NanoHTTPD.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
-                        while (matcher.find()) {
-                            String key = matcher.group(1);
-                            if ("name".equalsIgnoreCase(key)) {
-                                partName = matcher.group(2);
-                            } else if ("filename".equalsIgnoreCase(key)) {
-                                fileName = matcher.group(2);
-                                // add these two line to support multiple
-                                // files uploaded using the same field Id
-                                if (!fileName.isEmpty()) {
-                                    if (pcount > 0)
-                                        partName = partName + pcount++;
-                                    else
-                                        pcount++;
-                                }
-                            }
-                        }
-                    }
-                    matcher = NanoHTTPD.CONTENT_TYPE_PATTERN.matcher(mpline);
-                    if (matcher.matches()) {
-                        partContentType = matcher.group(2).trim();
-                    }
-                    mpline = in.readLine();
-                    headerLines++;
-                }
-                int partHeaderLength = 0;
-                while (headerLines-- > 0) {
-                    partHeaderLength = scipOverNewLine(partHeaderBuff, partHeaderLength);
-                }
-                // Read the part data
-                if (partHeaderLength >= len - 4) {
-                    throw new ResponseException(DefaultStatusCode.INTERNAL_ERROR, "Multipart header size exceeds " +
-                            "MAX_HEADER_SIZE.");
-                }
-                int partDataStart = boundaryIdxs[boundaryIdx] + partHeaderLength;
-                int partDataEnd = boundaryIdxs[boundaryIdx + 1] - 4;
-
-                fbuf.position(partDataStart);
+    public HTTPSessionImpl(NanoHTTPD httpd, TempFileManager tempFileManager, InputStream inputStream,
+                           OutputStream outputStream, InetAddress inetAddress, WritableByteChannel channel) {
+        this(httpd, tempFileManager, inputStream, outputStream, remoteIp(inetAddress), channel, null);
+    }
 
-                List<String> values = parms.get(partName);
-                if (values == null) {
-                    values = new ArrayList<>();
-                    parms.put(partName, values);
-                }
+    /**
+     * @param socket the client socket the streams belong to. A read that misses its deadline is woken up by shutting
+     *               down its input, and its channel is used for file bodies unless it is a TLS socket.
+     */
+    public HTTPSessionImpl(NanoHTTPD httpd, TempFileManager tempFileManager, InputStream inputStream,
+                           OutputStream outputStream, Socket socket) {
+        // a TLS socket may report the channel of the socket it is layered on, file bodies must not bypass it
+        this(httpd, tempFileManager, inputStream, outputStream, remoteIp(socket.getInetAddress()),
+                socket instanceof SSLSocket ? null : socket.getChannel(), socket);
+    }
 
-                if (partContentType == null) {
-                    // Read the part into a string
-                    byte[] data_bytes = new byte[partDataEnd - partDataStart];
-                    fbuf.get(data_bytes);
-
-                    values.add(new String(data_bytes, contentType.getEncoding()));
-                } else {
-                    // Read it into a file
-                    String path = saveTmpFile(fbuf, partDataStart, partDataEnd - partDataStart, fileName);
-                    if (!files.containsKey(partName)) {
-                        files.put(partName, path);
-                    } else {
-                        int count = 2;
-                        while (files.containsKey(partName + count)) {
-                            count++;
-                        }
-                        files.put(partName + count, path);
-                    }
-                    values.add(fileName);
-                }
-            }
-        } catch (ResponseException re) {
-            throw re;
-        } catch (Exception e) {
-            throw new ResponseException(DefaultStatusCode.INTERNAL_ERROR, e.toString());
-        }
+    private HTTPSessionImpl(NanoHTTPD httpd, TempFileManager tempFileManager, InputStream inputStream,
+                            OutputStream outputStream, String remoteIp, WritableByteChannel channel, Socket socket) {
+        this.httpd = httpd;
+        this.tempFileManager = tempFileManager;
+        this.socket = socket;
+        this.deadlineInputStream = new DeadlineInputStream(inputStream, socket);
+        this.inputStream = new BufferedInputStream(this.deadlineInputStream, HTTPSessionImpl.BUFFER_SIZE);
+        this.outputStream = new DeadlineOutputStream(httpd, outputStream, HTTPSessionImpl.BUFFER_SIZE, channel, socket);
+        this.remoteIp = remoteIp;
+        this.parser = new RequestParser(httpd.getMaxHeaderSize());
+        this.headers = new RequestHeaders(this.parser, remoteIp);
     }
 
-    private int scipOverNewLine(byte[] partHeaderBuff, int index) {
-        while (partHeaderBuff[index] != '\n') {
-            index++;
-        }
-        return ++index;
+    private static String remoteIp(InetAddress inetAddress) {
+        return inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1"
+                : inetAddress.getHostAddress();
     }
 
     /**
@@ -321,104 +234,116 @@ public class HTTPSessionImpl implements HTTPSession {
         }
     }
 
+    /**
+     * Forget the previous request on the connection. The buffers and maps are kept for the next one, and bytes the
+     * client sent after the previous request stay in the input stream.
+     */
+    private void reset() {
+        this.parser.reset();
+        this.headers.reset();
+        this.parms.clear();
+        this.cookies = null;
+        this.uri = null;
+        this.method = null;
+        this.queryParameterString = null;
+        this.protocolVersion = null;
+        this.splitbyte = 0;
+        this.rlen = 0;
+        this.contentLength = -1;
+        this.body = null;
+    }
+
     @Override
     public void execute() throws IOException {
         Response response = null;
+        boolean suspended = false;
 
         try {
-            // Read the first 8192 bytes.
-            // The full header should fit in here.
-            // Apache's default header limit is 8KB.
-            // Do NOT assume that a single read will get the entire header at once!
-            byte[] buf = new byte[HTTPSessionImpl.BUFFER_SIZE];
-            this.splitbyte = 0;
-            this.rlen = 0;
-
-            int read;
-            this.inputStream.mark(HTTPSessionImpl.BUFFER_SIZE);
-            try {
-                read = this.inputStream.read(buf, 0, HTTPSessionImpl.BUFFER_SIZE);
-            } catch (SSLException e) {
-                throw e;
-            } catch (IOException e) {
-                throw new ConnectionClosedException("Connection closed due to an IO error.", e);
-            }
-
-            if (read == -1)
-                throw new ConnectionClosedException("Input closed.");
-
-            while (read > 0) {
-                this.rlen += read;
-                this.splitbyte = findHeaderEnd(buf, this.rlen);
-                if (this.splitbyte > 0)
-                    break;
-
-                read = this.inputStream.read(buf, this.rlen, HTTPSessionImpl.BUFFER_SIZE - this.rlen);
-            }
-
-            if (this.splitbyte < this.rlen) {
-                this.inputStream.reset();
-                this.inputStream.skip(this.splitbyte);
+            AsyncResponse async = this.pending;
+            if (async != null && this.heldResponse != null) {
+                // the response that kept the connection after it was sent is done with it
+                this.pending = null;
+                response = this.heldResponse;
+                this.heldResponse = null;
+                if (!keepAlive || response.isCloseConnection())
+                    NanoHTTPD.safeClose(this.outputStream);
+                return;
             }
-
-            this.parms = new HashMap<>();
-            if (this.headers == null) {
-                this.headers = new HashMap<>();
+            if (async != null) {
+                this.pending = null;
+                if (async.getFailure() == null)
+                    finishBody();
             } else {
-                this.headers.clear();
-            }
-
-            // Create a BufferedReader for parsing the header.
-            BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
-
-            // Decode the header into parms and header java properties
-            Map<String, String> pre = new HashMap<>();
-            decodeHeader(hin, pre, this.parms, this.headers);
-
-            if (this.remoteIp != null) {
-                this.headers.put("remote-addr", this.remoteIp);
-                this.headers.put("http-client-ip", this.remoteIp);
+                async = handleRequest();
+                if (async == null)
+                    return;
+                if (!async.isDone()) {
+                    // the connection waits without a thread, responses held back for pipelined requests leave now
+                    this.outputStream.flushPending();
+                    this.pending = async;
+                    suspended = true;
+                    return;
+                }
             }
 
-            this.method = Method.lookup(pre.get("method"));
-            if (this.method == null) {
-                throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb "
-                        + pre.get("method") + " unhandled.");
+            if (async.getFailure() != null) {
+                NanoHTTPD.LOG.log(Level.SEVERE, "Asynchronous handler failed.", async.getFailure());
+                throw new ResponseException(DefaultStatusCode.INTERNAL_ERROR, "SERVER INTERNAL ERROR: "
+                        + async.getFailure().getMessage());
             }
-
-            this.uri = pre.get("uri");
-            this.cookies = new CookieHandler(this.headers);
-            String connection = this.headers.get("connection");
-            boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches(
-                    "(?i).*close.*"));
-
-            // Ok, now do the serve()
-
-            // TODO: long body_size = getBodySize();
-            // TODO: long pos_before_serve = this.inputStream.totalRead()
-            // (requires implementation for totalRead())
-            response = httpd.handle(this);
-            // TODO: this.inputStream.skip(body_size -
-            // (this.inputStream.totalRead() - pos_before_serve))
+            response = async.getResponse();
 
             if (response == null) {
                 throw new ResponseException(DefaultStatusCode.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() " +
                         "returned a null response.");
             } else {
-                String acceptEncoding = this.headers.get("accept-encoding");
-                this.cookies.unloadQueue(response);
+                if (this.cookies != null)
+                    this.cookies.unloadQueue(response);
                 response.setRequestMethod(this.method);
-                if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+                if (!this.parser.headerContains(RequestParser.ACCEPT_ENCODING, "gzip")) {
                     response.setUseGzip(false);
                 }
+                // an HTTP/1.0 client can only find the end of a body by its length
+                if (keepAlive && !"HTTP/1.1".equals(protocolVersion) && (response.isChunkedTransfer()
+                        || response.useGzipWhenAccepted())) {
+                    keepAlive = false;
+                }
+                // a draining server ends every connection with the response it is sending
+                if (httpd.isDraining())
+                    keepAlive = false;
                 response.setKeepAlive(keepAlive);
+
+                // When the next request is already buffered, hold this response back and send it together with the
+                // next one. The body of this request was read or dropped, so those bytes are the next request.
+                this.outputStream.setCoalescing(keepAlive && !response.isCloseConnection()
+                        && this.inputStream.available() > 0);
+                long stalled = this.outputStream.getStallNanos();
                 response.send(this.outputStream);
+                stalled = TimeUnit.NANOSECONDS.toMillis(this.outputStream.getStallNanos() - stalled);
+                if (stalled > 0)
+                    httpd.onWriteStall(this, stalled);
+
+                AsyncResponse hold = response.getConnectionHold();
+                if (hold != null && !hold.isDone() && !response.isCloseConnection()) {
+                    this.pending = hold;
+                    this.heldResponse = response;
+                    suspended = true;
+                    return;
+                }
             }
             if (!keepAlive || response.isCloseConnection()) {
-                throw new ConnectionClosedException("Connection closed because it is either not keep-alive or " +
-                        "requested by the client.");
+                // closing the stream closes the socket, which ends the connection loop of the caller
+                NanoHTTPD.safeClose(this.outputStream);
             }
-        } catch (SocketException | SocketTimeoutException e) {
+        } catch (ReadDeadlineException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Request timed out.", e);
+            httpd.readDeadlineExpired(e.getDeadline());
+            Response resp = Response.newFixedLengthResponse(DefaultStatusCode.REQUEST_TIMEOUT, NanoHTTPD.MIME_PLAINTEXT,
+                    "REQUEST TIMEOUT: " + e.getMessage());
+            resp.closeConnection(true);
+            resp.send(this.outputStream);
+            NanoHTTPD.safeClose(this.outputStream);
+        } catch (SocketException | SocketTimeoutException | ConnectionClosedException e) {
             // throw it out to close socket object (finalAccept)
             // and
             // treat socket timeouts the same way we treat socket exceptions
@@ -440,80 +365,275 @@ public class HTTPSessionImpl implements HTTPSession {
             resp.send(this.outputStream);
             NanoHTTPD.safeClose(this.outputStream);
         } finally {
-            NanoHTTPD.safeClose(response);
-            this.tempFileManager.clear();
+            cancelDeadlines();
+            if (!suspended) {
+                NanoHTTPD.safeClose(response);
+                NanoHTTPD.safeClose(this.bodyStore);
+                this.bodyStore = null;
+                this.tempFileManager.clear();
+                this.body = null;
+            }
         }
     }
 
     /**
-     * Find byte index separating header from body. It must be the last byte of
-     * the first two sequential new lines.
+     * Read the next request and hand it to the server.
+     *
+     * @return the response, which may still be pending, or {@code null} if the handler missed its deadline and the
+     * connection was closed.
      */
-    private int findHeaderEnd(final byte[] buf, int rlen) {
-        int splitbyte = 0;
-        while (splitbyte + 1 < rlen) {
-            // RFC2616
-            if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && splitbyte + 3 < rlen
-                    && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                return splitbyte + 4;
+    private AsyncResponse handleRequest() throws IOException, ResponseException {
+        reset();
+
+        // responses held back for pipelined requests must leave before waiting for the client
+        this.outputStream.setCoalescing(false);
+        if (this.outputStream.hasPending() && this.inputStream.available() == 0)
+            this.outputStream.flushPending();
+
+        // the stream goes back to the end of the header once it is found
+        this.inputStream.mark(httpd.getMaxHeaderSize());
+        cancelDeadlines();
+        final int request = this.deadlineInputStream.nextRequest();
+        int soTimeout = -1;
+        if (this.inputStream.available() == 0) {
+            // either the server sees the session idle or the session sees the server draining
+            setIdle(true);
+            if (httpd.isDraining()) {
+                setIdle(false);
+                throw new ConnectionClosedException("The server is draining.");
+            }
+            // a connection without a channel cannot be watched while idle and waits here for the next request
+            if (this.keepAlive && this.socket != null && this.socket.getChannel() == null) {
+                soTimeout = this.socket.getSoTimeout();
+                this.socket.setSoTimeout(httpd.getKeepAliveTimeout());
             }
+        }
+        int read;
+        try {
+            read = this.parser.read(this.inputStream);
+        } catch (SSLException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ConnectionClosedException("Connection closed due to an IO error.", e);
+        } finally {
+            setIdle(false);
+            if (soTimeout >= 0 && !this.socket.isClosed())
+                this.socket.setSoTimeout(soTimeout);
+        }
 
-            // tolerance
-            if (buf[splitbyte] == '\n' && buf[splitbyte + 1] == '\n') {
-                return splitbyte + 2;
+        if (read == -1)
+            throw new ConnectionClosedException("Input closed.");
+
+        // waiting for the request is up to the keep-alive timeout, reading it is up to the deadlines
+        long start = this.requestStart != 0 ? this.requestStart : System.currentTimeMillis();
+        this.requestStart = 0;
+        startDeadline(ReadDeadline.HEADER, request, start);
+        startDeadline(ReadDeadline.REQUEST, request, start);
+
+        // Do NOT assume that a single read will get the entire header at once!
+        while (!this.parser.parse()) {
+            if (this.outputStream.hasPending() && this.inputStream.available() == 0)
+                this.outputStream.flushPending();
+            if (this.parser.read(this.inputStream) <= 0) {
+                this.parser.finish();
+                break;
             }
-            splitbyte++;
         }
-        return 0;
+        this.rlen = this.parser.getLength();
+        this.splitbyte = this.parser.getHeaderEnd();
+
+        if (this.splitbyte < this.rlen) {
+            this.inputStream.reset();
+            this.inputStream.skip(this.splitbyte);
+        }
+        cancelDeadline(ReadDeadline.HEADER);
+
+        this.method = this.parser.getMethod();
+        if (this.method == null) {
+            throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb "
+                    + this.parser.getMethodName() + " unhandled.");
+        }
+
+        String uri = this.parser.getTarget();
+        int qmi = uri.indexOf('?');
+        if (qmi >= 0) {
+            decodeParms(uri.substring(qmi + 1), this.parms);
+            uri = uri.substring(0, qmi);
+        }
+        this.uri = NanoHTTPD.decodePercent(uri);
+
+        this.protocolVersion = this.parser.getProtocolVersion();
+        if (!this.parser.hasProtocolVersion())
+            NanoHTTPD.LOG.log(Level.FINE, "No protocol version specified. Assuming HTTP/1.1.");
+
+        if ("HTTP/1.1".equals(protocolVersion))
+            this.keepAlive = !this.parser.headerContains(RequestParser.CONNECTION, "close");
+        else
+            this.keepAlive = "HTTP/1.0".equals(protocolVersion)
+                    && this.parser.headerContains(RequestParser.CONNECTION, "keep-alive");
+
+        int maxRequests = httpd.getMaxKeepAliveRequests();
+        if (maxRequests > 0 && ++this.requestCount >= maxRequests)
+            this.keepAlive = false;
+
+        long maxBodySize = httpd.getMaxRequestBodySize();
+        // a length that cannot be trusted would let the body pass for the next request
+        this.contentLength = this.parser.getContentLength();
+        if (this.parser.hasHeader(RequestParser.TRANSFER_ENCODING)) {
+            // chunked has to be the last coding, it is the only one the end of the body can be found by
+            String codings = this.parser.getHeader(RequestParser.TRANSFER_ENCODING).trim().toLowerCase();
+            if (!codings.endsWith("chunked"))
+                throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Transfer-Encoding "
+                        + codings + " unsupported.");
+            // Transfer-Encoding wins over Content-Length, a proxy in front may have framed the body the other way
+            if (this.parser.hasHeader(RequestParser.CONTENT_LENGTH))
+                this.keepAlive = false;
+            this.body = new ChunkedInputStream(this.inputStream, maxBodySize, httpd.getMaxHeaderSize());
+        } else {
+            if (maxBodySize > 0 && contentLength > maxBodySize)
+                throw new ResponseException(DefaultStatusCode.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: The body is "
+                        + "larger than " + maxBodySize + " bytes.");
+            if (contentLength > 0)
+                this.body = new FixedLengthInputStream(this.inputStream, contentLength);
+        }
+
+        if (this.parser.hasHeader(RequestParser.EXPECT) && "HTTP/1.1".equals(protocolVersion)) {
+            if (!this.parser.headerContains(RequestParser.EXPECT, "100-continue"))
+                throw new ResponseException(DefaultStatusCode.EXPECTATION_FAILED, "EXPECTATION FAILED: "
+                        + this.parser.getHeader(RequestParser.EXPECT));
+            // the client sends the body once it is read, a request rejected on its header is answered without it
+            if (this.body != null)
+                this.body.expectContinue(this.outputStream);
+        }
+
+        if (this.body != null)
+            startDeadline(ReadDeadline.BODY, request, System.currentTimeMillis());
+
+        // Ok, now do the serve()
+        int handlerMillis = httpd.getHandlerDeadline(this.uri);
+        HandlerDeadline handlerDeadline = handlerMillis > 0 ? new HandlerDeadline(httpd, this, handlerMillis) : null;
+        AsyncResponse response;
+        boolean expired = false;
+        try {
+            response = httpd.handleAsync(this);
+        } finally {
+            if (handlerDeadline != null)
+                expired = handlerDeadline.finish();
+        }
+        if (expired) {
+            // the watchdog answered the client and closed the connection already
+            cancelDeadlines();
+            if (response.isDone())
+                NanoHTTPD.safeClose(response.getResponse());
+            return null;
+        }
+
+        // the handler may have turned the failed read of the body into a response of its own
+        ReadDeadline tripped = this.deadlineInputStream.getTripped();
+        if (tripped != null) {
+            if (response.isDone())
+                NanoHTTPD.safeClose(response.getResponse());
+            throw new ReadDeadlineException(tripped);
+        }
+
+        // the rest of the body is dropped while the read deadlines still run, a pending response may still read it
+        if (response.isDone() && response.getFailure() == null) {
+            try {
+                finishBody();
+            } catch (ResponseException e) {
+                NanoHTTPD.safeClose(response.getResponse());
+                throw e;
+            }
+        }
+        cancelDeadlines();
+        return response;
     }
 
     /**
-     * Find the byte positions where multipart boundaries start. This reads a
-     * large block at a time and uses a temporary buffer to optimize (memory
-     * mapped) file access.
+     * Called once the response to the request is ready. A body whose framing or limit was broken fails the request,
+     * as the next request cannot be found after it. Otherwise what the handler left of the body is dropped, up to
+     * {@link NanoHTTPD#getMaxBodyDrain()} bytes, and the connection is closed after the response if more was left or
+     * the client still waits for {@code 100 Continue}.
      */
-    private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-        int[] res = new int[0];
-        if (b.remaining() < boundary.length) {
-            return res;
+    private void finishBody() throws ResponseException {
+        if (this.body == null)
+            return;
+
+        RequestBodyException failure = this.body.getFailure();
+        if (failure != null)
+            throw new ResponseException(failure.getStatus(), failure.getMessage());
+        if (this.body.isContinueExpected()) {
+            // the client was not asked for the body, whether it sends it anyway or the next request is unknown
+            this.keepAlive = false;
+            return;
         }
+        if (this.body.isFinished() || !this.keepAlive)
+            return;
 
-        int search_window_pos = 0;
-        byte[] search_window = new byte[4 * 1024 + boundary.length];
-
-        int first_fill = Math.min(b.remaining(), search_window.length);
-        b.get(search_window, 0, first_fill);
-        int new_bytes = first_fill - boundary.length;
-
-        do {
-            // Search the search_window
-            for (int j = 0; j < new_bytes; j++) {
-                for (int i = 0; i < boundary.length; i++) {
-                    if (search_window[j + i] != boundary[i])
-                        break;
-                    if (i == boundary.length - 1) {
-                        // Match found, add it to results
-                        int[] new_res = new int[res.length + 1];
-                        System.arraycopy(res, 0, new_res, 0, res.length);
-                        new_res[res.length] = search_window_pos + j;
-                        res = new_res;
-                    }
-                }
+        try {
+            if (!this.body.skipRest(httpd.getMaxBodyDrain()))
+                this.keepAlive = false;
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not drop the rest of the request body.", e);
+            this.keepAlive = false;
+        }
+    }
+
+    /**
+     * Answer the client of a handler that missed its deadline and close the connection. Called by the watchdog while
+     * the handler is still running, which does not write to the connection.
+     *
+     * @param writeDeadline milliseconds a write may block, if less than the write deadline of the server.
+     */
+    void sendHandlerTimeout(int writeDeadline) {
+        this.outputStream.limitWriteDeadline(writeDeadline);
+        Response resp = Response.newFixedLengthResponse(DefaultStatusCode.SERVICE_UNAVAILABLE,
+                NanoHTTPD.MIME_PLAINTEXT, "SERVICE UNAVAILABLE: The request took too long.");
+        resp.closeConnection(true);
+        this.outputStream.setCoalescing(false);
+        resp.send(this.outputStream);
+        NanoHTTPD.safeClose(this.outputStream);
+    }
+
+    private void startDeadline(final ReadDeadline deadline, final int request, long start) {
+        int millis = httpd.getReadDeadline(deadline);
+        if (millis <= 0)
+            return;
+
+        this.deadlines[deadline.ordinal()] = httpd.getTimingWheel().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                deadlineInputStream.expire(deadline, request);
             }
-            search_window_pos += new_bytes;
+        }, start + millis - System.currentTimeMillis());
+    }
 
-            // Copy the end of the buffer to the start
-            System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
+    private void cancelDeadline(ReadDeadline deadline) {
+        TimingWheel.Timeout timeout = this.deadlines[deadline.ordinal()];
+        if (timeout != null) {
+            timeout.cancel();
+            this.deadlines[deadline.ordinal()] = null;
+        }
+    }
 
-            // Refill search_window
-            new_bytes = Math.min(b.remaining(), search_window.length - boundary.length);
-            b.get(search_window, boundary.length, new_bytes);
-        } while (new_bytes > 0);
-        return res;
+    private void cancelDeadlines() {
+        for (ReadDeadline deadline : ReadDeadline.values())
+            cancelDeadline(deadline);
+    }
+
+    /**
+     * Set when the first byte of the next request arrived, if it was read before the connection was handed to this
+     * session, e.g. by an event loop. The header and request deadlines count from then.
+     */
+    public void setRequestStart(long requestStart) {
+        this.requestStart = requestStart;
     }
 
     @Override
     public CookieHandler getCookies() {
+        if (this.cookies == null)
+            this.cookies = new CookieHandler(this.headers);
         return this.cookies;
     }
 
@@ -522,9 +642,47 @@ public class HTTPSessionImpl implements HTTPSession {
         return this.headers;
     }
 
+    /**
+     * @return the response to the last request if {@link #execute()} returned before it was done, or the hold of a
+     * response that still writes to the connection, {@code null} otherwise. The connection should be suspended until
+     * it is done and then executed again, which sends the response or releases the connection.
+     * @see NanoHTTPD#suspendConnection(org.nanohttpd.protocols.http.client.ClientRequestExecutor, AsyncResponse)
+     */
+    public AsyncResponse getPendingResponse() {
+        return pending;
+    }
+
+    private synchronized void setIdle(boolean idle) {
+        this.idle = idle;
+    }
+
+    /**
+     * Close the connection if the session waits for the next request and none of it was received yet, as a draining
+     * server does with its idle connections. A request arriving at the same moment is lost, as with any server that
+     * closes idle connections, and clients are expected to retry it.
+     *
+     * @return whether the connection was closed.
+     * @see NanoHTTPD#drain(int)
+     */
+    public synchronized boolean closeIfIdle() {
+        if (!idle)
+            return false;
+
+        idle = false;
+        NanoHTTPD.safeClose(this.deadlineInputStream);
+        return true;
+    }
+
+    /**
+     * @return milliseconds the writes to this connection spent blocked on the client, over all its responses.
+     */
+    public long getWriteStallTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.outputStream.getStallNanos());
+    }
+
     @Override
     public final InputStream getInputStream() {
-        return this.inputStream;
+        return this.body != null ? this.body : this.inputStream;
     }
 
     @Override
@@ -556,99 +714,90 @@ public class HTTPSessionImpl implements HTTPSession {
         return this.queryParameterString;
     }
 
-    private RandomAccessFile getTmpBucket() {
-        try {
-            TempFile tempFile = this.tempFileManager.createTempFile(null);
-            return new RandomAccessFile(tempFile.getName(), "rw");
-        } catch (Exception e) {
-            throw new Error(e); // we won't recover, so throw an error
-        }
-    }
-
     @Override
     public final String getUri() {
         return this.uri;
     }
 
     /**
-     * Deduce body length in bytes. Either from "content-length" header or read
-     * bytes.
+     * Deduce body length in bytes from the "content-length" header. A chunked body has no length until it is read, -1
+     * is returned for it. A request without either has no body, what follows it is the next request.
      */
     public long getBodySize() {
-        if (this.headers.containsKey("content-length")) {
-            return Long.parseLong(this.headers.get("content-length"));
-        } else if (this.splitbyte < this.rlen) {
-            return this.rlen - this.splitbyte;
+        if (this.body instanceof ChunkedInputStream) {
+            return -1;
+        } else if (this.body == null) {
+            return 0;
         }
-        return 0;
+        return this.contentLength;
     }
 
     @Override
-    public void parseBody(Map<String, String> files) throws IOException, ResponseException {
-        RandomAccessFile randomAccessFile = null;
-        try {
+    public BodyStore getBody() throws IOException {
+        if (this.bodyStore == null) {
             long size = getBodySize();
-            ByteArrayOutputStream baos = null;
-            DataOutput requestDataOutput = null;
-
-            // Store the request in memory or a file, depending on size
-            if (size < MEMORY_STORE_LIMIT) {
-                baos = new ByteArrayOutputStream();
-                requestDataOutput = new DataOutputStream(baos);
-            } else {
-                randomAccessFile = getTmpBucket();
-                requestDataOutput = randomAccessFile;
-            }
+            BodyStore store = new BodyStore(this.tempFileManager, this.httpd.getBodyHeapLimit(),
+                    this.httpd.getBodyDirectLimit(), size);
+            this.bodyStore = store;
+            store.readFrom(getInputStream(), size < 0 ? Long.MAX_VALUE : size);
+        }
+        return this.bodyStore;
+    }
 
-            // Read all the body and write it to request_data_output
-            byte[] buf = new byte[REQUEST_BUFFER_LEN];
-            while (this.rlen >= 0 && size > 0) {
-                this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-                size -= this.rlen;
-                if (this.rlen > 0) {
-                    requestDataOutput.write(buf, 0, this.rlen);
-                }
+    @Override
+    public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+        ContentType contentType = new ContentType(this.headers.get("content-type"));
+        if (Method.POST.equals(this.method) && contentType.isMultipart()) {
+            FormDataCollector collector = new FormDataCollector(this.tempFileManager, this.parms, files,
+                    Charset.forName(contentType.getEncoding()), this.httpd.getMaxFormFieldSize());
+            try {
+                parseMultipartBody(collector);
+            } finally {
+                collector.close();
             }
+            return;
+        }
 
-            ByteBuffer fbuf = null;
-            if (baos != null) {
-                fbuf = ByteBuffer.wrap(baos.toByteArray(), 0, baos.size());
-            } else {
-                fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                randomAccessFile.seek(0);
+        ByteBuffer fbuf = getBody().getByteBuffer();
+
+        // If the method is POST, there may be parameters
+        // in data section, too, read it:
+        if (Method.POST.equals(this.method)) {
+            byte[] postBytes = new byte[fbuf.remaining()];
+            fbuf.get(postBytes);
+            String postLine = new String(postBytes, contentType.getEncoding()).trim();
+            // Handle application/x-www-form-urlencoded
+            if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
+                decodeParms(postLine, this.parms);
+            } else if (postLine.length() != 0) {
+                // Special case for raw POST data => create a
+                // special files entry "postData" with raw content
+                // data
+                files.put(POST_DATA, postLine);
             }
+        } else if (Method.PUT.equals(this.method)) {
+            files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
+        }
+    }
 
-            // If the method is POST, there may be parameters
-            // in data section, too, read it:
-            if (Method.POST.equals(this.method)) {
-                ContentType contentType = new ContentType(this.headers.get("content-type"));
-                if (contentType.isMultipart()) {
-                    String boundary = contentType.getBoundary();
-                    if (boundary == null) {
-                        throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is "
-                                + "multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                    }
-                    decodeMultipartFormData(contentType, fbuf, this.parms, files);
-                } else {
-                    byte[] postBytes = new byte[fbuf.remaining()];
-                    fbuf.get(postBytes);
-                    String postLine = new String(postBytes, contentType.getEncoding()).trim();
-                    // Handle application/x-www-form-urlencoded
-                    if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
-                        decodeParms(postLine, this.parms);
-                    } else if (postLine.length() != 0) {
-                        // Special case for raw POST data => create a
-                        // special files entry "postData" with raw content
-                        // data
-                        files.put(POST_DATA, postLine);
-                    }
-                }
-            } else if (Method.PUT.equals(this.method)) {
-                files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
-            }
-        } finally {
-            NanoHTTPD.safeClose(randomAccessFile);
+    @Override
+    public void parseMultipartBody(MultipartListener listener) throws IOException, ResponseException {
+        ContentType contentType = new ContentType(this.headers.get("content-type"));
+        if (!contentType.isMultipart()) {
+            throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is not "
+                    + "multipart/form-data.");
+        }
+        String boundary = contentType.getBoundary();
+        if (boundary == null) {
+            throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is "
+                    + "multipart/form-data but boundary missing. Usage: GET /example/file.html");
         }
+
+        // a body held already is parsed from where it is, any other while it is read
+        InputStream in = this.bodyStore != null ? this.bodyStore.getInputStream()
+                : this.body != null ? this.body : new ByteArrayInputStream(new byte[0]);
+        new MultipartParser(boundary, Charset.forName(contentType.getEncoding()), this.httpd.getMaxHeaderSize(),
+                this.httpd.getMaxFormParts()).parse(in, listener);
     }
 
     /**
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http;
+
+import org.nanohttpd.util.concurrent.TimingWheel;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Watches a handler run on the thread serving a connection. When the handler deadline passes first, the watchdog logs
+ * the stack of the handler, answers the client with {@code 503 Service Unavailable} and closes the connection, then
+ * interrupts the handler. The answer goes first as the interrupt of a handler blocked on the channel of the connection
+ * closes the channel. It is written by another watchdog thread with a short write deadline, so a client that does not
+ * read holds neither the watchdog of the other handlers nor the handler once it returned. A handler that is still
+ * running after as long again is logged once more, as it does not give in to the interrupt.
+ */
+final class HandlerDeadline implements Runnable {
+
+    /**
+     * Milliseconds a write of the {@code 503} may block, at most.
+     */
+    static final int RESPONSE_WRITE_DEADLINE = 1000;
+
+    private final NanoHTTPD httpd;
+
+    private final HTTPSessionImpl session;
+
+    private final Thread thread = Thread.currentThread();
+
+    private final String request;
+
+    private final int millis;
+
+    private final TimingWheel.Timeout timeout;
+
+    private final Runnable expire = new Runnable() {
+
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    private final Runnable check = new Runnable() {
+
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    private final Runnable respond = new Runnable() {
+
+        @Override
+        public void run() {
+            respond();
+        }
+    };
+
+    private boolean expired;
+
+    /**
+     * Whether the client is being answered, the handler thread must not use the connection until it is done.
+     */
+    private boolean responding;
+
+    private boolean returned;
+
+    HandlerDeadline(NanoHTTPD httpd, HTTPSessionImpl session, int millis) {
+        this.httpd = httpd;
+        this.session = session;
+        this.request = session.getMethod() + " " + session.getUri();
+        this.millis = millis;
+        this.timeout = httpd.getTimingWheel().schedule(this, millis);
+    }
+
+    /**
+     * Called on the timing wheel, which must not wait for the handler thread.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (returned)
+                return;
+        }
+        httpd.getHandlerWatchdog().execute(expire);
+    }
+
+    private synchronized void expire() {
+        if (returned)
+            return;
+
+        expired = true;
+        responding = true;
+        httpd.handlerDeadlineExpired();
+        NanoHTTPD.LOG.log(Level.WARNING, "Handler of " + request + " missed its deadline of " + millis
+                + " ms, interrupting it.", stackTrace());
+        try {
+            httpd.getHandlerWatchdog().execute(respond);
+        } catch (RejectedExecutionException e) {
+            // the server stopped and closes the connection itself
+            responding = false;
+            interrupt();
+        }
+    }
+
+    private void respond() {
+        try {
+            session.sendHandlerTimeout(RESPONSE_WRITE_DEADLINE);
+        } finally {
+            synchronized (this) {
+                responding = false;
+                notifyAll();
+                if (!returned)
+                    interrupt();
+            }
+        }
+    }
+
+    private void interrupt() {
+        thread.interrupt();
+        try {
+            httpd.getHandlerWatchdog().schedule(check, millis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the server stopped, there is no one left to tell
+        }
+    }
+
+    private synchronized void check() {
+        if (!returned)
+            NanoHTTPD.LOG.log(Level.WARNING, "Handler of " + request + " is still running " + millis
+                    + " ms after it was interrupted.", stackTrace());
+    }
+
+    private Throwable stackTrace() {
+        Throwable stack = new Throwable("Stack of " + thread.getName());
+        stack.setStackTrace(thread.getStackTrace());
+        return stack;
+    }
+
+    /**
+     * Called by the handler thread once the handler returned, waits for the watchdog if it is answering the client.
+     *
+     * @return whether the deadline passed, the client was answered and the connection closed then.
+     */
+    synchronized boolean finish() {
+        timeout.cancel();
+        returned = true;
+        if (!expired)
+            return false;
+
+        // the interrupt was meant for the handler only
+        Thread.interrupted();
+        while (responding) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the response is written with a deadline, it will not be long
+            }
+        }
+        return true;
+    }
+}
@@ -33,9 +33,12 @@ package org.nanohttpd.protocols.http;
 import org.nanohttpd.protocols.http.client.ClientRequestExecutor;
 import org.nanohttpd.protocols.http.client.ClientRequestExecutorFactory;
 import org.nanohttpd.protocols.http.client.DefaultClientRequestExecutorFactory;
+import org.nanohttpd.protocols.http.response.AsyncResponse;
 import org.nanohttpd.protocols.http.response.DefaultStatusCode;
 import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.server.ConnectionRegistry;
 import org.nanohttpd.protocols.http.server.DefaultServerExecutor;
+import org.nanohttpd.protocols.http.server.EventLoop;
 import org.nanohttpd.protocols.http.server.ServerStartException;
 import org.nanohttpd.protocols.http.sockets.DefaultServerSocketFactory;
 import org.nanohttpd.protocols.http.sockets.ServerSocketFactory;
@@ -45,16 +48,28 @@ import org.nanohttpd.util.Factory;
 import org.nanohttpd.util.Handler;
 import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
 import org.nanohttpd.util.concurrent.ExecutorServiceFactory;
-import org.nanohttpd.util.concurrent.RegistrarRunnable;
+import org.nanohttpd.util.concurrent.TimingWheel;
 
+import javax.net.ssl.SSLSocket;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -131,6 +146,57 @@ public abstract class NanoHTTPD {
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
 
+    /**
+     * Default limit for the request line and header fields of a request (in bytes), Apache's default is 8KB as well.
+     */
+    public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+
+    /**
+     * Bytes of a request body left unread by the handler that are dropped by default to keep the connection, see
+     * {@link #setMaxBodyDrain(int)}.
+     */
+    public static final int DEFAULT_MAX_BODY_DRAIN = 65536;
+
+    /**
+     * Largest request body held in a heap buffer by default, see {@link #setBodyStoreLimits(int, int)}.
+     */
+    public static final int DEFAULT_BODY_HEAP_LIMIT = 64 * 1024;
+
+    /**
+     * Largest request body held in direct memory by default, see {@link #setBodyStoreLimits(int, int)}.
+     */
+    public static final int DEFAULT_BODY_DIRECT_LIMIT = 1024 * 1024;
+
+    /**
+     * Largest form field of a multipart/form-data body by default, see {@link #setMultipartLimits(int, int)}.
+     */
+    public static final int DEFAULT_MAX_FORM_FIELD_SIZE = 1024 * 1024;
+
+    /**
+     * Most parts of a multipart/form-data body by default, see {@link #setMultipartLimits(int, int)}.
+     */
+    public static final int DEFAULT_MAX_FORM_PARTS = 1000;
+
+    /**
+     * Milliseconds a client may take to send the header of a request by default, see {@link ReadDeadline#HEADER}.
+     */
+    public static final int DEFAULT_HEADER_DEADLINE = 20000;
+
+    /**
+     * Milliseconds a single write to a client may block by default, see {@link #setWriteDeadline(int)}.
+     */
+    public static final int DEFAULT_WRITE_DEADLINE = 60000;
+
+    /**
+     * Milliseconds of blocked writes the minimum write rate is measured over by default.
+     */
+    public static final int DEFAULT_MIN_WRITE_RATE_WINDOW = 10000;
+
+    /**
+     * Milliseconds an asynchronous response may stay pending by default.
+     */
+    public static final int DEFAULT_ASYNC_TIMEOUT = 30000;
+
     /**
      * Common MIME type for dynamic content: plain text
      */
@@ -141,6 +207,21 @@ public abstract class NanoHTTPD {
      */
     public static final String MIME_HTML = "text/html";
 
+    /**
+     * Seconds a client is asked to wait before retrying when the server is too busy to take its connection.
+     */
+    public static final int SERVICE_UNAVAILABLE_RETRY_AFTER = 1;
+
+    /**
+     * Response written to a connection that the client request executor service rejected. It is serialized once, so
+     * that shedding load costs as little as possible.
+     */
+    private static final byte[] SERVICE_UNAVAILABLE_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: " + SERVICE_UNAVAILABLE_RETRY_AFTER + "\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n" +
+            "\r\n").getBytes(Charset.forName("US-ASCII"));
+
     /**
      * Pseudo-Parameter to use to store the actual query string in the
      * parameters map for later re-processing.
@@ -221,8 +302,7 @@ public abstract class NanoHTTPD {
 
     protected List<Handler<HTTPSession, Response>> interceptors = new ArrayList<>(4);
 
-    private final List<ClientRequestExecutor> activeClientConnectionList = Collections.synchronizedList(
-            new ArrayList<ClientRequestExecutor>());
+    private final ConnectionRegistry connectionRegistry = new ConnectionRegistry();
 
     private ExecutorServiceFactory clientRequestExecutorServiceFactory;
 
@@ -232,14 +312,76 @@ public abstract class NanoHTTPD {
 
     private Handler<HTTPSession, Response> httpHandler;
 
-    private ServerSocket serverSocket;
+    private Handler<HTTPSession, AsyncResponse> asyncHttpHandler;
+
+    private final Set<ClientRequestExecutor> suspendedConnections = Collections.newSetFromMap(
+            new ConcurrentHashMap<ClientRequestExecutor, Boolean>());
+
+    private ScheduledThreadPoolExecutor asyncTimer;
+
+    /**
+     * Threads of the handler watchdog, so that answering the client of one handler does not hold up the others.
+     */
+    private static final int HANDLER_WATCHDOG_THREADS = 4;
+
+    private ScheduledThreadPoolExecutor handlerWatchdog;
+
+    private volatile int handlerDeadline;
+
+    private final Map<String, Integer> routeHandlerDeadlines = new ConcurrentHashMap<>();
+
+    private final AtomicLong handlerDeadlineExpirations = new AtomicLong();
+
+    private volatile ServerSocket serverSocket;
+
+    private volatile Thread serverThread;
 
-    private Thread serverThread;
+    private volatile boolean draining;
 
     private ServerSocketFactory serverSocketFactory;
 
     private Factory<TempFileManager> tempFileManagerFactory;
 
+    private volatile int keepAliveTimeout = SOCKET_READ_TIMEOUT;
+
+    private volatile int maxKeepAliveRequests;
+
+    private volatile int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+
+    private volatile long maxRequestBodySize;
+
+    private volatile int maxBodyDrain = DEFAULT_MAX_BODY_DRAIN;
+
+    private volatile int bodyHeapLimit = DEFAULT_BODY_HEAP_LIMIT;
+
+    private volatile int bodyDirectLimit = DEFAULT_BODY_DIRECT_LIMIT;
+
+    private volatile int maxFormFieldSize = DEFAULT_MAX_FORM_FIELD_SIZE;
+
+    private volatile int maxFormParts = DEFAULT_MAX_FORM_PARTS;
+
+    private volatile EventLoop keepAliveEventLoop;
+
+    private volatile long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+
+    private final AtomicIntegerArray readDeadlines = new AtomicIntegerArray(ReadDeadline.values().length);
+
+    private final AtomicLongArray readDeadlineExpirations = new AtomicLongArray(ReadDeadline.values().length);
+
+    private volatile int writeDeadline = DEFAULT_WRITE_DEADLINE;
+
+    private volatile int minWriteRate;
+
+    private volatile int minWriteRateWindow = DEFAULT_MIN_WRITE_RATE_WINDOW;
+
+    private final AtomicLong writeDeadlineExpirations = new AtomicLong();
+
+    private final AtomicLong minWriteRateViolations = new AtomicLong();
+
+    private final AtomicLong writeStallNanos = new AtomicLong();
+
+    private volatile TimingWheel timingWheel = closedTimingWheel();
+
     public NanoHTTPD() {
         this(0);
     }
@@ -269,6 +411,7 @@ public abstract class NanoHTTPD {
             throw new NullPointerException("Socket factory cannot be null.");
 
         serverSocketFactory = socketFactory;
+        readDeadlines.set(ReadDeadline.HEADER.ordinal(), DEFAULT_HEADER_DEADLINE);
 
         // creates a default handler that redirects to deprecated serve();
         httpHandler = new Handler<HTTPSession, Response>() {
@@ -280,6 +423,11 @@ public abstract class NanoHTTPD {
         };
     }
 
+    /**
+     * Add a handler that runs before the others and answers the request when it returns a response. Interceptors
+     * that only look at the header, e.g. to check the credentials or the Content-Length of an upload, reject a
+     * request with {@code Expect: 100-continue} before the client sends its body.
+     */
     public void addHTTPInterceptor(Handler<HTTPSession, Response> interceptor) {
         interceptors.add(interceptor);
     }
@@ -385,6 +533,327 @@ public abstract class NanoHTTPD {
         return serverSocketFactory;
     }
 
+    /**
+     * Watcher shared by the connections waiting for their next keep-alive request, see
+     * {@link org.nanohttpd.protocols.http.client.DefaultClientRequestExecutor}. It is started on first use and
+     * stopped with the server.
+     *
+     * @return the running watcher.
+     * @throws IOException when the selector of a new watcher cannot be opened, or the server is draining and closes
+     *                     the connections that would wait on it.
+     */
+    public EventLoop getKeepAliveEventLoop() throws IOException {
+        EventLoop eventLoop = keepAliveEventLoop;
+        if (eventLoop != null && !eventLoop.isClosed())
+            return eventLoop;
+
+        synchronized (this) {
+            eventLoop = keepAliveEventLoop;
+            if (eventLoop == null || eventLoop.isClosed()) {
+                if (draining)
+                    throw new ConnectionClosedException("The server is draining.");
+                eventLoop = new EventLoop(keepAliveTimeout);
+                Thread thread = new Thread(eventLoop);
+                thread.setDaemon(true);
+                thread.setName("uduhttpd keep-alive watcher");
+                thread.start();
+                keepAliveEventLoop = eventLoop;
+            }
+            return eventLoop;
+        }
+    }
+
+    /**
+     * @return the timing wheel shared by the read and write deadlines of all connections. It is started with the
+     * server and closed when the server stops, a closed wheel does not run the timeouts scheduled on it.
+     */
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    private static TimingWheel closedTimingWheel() {
+        TimingWheel wheel = new TimingWheel(TimingWheel.DEFAULT_TICK_MILLIS, 1);
+        wheel.close();
+        return wheel;
+    }
+
+    private void startTimingWheel() {
+        TimingWheel wheel = new TimingWheel();
+        Thread thread = new Thread(wheel);
+        thread.setDaemon(true);
+        thread.setName("uduhttpd timing wheel");
+        thread.start();
+        timingWheel = wheel;
+    }
+
+    /**
+     * @return milliseconds allowed for the given part of reading a request, 0 if there is no limit.
+     */
+    public int getReadDeadline(ReadDeadline deadline) {
+        return readDeadlines.get(deadline.ordinal());
+    }
+
+    /**
+     * Limit how long reading a request may take, unlike the socket timeout, which limits each single read and lets a
+     * client trickling a byte at a time hold a connection forever. A request that misses a deadline is answered with
+     * {@code 408 Request Timeout} and its connection is closed. The header deadline defaults to
+     * {@value #DEFAULT_HEADER_DEADLINE} ms, the others are off.
+     *
+     * @param deadline which part of reading the request to limit.
+     * @param millis   milliseconds, 0 for no limit.
+     */
+    public void setReadDeadline(ReadDeadline deadline, int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("The read deadline cannot be negative.");
+
+        readDeadlines.set(deadline.ordinal(), millis);
+    }
+
+    /**
+     * @return the number of requests answered with {@code 408 Request Timeout} because they missed the given deadline.
+     */
+    public long getReadDeadlineExpirations(ReadDeadline deadline) {
+        return readDeadlineExpirations.get(deadline.ordinal());
+    }
+
+    void readDeadlineExpired(ReadDeadline deadline) {
+        readDeadlineExpirations.incrementAndGet(deadline.ordinal());
+    }
+
+    /**
+     * @return milliseconds a handler may run for a request by default, 0 if there is no limit.
+     */
+    public int getHandlerDeadline() {
+        return handlerDeadline;
+    }
+
+    /**
+     * Limit how long a handler may run for a request, so that handlers hung on a failing backend do not take every
+     * worker. When the deadline passes, the client is answered with {@code 503 Service Unavailable} right away and its
+     * connection is closed, then the thread running the handler is interrupted. Its stack is logged. The response the
+     * handler returns after all is dropped. There is no limit by default.
+     * <p/>
+     * Only the handler call is limited, a pending asynchronous response has its own timeout.
+     *
+     * @param millis milliseconds, 0 for no limit.
+     * @see #setHandlerDeadline(String, int)
+     */
+    public void setHandlerDeadline(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("The handler deadline cannot be negative.");
+
+        this.handlerDeadline = millis;
+    }
+
+    /**
+     * Limit how long a handler may run for requests whose URI starts with the given prefix, in place of the deadline
+     * of the server. The longest matching prefix applies.
+     *
+     * @param uriPrefix the start of the decoded URI, e.g. {@code /reports/}.
+     * @param millis    milliseconds, 0 for no limit, -1 to use the deadline of the server again.
+     */
+    public void setHandlerDeadline(String uriPrefix, int millis) {
+        if (uriPrefix == null)
+            throw new NullPointerException("URI prefix cannot be null.");
+        if (millis < -1)
+            throw new IllegalArgumentException("Invalid handler deadline: " + millis);
+
+        if (millis == -1)
+            routeHandlerDeadlines.remove(uriPrefix);
+        else
+            routeHandlerDeadlines.put(uriPrefix, millis);
+    }
+
+    /**
+     * @return milliseconds a handler may run for a request to the given URI, 0 if there is no limit.
+     */
+    public int getHandlerDeadline(String uri) {
+        int millis = handlerDeadline;
+        int matched = -1;
+        for (Map.Entry<String, Integer> route : routeHandlerDeadlines.entrySet()) {
+            String prefix = route.getKey();
+            if (prefix.length() > matched && uri.startsWith(prefix)) {
+                matched = prefix.length();
+                millis = route.getValue();
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * @return the number of requests answered with {@code 503 Service Unavailable} because their handler missed its
+     * deadline.
+     */
+    public long getHandlerDeadlineExpirations() {
+        return handlerDeadlineExpirations.get();
+    }
+
+    void handlerDeadlineExpired() {
+        handlerDeadlineExpirations.incrementAndGet();
+    }
+
+    /**
+     * @return milliseconds a single write to a client may block, 0 if there is no limit.
+     */
+    public int getWriteDeadline() {
+        return writeDeadline;
+    }
+
+    /**
+     * Limit how long a single write to a client may block. Writes are at most
+     * {@value org.nanohttpd.protocols.http.response.CoalescingOutputStream#WRITE_SLICE} bytes, so this also bounds
+     * how slowly a client may take a response. A client that misses it has its connection closed. Defaults to
+     * {@value #DEFAULT_WRITE_DEADLINE} ms.
+     *
+     * @param millis milliseconds, 0 for no limit.
+     */
+    public void setWriteDeadline(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("The write deadline cannot be negative.");
+
+        this.writeDeadline = millis;
+    }
+
+    /**
+     * @return the bytes per second a client must at least take responses at, 0 if there is no minimum.
+     */
+    public int getMinWriteRate() {
+        return minWriteRate;
+    }
+
+    /**
+     * @return milliseconds of blocked writes the minimum write rate is measured over.
+     */
+    public int getMinWriteRateWindow() {
+        return minWriteRateWindow;
+    }
+
+    /**
+     * Require clients to take responses at a minimum rate. Only the time the writes to a client are blocked counts,
+     * so a response produced slowly by its handler does not hold its client below the rate. A client below the rate
+     * over the window has its connection closed. There is no minimum by default.
+     *
+     * @param bytesPerSecond the minimum rate, 0 for none.
+     * @param windowMillis   milliseconds of blocked writes the rate is measured over, the rate is only enforced once
+     *                       a client was waited on for that long.
+     */
+    public void setMinWriteRate(int bytesPerSecond, int windowMillis) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("The minimum write rate cannot be negative.");
+        if (windowMillis <= 0)
+            throw new IllegalArgumentException("The window of the minimum write rate must be positive.");
+
+        this.minWriteRateWindow = windowMillis;
+        this.minWriteRate = bytesPerSecond;
+    }
+
+    /**
+     * @return the number of connections closed because a write missed the write deadline.
+     */
+    public long getWriteDeadlineExpirations() {
+        return writeDeadlineExpirations.get();
+    }
+
+    /**
+     * @return the number of connections closed because the client fell below the minimum write rate.
+     */
+    public long getMinWriteRateViolations() {
+        return minWriteRateViolations.get();
+    }
+
+    /**
+     * @return milliseconds the writes of all connections spent blocked on slow clients.
+     */
+    public long getWriteStallTime() {
+        return TimeUnit.NANOSECONDS.toMillis(writeStallNanos.get());
+    }
+
+    void writeDeadlineExpired() {
+        writeDeadlineExpirations.incrementAndGet();
+    }
+
+    void minWriteRateViolated() {
+        minWriteRateViolations.incrementAndGet();
+    }
+
+    void addWriteStall(long nanos) {
+        writeStallNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Called after a response was sent whose writes had to wait on a slow client. Does nothing by default, override
+     * it to find the endpoints held up by slow clients.
+     *
+     * @param session the session of the request, its URI and method are still those of the request.
+     * @param millis  milliseconds the writes of the response spent blocked.
+     */
+    protected void onWriteStall(HTTPSession session, long millis) {
+    }
+
+    /**
+     * @return milliseconds an idle keep-alive connection is kept open while waiting for the next request.
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * @return maximum number of requests served on one connection before it is closed, 0 for no limit.
+     */
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    /**
+     * @return maximum size of the request line and header fields of a request in bytes.
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    /**
+     * @return maximum size of a request body in bytes, 0 if there is no limit.
+     */
+    public long getMaxRequestBodySize() {
+        return maxRequestBodySize;
+    }
+
+    /**
+     * @return maximum number of bytes of a request body left unread by the handler that are dropped to keep the
+     * connection.
+     */
+    public int getMaxBodyDrain() {
+        return maxBodyDrain;
+    }
+
+    /**
+     * @return size in bytes of the largest request body held in a heap buffer.
+     */
+    public int getBodyHeapLimit() {
+        return bodyHeapLimit;
+    }
+
+    /**
+     * @return size in bytes of the largest request body held in direct memory.
+     */
+    public int getBodyDirectLimit() {
+        return bodyDirectLimit;
+    }
+
+    /**
+     * @return maximum size in bytes of a form field of a multipart/form-data body, 0 if there is no limit.
+     */
+    public int getMaxFormFieldSize() {
+        return maxFormFieldSize;
+    }
+
+    /**
+     * @return maximum number of parts of a multipart/form-data body, 0 if there is no limit.
+     */
+    public int getMaxFormParts() {
+        return maxFormParts;
+    }
+
     public Factory<TempFileManager> getTempFileManagerFactory() {
         if (tempFileManagerFactory == null)
             tempFileManagerFactory = new DefaultTempFileManagerFactory();
@@ -418,9 +887,184 @@ public abstract class NanoHTTPD {
         return httpHandler.handle(session);
     }
 
+    /**
+     * Delegates requests to the asynchronous handler when there is one, after the interceptors, and to
+     * {@link #handle(HTTPSession)} otherwise. The response is sent when the returned one is done.
+     *
+     * @param session the incoming session
+     * @return a response to the incoming session, which may still be pending
+     */
+    public AsyncResponse handleAsync(HTTPSession session) {
+        Handler<HTTPSession, AsyncResponse> asyncHandler = asyncHttpHandler;
+        if (asyncHandler == null)
+            return AsyncResponse.completed(handle(session));
+
+        for (Handler<HTTPSession, Response> interceptor : interceptors) {
+            Response response = interceptor.handle(session);
+            if (response != null)
+                return AsyncResponse.completed(response);
+        }
+        AsyncResponse response = asyncHandler.handle(session);
+        return response != null ? response : AsyncResponse.completed(null);
+    }
+
+    /**
+     * Keep a connection whose response is pending without a thread, and hand it back to the client request executor
+     * service once the response is done. A response that is not done within its timeout is answered with its timeout
+     * response. Suspended connections are closed when the server stops.
+     *
+     * @param requestExecutor the executor serving the connection, run again to send the response.
+     * @param response        the pending response.
+     */
+    public void suspendConnection(final ClientRequestExecutor requestExecutor, final AsyncResponse response) {
+        long timeout = response.getTimeout() < 0 ? asyncTimeout : response.getTimeout();
+        final ScheduledFuture<?> timeoutTask = timeout > 0 ? getAsyncTimer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                response.timeOut();
+            }
+        }, timeout, TimeUnit.MILLISECONDS) : null;
+
+        suspendedConnections.add(requestExecutor);
+        response.whenDone(new Runnable() {
+
+            @Override
+            public void run() {
+                if (timeoutTask != null)
+                    timeoutTask.cancel(false);
+                // the connection was closed in the meantime when the server stopped
+                if (suspendedConnections.remove(requestExecutor))
+                    handleConnectionRequest(requestExecutor);
+                else
+                    safeClose(response.getResponse());
+            }
+        });
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getAsyncTimer() {
+        if (asyncTimer == null) {
+            asyncTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    thread.setName("uduhttpd async timer");
+                    return thread;
+                }
+            });
+            asyncTimer.setRemoveOnCancelPolicy(true);
+        }
+        return asyncTimer;
+    }
+
+    synchronized ScheduledThreadPoolExecutor getHandlerWatchdog() {
+        if (handlerWatchdog == null) {
+            handlerWatchdog = new ScheduledThreadPoolExecutor(HANDLER_WATCHDOG_THREADS, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    thread.setName("uduhttpd handler watchdog");
+                    return thread;
+                }
+            });
+        }
+        return handlerWatchdog;
+    }
+
+    /**
+     * Serve a newly accepted connection, unless its remote address has as many connections open as it may. The
+     * client is answered with {@code 503 Service Unavailable} then.
+     */
     public void handleConnectionRequest(Socket socket) {
-        getClientRequestExecutorService().submit(new RegistrarRunnable<>(
-                getClientRequestExecutorFactory().create(this, socket), activeClientConnectionList));
+        ClientRequestExecutor requestExecutor = getClientRequestExecutorFactory().create(this, socket);
+        if (registerConnection(requestExecutor))
+            handleConnectionRequest(requestExecutor);
+    }
+
+    /**
+     * Register a newly accepted connection, so that it is closed when the server stops. The executor must call
+     * {@link #unregisterConnection(ClientRequestExecutor)} when it is closed.
+     *
+     * @return {@code false} if the remote address has as many connections open as it may, the client was answered
+     * with {@code 503 Service Unavailable} and the connection closed then.
+     */
+    public boolean registerConnection(ClientRequestExecutor requestExecutor) {
+        if (connectionRegistry.add(requestExecutor))
+            return true;
+
+        NanoHTTPD.LOG.log(Level.FINE, "Too many connections from {0}, rejecting connection.",
+                requestExecutor.getClientSocket().getInetAddress());
+        rejectConnection(requestExecutor);
+        return false;
+    }
+
+    public void unregisterConnection(ClientRequestExecutor requestExecutor) {
+        connectionRegistry.remove(requestExecutor);
+    }
+
+    /**
+     * @return the open connections of the server.
+     */
+    public ConnectionRegistry getConnectionRegistry() {
+        return connectionRegistry;
+    }
+
+    /**
+     * @return the number of connections a remote address may have open at once, 0 if there is no limit.
+     */
+    public int getMaxConnectionsPerAddress() {
+        return connectionRegistry.getMaxConnectionsPerAddress();
+    }
+
+    /**
+     * Limit how many connections a remote address may have open at once, so that one client cannot take every
+     * worker. Connections past the limit are answered with {@code 503 Service Unavailable} as soon as they are
+     * accepted. Clients behind a shared proxy or NAT count as one address. There is no limit by default.
+     *
+     * @param maxConnections connections, 0 for no limit.
+     */
+    public void setMaxConnectionsPerAddress(int maxConnections) {
+        connectionRegistry.setMaxConnectionsPerAddress(maxConnections);
+    }
+
+    /**
+     * Run the given client request executor on the client request executor service. When the executor service rejects
+     * the connection, the client is answered with {@code 503 Service Unavailable} and the connection is closed.
+     *
+     * @param requestExecutor the executor serving a client connection.
+     */
+    public void handleConnectionRequest(ClientRequestExecutor requestExecutor) {
+        try {
+            getClientRequestExecutorService().submit(requestExecutor);
+        } catch (RejectedExecutionException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Client request executor service is saturated, rejecting connection.", e);
+            rejectConnection(requestExecutor);
+        }
+    }
+
+    private void rejectConnection(ClientRequestExecutor requestExecutor) {
+        Socket socket = requestExecutor.getClientSocket();
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(SERVICE_UNAVAILABLE_RESPONSE);
+            out.flush();
+            if (!(socket instanceof SSLSocket))
+                socket.shutdownOutput();
+
+            // discard what the client already sent, closing with unread data would reset the connection
+            InputStream in = socket.getInputStream();
+            int available;
+            while ((available = in.available()) > 0)
+                in.skip(available);
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not send 503 to a rejected connection.", e);
+        } finally {
+            NanoHTTPD.safeClose(requestExecutor);
+        }
     }
 
     /**
@@ -441,10 +1085,153 @@ public abstract class NanoHTTPD {
         clientRequestExecutorFactory = factory;
     }
 
+    /**
+     * Pluggable strategy for the executor service running the client connections. This takes effect the next time
+     * the executor service is created, i.e. before the server starts or after the current one was shut down.
+     *
+     * @param factory new strategy for creating the client request executor service.
+     * @see org.nanohttpd.util.concurrent.VirtualThreadExecutorServiceFactory
+     */
+    public void setClientRequestExecutorServiceFactory(ExecutorServiceFactory factory) {
+        clientRequestExecutorServiceFactory = factory;
+    }
+
+    /**
+     * Set how long an idle keep-alive connection is kept open while waiting for the next request. Connections with a
+     * channel, as created by the default {@link org.nanohttpd.protocols.http.sockets.DefaultServerSocketFactory}, are
+     * watched while idle and this takes effect for watchers started afterwards, i.e. before the server starts. Others,
+     * such as TLS connections, wait on their thread with this as their socket read timeout.
+     *
+     * @param keepAliveTimeout milliseconds, 0 to keep idle connections as long as the client does.
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        if (keepAliveTimeout < 0)
+            throw new IllegalArgumentException("The keep-alive timeout cannot be negative.");
+
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Limit the number of requests served on one connection. The response to the last one is sent with
+     * {@code Connection: close}.
+     *
+     * @param maxKeepAliveRequests maximum requests per connection, 0 for no limit.
+     */
+    public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+        if (maxKeepAliveRequests < 0)
+            throw new IllegalArgumentException("The maximum number of requests cannot be negative.");
+
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    /**
+     * Limit the size of the request line and header fields of a request. A request with a larger header is answered
+     * with 431 Request Header Fields Too Large. The limit applies to connections accepted afterwards.
+     *
+     * @param maxHeaderSize maximum size in bytes.
+     */
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        if (maxHeaderSize <= 0)
+            throw new IllegalArgumentException("The maximum header size must be positive.");
+
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Limit the size of request bodies. A request with a larger Content-Length is answered with 413 Payload Too Large
+     * without reading its body. A chunked body has its size checked while it is read, the read that passes the limit
+     * fails and the request is answered with 413 whatever the handler responds. There is no limit by default.
+     *
+     * @param maxRequestBodySize maximum size in bytes, 0 for no limit.
+     */
+    public void setMaxRequestBodySize(long maxRequestBodySize) {
+        if (maxRequestBodySize < 0)
+            throw new IllegalArgumentException("The maximum body size cannot be negative.");
+
+        this.maxRequestBodySize = maxRequestBodySize;
+    }
+
+    /**
+     * Set how much of a request body the handler left unread is read and dropped after it returns, so that the
+     * connection can serve the next request instead of being closed, which would cost the client a new connection
+     * and TLS handshake. A connection with more left than that is closed after the response.
+     *
+     * @param maxBodyDrain maximum size in bytes, 0 to close the connection whenever some of the body is left.
+     */
+    public void setMaxBodyDrain(int maxBodyDrain) {
+        if (maxBodyDrain < 0)
+            throw new IllegalArgumentException("The maximum drain size cannot be negative.");
+
+        this.maxBodyDrain = maxBodyDrain;
+    }
+
+    /**
+     * Set where a request body read by {@link HTTPSession#getBody()} is held. Bodies up to the heap limit are held in
+     * pooled heap buffers, those up to the direct limit in pooled direct buffers, see
+     * {@link org.nanohttpd.util.buffer.BufferPools#getDirect()}, and larger ones in a temporary file.
+     *
+     * @param heapLimit   size in bytes of the largest body held in the heap.
+     * @param directLimit size in bytes of the largest body held in direct memory, the heap limit to skip it.
+     */
+    public void setBodyStoreLimits(int heapLimit, int directLimit) {
+        if (heapLimit < 0 || directLimit < heapLimit)
+            throw new IllegalArgumentException("Invalid body store limits: " + heapLimit + "/" + directLimit);
+
+        this.bodyHeapLimit = heapLimit;
+        this.bodyDirectLimit = directLimit;
+    }
+
+    /**
+     * Set the limits of a multipart/form-data body parsed by {@link HTTPSession#parseBody(Map)}. Uploaded files go to
+     * temporary files as they are read and are only limited by {@link #setMaxRequestBodySize(long)}, form fields are
+     * collected in memory. A body over a limit is answered with 413.
+     *
+     * @param maxFieldSize maximum size in bytes of a form field, 0 for no limit.
+     * @param maxParts     maximum number of parts, 0 for no limit.
+     */
+    public void setMultipartLimits(int maxFieldSize, int maxParts) {
+        if (maxFieldSize < 0 || maxParts < 0)
+            throw new IllegalArgumentException("The multipart limits cannot be negative.");
+
+        this.maxFormFieldSize = maxFieldSize;
+        this.maxFormParts = maxParts;
+    }
+
     public void setHTTPHandler(Handler<HTTPSession, Response> handler) {
         this.httpHandler = handler;
     }
 
+    /**
+     * Serve requests with a handler that may answer later. While a response is pending its connection does not hold a
+     * thread. Interceptors still run first, the handler set with {@link #setHTTPHandler(Handler)} is no longer used.
+     *
+     * @param handler the asynchronous handler, {@code null} to go back to the synchronous one.
+     * @see AsyncResponse
+     */
+    public void setAsyncHTTPHandler(Handler<HTTPSession, AsyncResponse> handler) {
+        this.asyncHttpHandler = handler;
+    }
+
+    /**
+     * @return milliseconds an asynchronous response may stay pending unless it sets its own timeout.
+     */
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    /**
+     * Limit how long an asynchronous response may stay pending. When the time is up it is answered with
+     * {@code 503 Service Unavailable}, or the timeout response it set.
+     *
+     * @param asyncTimeout milliseconds, 0 to wait as long as it takes.
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        if (asyncTimeout < 0)
+            throw new IllegalArgumentException("The asynchronous timeout cannot be negative.");
+
+        this.asyncTimeout = asyncTimeout;
+    }
+
     /**
      * Pluggable strategy for creating and cleaning up temporary files.
      *
@@ -520,6 +1307,8 @@ public abstract class NanoHTTPD {
         if (isListening())
             throw new IllegalStateException("The server is already running.");
 
+        draining = false;
+        startTimingWheel();
         ServerExecutor executor = createServerExecutor();
         serverThread = new Thread(executor);
         serverThread.setDaemon(daemon);
@@ -542,8 +1331,10 @@ public abstract class NanoHTTPD {
                     "making the call has been interrupted.", e);
         }
 
-        if (executor.getStartError() != null)
+        if (executor.getStartError() != null) {
+            safeClose(timingWheel);
             throw executor.getStartError();
+        }
 
         return executor;
     }
@@ -575,6 +1366,56 @@ public abstract class NanoHTTPD {
             throw new TimeoutException("Could not stop the server in time.");
     }
 
+    /**
+     * Stop accepting connections and let the open ones finish before stopping the server. Requests in flight are
+     * answered with {@code Connection: close}, connections waiting for their next request are closed right away, and
+     * whatever is still open when the time runs out is closed as by {@link #stop()}.
+     * <p/>
+     * For a restart without downtime the new process starts serving on the listening socket it inherited from this
+     * one, see {@link org.nanohttpd.protocols.http.sockets.InheritedServerSocketFactory}, and this one drains.
+     *
+     * @param waitMs maximum milliseconds the open connections may take to finish.
+     * @return {@code false} if connections had to be closed because the time ran out.
+     * @see #isDraining()
+     */
+    public boolean drain(int waitMs) {
+        if (waitMs < 0)
+            throw new IllegalArgumentException("The time to wait cannot be negative.");
+
+        // sessions check this once they wait for a request, so each one either sees it or is seen idle below
+        draining = true;
+        safeClose(serverSocket);
+        serverSocket = null;
+        synchronized (this) {
+            // a connection finishing its request right now must not start a new watcher
+            safeClose(keepAliveEventLoop);
+        }
+        for (ClientRequestExecutor requestExecutor : connectionRegistry.getConnections())
+            requestExecutor.closeIfIdle();
+
+        boolean drained;
+        try {
+            drained = connectionRegistry.awaitEmpty(waitMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        if (!drained)
+            LOG.log(Level.WARNING, "{0} connections were still open after draining for {1} ms, closing them.",
+                    new Object[]{connectionRegistry.size(), waitMs});
+
+        stopBlockingPrivate(0);
+        return drained;
+    }
+
+    /**
+     * @return whether {@link #drain(int)} was called since the server was started. A draining server accepts no
+     * connections and closes every connection after its current response.
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
     /**
      * Stop listening for connection and do this without blocking the calling thread.
      *
@@ -584,11 +1425,30 @@ public abstract class NanoHTTPD {
     public void stopAsynchronously() {
         safeClose(serverSocket);
         serverSocket = null;
+        safeClose(keepAliveEventLoop);
+        safeClose(timingWheel);
 
-        if (isListening() && activeClientConnectionList.size() > 0) {
-            List<ClientRequestExecutor> copyList = new ArrayList<>(activeClientConnectionList);
-            for (ClientRequestExecutor requestExecutor : copyList)
+        for (ClientRequestExecutor requestExecutor : connectionRegistry.getConnections())
+            safeClose(requestExecutor);
+
+        for (ClientRequestExecutor requestExecutor : new ArrayList<>(suspendedConnections))
+            if (suspendedConnections.remove(requestExecutor))
                 safeClose(requestExecutor);
+
+        // the workers finish what they serve and stop, the next start creates a new pool
+        ExecutorService executorService = clientRequestExecutorService;
+        if (executorService != null)
+            executorService.shutdown();
+
+        synchronized (this) {
+            if (asyncTimer != null) {
+                asyncTimer.shutdownNow();
+                asyncTimer = null;
+            }
+            if (handlerWatchdog != null) {
+                handlerWatchdog.shutdownNow();
+                handlerWatchdog = null;
+            }
         }
     }
 
@@ -615,12 +1475,20 @@ public abstract class NanoHTTPD {
      */
     public abstract static class ServerExecutor implements Runnable {
         public final Object startupLock = new Object();
-        private ServerStartException startException = null;
-        private boolean started = false;
-        private boolean stopped = false;
+        private volatile ServerStartException startException = null;
+        private volatile boolean started = false;
+        private volatile boolean stopped = false;
+
+        /**
+         * Whether the server socket was created or failed to be, guarded by {@link #startupLock}.
+         */
+        private boolean initialized = false;
 
         @Override
         public final void run() {
+            synchronized (startupLock) {
+                initialized = false;
+            }
             started = false;
             stopped = false;
             NanoHTTPD server = getServer();
@@ -635,6 +1503,7 @@ public abstract class NanoHTTPD {
                         "the socket. See the cause error for details.", e);
             } finally {
                 synchronized (startupLock) {
+                    initialized = true;
                     startupLock.notifyAll();
                 }
             }
@@ -679,10 +1548,16 @@ public abstract class NanoHTTPD {
             if (isStopped())
                 throw new IllegalStateException("This executor already stopped");
 
-            if (!isStarted())
-                synchronized (startupLock) {
-                    startupLock.wait(ms);
+            // checked under the lock, the server thread may be done before this thread waits
+            long end = System.currentTimeMillis() + ms;
+            synchronized (startupLock) {
+                while (!initialized) {
+                    long wait = ms == 0 ? 0 : end - System.currentTimeMillis();
+                    if (ms != 0 && wait <= 0)
+                        return;
+                    startupLock.wait(wait);
                 }
+            }
         }
     }
 }
@@ -34,4 +34,13 @@ import java.net.Socket;
 
 public interface ClientRequestExecutor extends Closeable, Runnable {
     Socket getClientSocket();
+
+    /**
+     * Close the connection if it waits for its next request with none of it received yet, which a draining server
+     * does with all its connections.
+     *
+     * @return whether the connection was closed.
+     * @see org.nanohttpd.protocols.http.NanoHTTPD#drain(int)
+     */
+    boolean closeIfIdle();
 }
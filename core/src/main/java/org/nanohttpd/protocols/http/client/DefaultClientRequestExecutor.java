@@ -33,6 +33,8 @@ import org.nanohttpd.protocols.http.ConnectionClosedException;
 import org.nanohttpd.protocols.http.HTTPSession;
 import org.nanohttpd.protocols.http.HTTPSessionImpl;
 import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.AsyncResponse;
+import org.nanohttpd.protocols.http.server.EventLoop;
 import org.nanohttpd.protocols.http.tempfiles.TempFileManager;
 
 import java.io.IOException;
@@ -40,13 +42,22 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 
-public class DefaultClientRequestExecutor implements ClientRequestExecutor {
+/**
+ * Serves the requests of a client connection one after another with a single session. When the socket has a channel
+ * and the client has sent nothing else yet, the connection is parked on the server's keep-alive watcher between
+ * requests instead of blocking this thread, and comes back to the client request executor service once bytes arrive.
+ * A connection waiting for an asynchronous response is suspended the same way until the response is done.
+ */
+public class DefaultClientRequestExecutor implements ClientRequestExecutor, EventLoop.Client {
     private final NanoHTTPD server;
 
     private final Socket clientSocket;
 
+    private volatile HTTPSession session;
+
     public DefaultClientRequestExecutor(NanoHTTPD server, Socket clientSocket) {
         this.server = server;
         this.clientSocket = clientSocket;
@@ -54,34 +65,80 @@ public class DefaultClientRequestExecutor implements ClientRequestExecutor {
 
     @Override
     public void close() throws IOException {
+        server.unregisterConnection(this);
         clientSocket.close();
     }
 
     protected HTTPSession createSession(NanoHTTPD server, TempFileManager tempFileManager, InputStream inputStream,
                                         OutputStream outputStream, InetAddress clientAddress) {
-        return new HTTPSessionImpl(server, tempFileManager, inputStream, outputStream, clientAddress);
+        return new HTTPSessionImpl(server, tempFileManager, inputStream, outputStream, clientSocket);
     }
 
     public Socket getClientSocket() {
         return clientSocket;
     }
 
+    @Override
+    public boolean closeIfIdle() {
+        HTTPSession session = this.session;
+        return session instanceof HTTPSessionImpl && ((HTTPSessionImpl) session).closeIfIdle();
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        return clientSocket.getChannel();
+    }
+
+    @Override
+    public boolean onReadable() {
+        // the session reads the request itself, any byte (or the end of the stream) is reason to wake up
+        return true;
+    }
+
+    @Override
+    public void onHandOff() {
+        server.handleConnectionRequest(this);
+    }
+
+    /**
+     * @return the response the session is waiting for, {@code null} when it is not waiting.
+     */
+    private AsyncResponse getPendingResponse() {
+        return session instanceof HTTPSessionImpl ? ((HTTPSessionImpl) session).getPendingResponse() : null;
+    }
+
     @Override
     public void run() {
+        boolean parked = false;
         try {
-            InputStream inputStream = clientSocket.getInputStream();
-            OutputStream outputStream = clientSocket.getOutputStream();
-            TempFileManager tempFileManager = server.getTempFileManagerFactory().create();
+            if (session == null)
+                session = createSession(server, server.getTempFileManagerFactory().create(),
+                        clientSocket.getInputStream(), clientSocket.getOutputStream(), clientSocket.getInetAddress());
 
             while (!clientSocket.isClosed()) {
-                createSession(server, tempFileManager, inputStream, outputStream, clientSocket.getInetAddress()).execute();
+                session.execute();
+
+                AsyncResponse pending = getPendingResponse();
+                if (pending != null) {
+                    server.suspendConnection(this, pending);
+                    parked = true;
+                    return;
+                }
+
+                // bytes already buffered by the session would be invisible to the watcher
+                if (getChannel() != null && !clientSocket.isClosed() && session.getInputStream().available() == 0) {
+                    server.getKeepAliveEventLoop().register(this);
+                    parked = true;
+                    return;
+                }
             }
         } catch (ConnectionClosedException e) {
-            e.printStackTrace();
+            NanoHTTPD.LOG.log(Level.FINE, "Client connection closed.", e);
         } catch (Exception e) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client exited unexpectedly.", e);
         } finally {
-            NanoHTTPD.safeClose(this);
+            if (!parked)
+                NanoHTTPD.safeClose(this);
         }
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.client;
+
+import org.nanohttpd.protocols.http.ConnectionClosedException;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.HTTPSessionImpl;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.ReadDeadline;
+import org.nanohttpd.protocols.http.response.AsyncResponse;
+import org.nanohttpd.protocols.http.server.EventLoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+
+/**
+ * Serves a client connection that is watched by an {@link EventLoop} between requests. The loop reads the request
+ * header without blocking, and only when it is complete the connection is handed to a worker thread, which runs the
+ * regular {@link HTTPSessionImpl} over the bytes read so far followed by the socket stream. When the response is sent
+ * and nothing else is waiting, the connection goes back to the loop. While a response is pending the connection is
+ * suspended and the worker thread is free.
+ */
+public class NioClientRequestExecutor implements ClientRequestExecutor, EventLoop.Client {
+    private final NanoHTTPD server;
+
+    private final Socket clientSocket;
+
+    private final SocketChannel channel;
+
+    private final EventLoop eventLoop;
+
+    /**
+     * Bytes read by the event loop. Written to by the loop, then flipped and drained by the worker.
+     */
+    private final ByteBuffer prefetch = ByteBuffer.allocate(HTTPSessionImpl.BUFFER_SIZE);
+
+    private int scanned;
+
+    /**
+     * When the first byte of the request being read arrived, 0 before.
+     */
+    private long requestStart;
+
+    private volatile HTTPSession session;
+
+    public NioClientRequestExecutor(NanoHTTPD server, Socket clientSocket, EventLoop eventLoop) {
+        if (clientSocket.getChannel() == null)
+            throw new IllegalArgumentException("The client socket must have a channel.");
+
+        this.server = server;
+        this.clientSocket = clientSocket;
+        this.channel = clientSocket.getChannel();
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.unregisterConnection(this);
+        clientSocket.close();
+    }
+
+    @Override
+    public Socket getClientSocket() {
+        return clientSocket;
+    }
+
+    @Override
+    public boolean closeIfIdle() {
+        HTTPSession session = this.session;
+        return session instanceof HTTPSessionImpl && ((HTTPSessionImpl) session).closeIfIdle();
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public boolean onReadable() throws IOException {
+        if (channel.read(prefetch) < 0)
+            throw new ConnectionClosedException("Input closed.");
+        if (requestStart == 0 && prefetch.position() > 0)
+            requestStart = System.currentTimeMillis();
+
+        // past the header deadline the worker answers with 408 instead of the loop waiting for the rest
+        int headerDeadline = server.getReadDeadline(ReadDeadline.HEADER);
+        return !prefetch.hasRemaining() || isHeaderComplete()
+                || headerDeadline > 0 && System.currentTimeMillis() - requestStart >= headerDeadline;
+    }
+
+    @Override
+    public void onHandOff() {
+        prefetch.flip();
+        server.handleConnectionRequest(this);
+    }
+
+    /**
+     * Look for the empty line ending the request header in the bytes that arrived since the last call.
+     */
+    private boolean isHeaderComplete() {
+        int end = prefetch.position();
+        for (int i = Math.max(0, scanned - 3); i < end; i++) {
+            if (prefetch.get(i) != '\n')
+                continue;
+            if (i >= 1 && prefetch.get(i - 1) == '\n')
+                return true;
+            if (i >= 3 && prefetch.get(i - 1) == '\r' && prefetch.get(i - 2) == '\n' && prefetch.get(i - 3) == '\r')
+                return true;
+        }
+        scanned = end;
+        return false;
+    }
+
+    /**
+     * @return the response the session is waiting for, {@code null} when it is not waiting.
+     */
+    private AsyncResponse getPendingResponse() {
+        return session instanceof HTTPSessionImpl ? ((HTTPSessionImpl) session).getPendingResponse() : null;
+    }
+
+    @Override
+    public void run() {
+        boolean parked = false;
+        try {
+            if (session == null)
+                session = new HTTPSessionImpl(server, server.getTempFileManagerFactory().create(),
+                        new PrefetchedInputStream(clientSocket.getInputStream()), clientSocket.getOutputStream(),
+                        clientSocket);
+
+            // the deadlines of the request count from when the loop read its first byte
+            ((HTTPSessionImpl) session).setRequestStart(requestStart);
+            requestStart = 0;
+
+            // serve everything that is already here, pipelined requests included
+            do {
+                session.execute();
+
+                AsyncResponse pending = getPendingResponse();
+                if (pending != null) {
+                    server.suspendConnection(this, pending);
+                    parked = true;
+                    return;
+                }
+            } while (!clientSocket.isClosed() && session.getInputStream().available() > 0);
+
+            if (!clientSocket.isClosed()) {
+                prefetch.clear();
+                scanned = 0;
+                eventLoop.register(this);
+                parked = true;
+            }
+        } catch (ConnectionClosedException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Client connection closed.", e);
+        } catch (Exception e) {
+            NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client exited unexpectedly.", e);
+        } finally {
+            if (!parked)
+                NanoHTTPD.safeClose(this);
+        }
+    }
+
+    /**
+     * Returns the bytes the event loop has already read before reading from the socket itself.
+     */
+    private final class PrefetchedInputStream extends InputStream {
+        private final InputStream socketInputStream;
+
+        private PrefetchedInputStream(InputStream socketInputStream) {
+            this.socketInputStream = socketInputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return prefetch.hasRemaining() ? prefetch.get() & 0xff : socketInputStream.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!prefetch.hasRemaining())
+                return socketInputStream.read(b, off, len);
+
+            int count = Math.min(len, prefetch.remaining());
+            prefetch.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return prefetch.remaining() + socketInputStream.available();
+        }
+    }
+}
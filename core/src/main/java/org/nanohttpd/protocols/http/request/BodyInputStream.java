@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import org.nanohttpd.protocols.http.response.StatusCode;
+import org.nanohttpd.util.buffer.BufferPool;
+import org.nanohttpd.util.buffer.BufferPools;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a request, read from the connection stream up to where its framing says it ends, so that a handler
+ * cannot read into the next request. Closing it leaves the connection open. What the handler does not read is
+ * dropped with {@link #skipRest(long)} before the connection serves the next request.
+ * <p/>
+ * A read that breaks the framing or a limit fails with a {@link RequestBodyException}, as does every read after it.
+ * <p/>
+ * A client that sent {@code Expect: 100-continue} waits for {@code 100 Continue} before it sends the body, which is
+ * sent by the first read, see {@link #expectContinue(OutputStream)}. A request rejected without reading its body is
+ * answered without the client ever sending it.
+ */
+public abstract class BodyInputStream extends FilterInputStream {
+
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private RequestBodyException failure;
+
+    /**
+     * Where {@code 100 Continue} is sent to by the first read, {@code null} once it was sent or if it is not expected.
+     */
+    private OutputStream continueOut;
+
+    protected BodyInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return whether the body was read to its end.
+     */
+    public abstract boolean isFinished();
+
+    /**
+     * Send {@code 100 Continue} before the body is first read from the connection, for a client that waits for it.
+     *
+     * @param out the connection stream to send it to.
+     */
+    public void expectContinue(OutputStream out) {
+        this.continueOut = out;
+    }
+
+    /**
+     * @return whether the client waits for {@code 100 Continue}, which was not sent as nothing was read yet. The
+     * client may send the body or the next request, the connection has to be closed after the response then.
+     */
+    public boolean isContinueExpected() {
+        return continueOut != null;
+    }
+
+    /**
+     * @return the exception that failed a read, {@code null} if none did.
+     */
+    public RequestBodyException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Fail the body, the exception is thrown by this and every later read.
+     */
+    protected RequestBodyException fail(StatusCode status, String message) {
+        failure = new RequestBodyException(status, message);
+        return failure;
+    }
+
+    /**
+     * Called before reading from the connection. Throws the exception that failed an earlier read, if one did, and
+     * sends {@code 100 Continue} if the client waits for it.
+     */
+    protected void startRead() throws IOException {
+        if (failure != null)
+            throw failure;
+        if (continueOut != null) {
+            OutputStream out = continueOut;
+            continueOut = null;
+            out.write(CONTINUE);
+            out.flush();
+        }
+    }
+
+    /**
+     * Read and drop what is left of the body, so that the connection can go on with the next request.
+     *
+     * @param max maximum number of bytes to drop.
+     * @return {@code false} if more than that was left or the connection ended first, the connection cannot serve
+     * another request then.
+     * @throws IOException when the body cannot be read.
+     */
+    public boolean skipRest(long max) throws IOException {
+        if (isFinished())
+            return true;
+
+        BufferPool bufferPool = BufferPools.getDefault();
+        byte[] buf = bufferPool.acquire(SKIP_BUFFER_SIZE);
+        try {
+            // one byte past the limit tells a body that ends right at it from a larger one
+            long left = max;
+            while (left >= 0) {
+                int read = read(buf, 0, (int) Math.min(buf.length, left + 1));
+                if (read < 0)
+                    return isFinished();
+                left -= read;
+            }
+            return false;
+        } finally {
+            bufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Leaves the connection open.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
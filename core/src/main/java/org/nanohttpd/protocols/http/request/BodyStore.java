@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.tempfiles.TempFile;
+import org.nanohttpd.protocols.http.tempfiles.TempFileManager;
+import org.nanohttpd.util.buffer.BufferPool;
+import org.nanohttpd.util.buffer.BufferPools;
+import org.nanohttpd.util.buffer.ByteBufferInputStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds a request body in the cheapest place that fits it: small bodies in a pooled heap buffer, medium ones in a
+ * pooled direct buffer and only large ones in a temporary file, which is written in large blocks. A body of unknown
+ * size, i.e. a chunked one, starts in the heap and moves on as it grows. The size a client announces only picks the
+ * tier, buffers grow as the bytes arrive. Whichever tier holds it, the body is read as a {@link ByteBuffer} or a
+ * stream.
+ */
+public class BodyStore implements Closeable {
+
+    /**
+     * Where a body is held.
+     */
+    public enum Tier {
+        HEAP,
+        DIRECT,
+        FILE
+    }
+
+    /**
+     * Size of the blocks the body is read in and written to a temporary file in.
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final TempFileManager tempFileManager;
+
+    private final int heapLimit;
+
+    private final int directLimit;
+
+    private final long expectedSize;
+
+    private final BufferPool heapPool = BufferPools.getDefault();
+
+    private final BufferPool directPool = BufferPools.getDirect();
+
+    private Tier tier = Tier.HEAP;
+
+    private byte[] heap;
+
+    private ByteBuffer direct;
+
+    private RandomAccessFile file;
+
+    private byte[] block;
+
+    private int blockLength;
+
+    private ByteBuffer mapped;
+
+    private long size;
+
+    /**
+     * @param tempFileManager creates the temporary file of a large body.
+     * @param heapLimit       largest body held in the heap.
+     * @param directLimit     largest body held in direct memory, at least the heap limit.
+     * @param expectedSize    size of the body if it is known, otherwise -1.
+     */
+    public BodyStore(TempFileManager tempFileManager, int heapLimit, int directLimit, long expectedSize) {
+        if (heapLimit < 0 || directLimit < heapLimit)
+            throw new IllegalArgumentException("Invalid body store limits: " + heapLimit + "/" + directLimit);
+
+        this.tempFileManager = tempFileManager;
+        this.heapLimit = heapLimit;
+        this.directLimit = directLimit;
+        this.expectedSize = expectedSize;
+        if (expectedSize > directLimit)
+            this.tier = Tier.FILE;
+        else if (expectedSize > heapLimit)
+            this.tier = Tier.DIRECT;
+    }
+
+    /**
+     * Read a stream to its end or until a number of bytes has been read.
+     *
+     * @param max maximum number of bytes to read.
+     */
+    public void readFrom(InputStream in, long max) throws IOException {
+        byte[] buf = heapPool.acquire(BLOCK_SIZE);
+        try {
+            int read = 0;
+            while (true) {
+                int count = max > 0 ? in.read(buf, read, (int) Math.min(max, BLOCK_SIZE - read)) : -1;
+                if (count > 0) {
+                    read += count;
+                    max -= count;
+                }
+                if (count < 0 || read == BLOCK_SIZE) {
+                    write(buf, 0, read);
+                    read = 0;
+                }
+                if (count < 0)
+                    break;
+            }
+        } finally {
+            heapPool.release(buf);
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return;
+        if (mapped != null)
+            throw new IllegalStateException("The body has already been read.");
+
+        reserve(size + len);
+        switch (tier) {
+            case HEAP:
+                System.arraycopy(b, off, heap, (int) size, len);
+                break;
+            case DIRECT:
+                direct.put(b, off, len);
+                break;
+            default:
+                writeFile(b, off, len);
+        }
+        size += len;
+    }
+
+    /**
+     * Make room for a body of a size, moving it to the next tier if it no longer fits its own.
+     */
+    private void reserve(long needed) throws IOException {
+        if (tier == Tier.HEAP) {
+            if (needed <= heapLimit) {
+                if (heap == null || heap.length < needed) {
+                    byte[] grown = heapPool.acquire(grow(needed, heapLimit));
+                    if (heap != null) {
+                        System.arraycopy(heap, 0, grown, 0, (int) size);
+                        heapPool.release(heap);
+                    }
+                    heap = grown;
+                }
+                return;
+            }
+            tier = needed <= directLimit ? Tier.DIRECT : Tier.FILE;
+        }
+        if (tier == Tier.DIRECT) {
+            if (needed <= directLimit) {
+                if (direct == null || direct.capacity() < needed) {
+                    ByteBuffer grown = directPool.acquireByteBuffer(grow(needed, directLimit));
+                    if (direct != null) {
+                        direct.flip();
+                        grown.put(direct);
+                        directPool.release(direct);
+                    } else if (heap != null) {
+                        grown.put(heap, 0, (int) size);
+                        heapPool.release(heap);
+                        heap = null;
+                    }
+                    direct = grown;
+                }
+                return;
+            }
+            tier = Tier.FILE;
+        }
+        if (file == null) {
+            openFile();
+            if (heap != null) {
+                writeFile(heap, 0, (int) size);
+                heapPool.release(heap);
+                heap = null;
+            } else if (direct != null) {
+                direct.flip();
+                writeFully(direct);
+                directPool.release(direct);
+                direct = null;
+            }
+        }
+    }
+
+    /**
+     * @return the size to grow a buffer to: twice the body so far, but no more than the announced size while the body
+     * keeps to it, nor more than the limit of the tier.
+     */
+    private int grow(long needed, int limit) {
+        long target = Math.max(needed, 2L * size);
+        if (expectedSize >= needed)
+            target = Math.min(target, expectedSize);
+        return (int) Math.min(limit, target);
+    }
+
+    private void openFile() throws IOException {
+        try {
+            TempFile tempFile = tempFileManager.createTempFile(null);
+            file = new RandomAccessFile(tempFile.getName(), "rw");
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not create a temporary file for the request body.", e);
+        }
+    }
+
+    /**
+     * Write through a block buffer, so the file sees few large writes however the body arrives.
+     */
+    private void writeFile(byte[] b, int off, int len) throws IOException {
+        if (blockLength + len > BLOCK_SIZE)
+            flushBlock();
+        if (len >= BLOCK_SIZE) {
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (block == null)
+            block = heapPool.acquire(BLOCK_SIZE);
+        System.arraycopy(b, off, block, blockLength, len);
+        blockLength += len;
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockLength > 0) {
+            writeFully(ByteBuffer.wrap(block, 0, blockLength));
+            blockLength = 0;
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        FileChannel channel = file.getChannel();
+        while (src.hasRemaining())
+            channel.write(src);
+    }
+
+    /**
+     * @return the body as a read-only buffer of its own, from position 0 to its size. No more can be written once the
+     * body has been read.
+     */
+    public ByteBuffer getByteBuffer() throws IOException {
+        if (mapped == null) {
+            switch (tier) {
+                case HEAP:
+                    mapped = heap == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(heap, 0, (int) size).slice();
+                    break;
+                case DIRECT:
+                    if (direct == null) {
+                        mapped = ByteBuffer.allocate(0);
+                        break;
+                    }
+                    ByteBuffer view = direct.duplicate();
+                    view.flip();
+                    mapped = view.slice();
+                    break;
+                default:
+                    if (file == null) {
+                        mapped = ByteBuffer.allocate(0);
+                        break;
+                    }
+                    flushBlock();
+                    mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            mapped = mapped.asReadOnlyBuffer();
+        }
+        return mapped.duplicate();
+    }
+
+    /**
+     * @return a stream over the whole body, independent of other streams and buffers of it.
+     */
+    public InputStream getInputStream() throws IOException {
+        return new ByteBufferInputStream(getByteBuffer());
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Tier getTier() {
+        return tier;
+    }
+
+    /**
+     * Return the buffers to their pools. Buffers and streams of the body must no longer be read, the temporary file is
+     * deleted with the other temporary files of the request.
+     */
+    @Override
+    public void close() {
+        if (heap != null)
+            heapPool.release(heap);
+        if (direct != null)
+            directPool.release(direct);
+        if (block != null)
+            heapPool.release(block);
+        heap = null;
+        direct = null;
+        block = null;
+        mapped = null;
+        NanoHTTPD.safeClose(file);
+        file = null;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a request body sent with {@code Transfer-Encoding: chunked} while it is being read, so that a body of
+ * unknown length reaches the handler without being buffered. Chunk extensions and trailer fields are skipped. The end
+ * of the stream is reported after the last chunk and its trailer, which leaves the connection stream at the start of
+ * the next request.
+ * <p/>
+ * A malformed chunk, a chunk size line or trailer larger than the header limit and a body larger than its limit fail
+ * the read. A chunk size is hex digits, optionally followed by an extension after {@code ;}, and every line ends with
+ * CRLF: a body that other servers could split into chunks differently is refused rather than guessed at.
+ */
+public class ChunkedInputStream extends BodyInputStream {
+
+    /**
+     * A chunk size with more hex digits does not fit a long.
+     */
+    private static final int MAX_SIZE_DIGITS = 15;
+
+    private final long maxBodySize;
+
+    private final int maxLineSize;
+
+    /**
+     * Bytes left of the current chunk.
+     */
+    private long remaining;
+
+    private long total;
+
+    /**
+     * Whether the data of a chunk was read and its line break has not been.
+     */
+    private boolean inChunk;
+
+    private boolean finished;
+
+    /**
+     * @param in          the connection stream, positioned at the start of the body.
+     * @param maxBodySize maximum size of the decoded body in bytes, 0 for no limit.
+     * @param maxLineSize maximum size of a chunk size line and of the trailer in bytes.
+     */
+    public ChunkedInputStream(InputStream in, long maxBodySize, int maxLineSize) {
+        super(in);
+        this.maxBodySize = maxBodySize;
+        this.maxLineSize = maxLineSize;
+    }
+
+    /**
+     * @return whether the last chunk and the trailer were read.
+     */
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the size of the body read so far, as decoded.
+     */
+    public long getBodySize() {
+        return total - remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk())
+            return -1;
+
+        int b = in.read();
+        if (b < 0)
+            throw fail(DefaultStatusCode.BAD_REQUEST, "The chunked body ended within a chunk.");
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!nextChunk())
+            return -1;
+
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read < 0)
+            throw fail(DefaultStatusCode.BAD_REQUEST, "The chunked body ended within a chunk.");
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !nextChunk())
+            return 0;
+
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return inChunk && remaining > 0 ? (int) Math.min(remaining, in.available()) : 0;
+    }
+
+    /**
+     * Read up to the data of the next chunk unless the current one has some left.
+     *
+     * @return {@code false} at the end of the body.
+     */
+    private boolean nextChunk() throws IOException {
+        startRead();
+        if (remaining > 0)
+            return true;
+        if (finished)
+            return false;
+
+        if (inChunk) {
+            int b = in.read();
+            if (b == '\r')
+                b = in.read();
+            else if (b >= 0)
+                throw fail(DefaultStatusCode.BAD_REQUEST, "A chunk is longer than its size.");
+            if (b != '\n')
+                throw fail(DefaultStatusCode.BAD_REQUEST, b < 0 ? "The chunked body ended before its last chunk."
+                        : "A chunk does not end with CRLF.");
+            inChunk = false;
+        }
+
+        long size = readChunkSize();
+        if (size == 0) {
+            // trailer fields up to the empty line, within the same limit as the header
+            int trailer = 0;
+            int line;
+            while ((line = readTrailerField()) > 0) {
+                trailer += line;
+                if (trailer > maxLineSize)
+                    throw fail(DefaultStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "The trailer is too large.");
+            }
+            finished = true;
+            return false;
+        }
+
+        total += size;
+        if (maxBodySize > 0 && total > maxBodySize)
+            throw fail(DefaultStatusCode.PAYLOAD_TOO_LARGE, "The body is larger than " + maxBodySize + " bytes.");
+        remaining = size;
+        inChunk = true;
+        return true;
+    }
+
+    private long readChunkSize() throws IOException {
+        long size = 0;
+        int digits = 0;
+        int length = 0;
+        boolean extension = false;
+        int b;
+        while ((b = readLineByte()) >= 0) {
+            if (++length > maxLineSize)
+                throw fail(DefaultStatusCode.BAD_REQUEST, "A chunk size line is too long.");
+            if (extension)
+                continue;
+            if (b == ';' && digits > 0) {
+                extension = true;
+                continue;
+            }
+
+            int digit = hexDigit(b);
+            if (digit < 0)
+                throw fail(DefaultStatusCode.BAD_REQUEST, "Invalid chunk size.");
+            if (++digits > MAX_SIZE_DIGITS)
+                throw fail(DefaultStatusCode.PAYLOAD_TOO_LARGE, "A chunk is too large.");
+            size = size << 4 | digit;
+        }
+        if (digits == 0)
+            throw fail(DefaultStatusCode.BAD_REQUEST, "Missing chunk size.");
+        return size;
+    }
+
+    private static int hexDigit(int b) {
+        if (b >= '0' && b <= '9')
+            return b - '0';
+        if (b >= 'a' && b <= 'f')
+            return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F')
+            return b - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Read a byte of a chunk size line or trailer field.
+     *
+     * @return the byte, or -1 at the CRLF that ends the line.
+     */
+    private int readLineByte() throws IOException {
+        int b = in.read();
+        boolean cr = b == '\r';
+        if (cr)
+            b = in.read();
+        if (b < 0)
+            throw fail(DefaultStatusCode.BAD_REQUEST, "The chunked body ended before its last chunk.");
+        if (cr && b == '\n')
+            return -1;
+        if (cr || b == '\n')
+            throw fail(DefaultStatusCode.BAD_REQUEST, "A line of the chunked body does not end with CRLF.");
+        return b;
+    }
+
+    /**
+     * Read a trailer field.
+     *
+     * @return its length without the line break.
+     */
+    private int readTrailerField() throws IOException {
+        int length = 0;
+        while (readLineByte() >= 0) {
+            if (++length > maxLineSize)
+                throw fail(DefaultStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "A trailer field is too large.");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.ResponseException;
+import org.nanohttpd.protocols.http.tempfiles.TempFile;
+import org.nanohttpd.protocols.http.tempfiles.TempFileManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the parts of a multipart/form-data body the way
+ * {@link org.nanohttpd.protocols.http.HTTPSession#parseBody(Map)} returns them: parts with a content type are written
+ * straight to a temporary file, whose path goes to the files and whose file name goes to the parameters, the others
+ * are form fields that go to the parameters.
+ */
+public class FormDataCollector implements MultipartListener, Closeable {
+
+    private final TempFileManager tempFileManager;
+
+    private final Map<String, List<String>> parms;
+
+    private final Map<String, String> files;
+
+    private final Charset charset;
+
+    private final int maxFieldSize;
+
+    private int pcount;
+
+    private String partName;
+
+    private ByteArrayOutputStream field;
+
+    private TempFile tempFile;
+
+    private OutputStream file;
+
+    private long fileSize;
+
+    /**
+     * @param charset      decodes the form fields.
+     * @param maxFieldSize maximum size in bytes of a form field, 0 for no limit.
+     */
+    public FormDataCollector(TempFileManager tempFileManager, Map<String, List<String>> parms,
+                             Map<String, String> files, Charset charset, int maxFieldSize) {
+        this.tempFileManager = tempFileManager;
+        this.parms = parms;
+        this.files = files;
+        this.charset = charset;
+        this.maxFieldSize = maxFieldSize;
+    }
+
+    @Override
+    public void partStarted(MultipartPart part) throws IOException {
+        partName = part.getName();
+        String fileName = part.getFileName();
+        if (fileName != null && !fileName.isEmpty()) {
+            // support multiple files uploaded using the same field Id
+            if (pcount > 0)
+                partName = partName + pcount++;
+            else
+                pcount++;
+        }
+
+        if (part.getContentType() == null) {
+            field = new ByteArrayOutputStream();
+            return;
+        }
+        try {
+            tempFile = tempFileManager.createTempFile(fileName);
+            file = tempFile.open();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not create a temporary file for an uploaded file.", e);
+        }
+        fileSize = 0;
+    }
+
+    @Override
+    public void partData(byte[] b, int off, int len) throws IOException, ResponseException {
+        if (field != null) {
+            if (maxFieldSize > 0 && field.size() + len > maxFieldSize) {
+                throw new ResponseException(DefaultStatusCode.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Form field "
+                        + partName + " exceeds " + maxFieldSize + " bytes.");
+            }
+            field.write(b, off, len);
+        } else {
+            file.write(b, off, len);
+            fileSize += len;
+        }
+    }
+
+    @Override
+    public void partEnded(MultipartPart part) throws IOException {
+        List<String> values = parms.get(partName);
+        if (values == null) {
+            values = new ArrayList<>();
+            parms.put(partName, values);
+        }
+
+        if (field != null) {
+            values.add(new String(field.toByteArray(), charset));
+            field = null;
+            return;
+        }
+
+        file.close();
+        file = null;
+        String path = fileSize > 0 ? tempFile.getName() : "";
+        tempFile = null;
+        if (!files.containsKey(partName)) {
+            files.put(partName, path);
+        } else {
+            int count = 2;
+            while (files.containsKey(partName + count)) {
+                count++;
+            }
+            files.put(partName + count, path);
+        }
+        values.add(part.getFileName());
+    }
+
+    /**
+     * Close the file of a part the body ended in.
+     */
+    @Override
+    public void close() {
+        NanoHTTPD.safeClose(file);
+        file = null;
+    }
+}
@@ -30,6 +30,8 @@
 
 package org.nanohttpd.protocols.http.request;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * HTTP Request methods, with the ability to decode a <code>String</code> back
  * to its enum value.
@@ -54,6 +56,8 @@ public enum Method {
     NOTIFY,
     SUBSCRIBE;
 
+    private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
     public static Method lookup(String method) {
         if (method == null)
             return null;
@@ -65,4 +69,70 @@ public enum Method {
             return null;
         }
     }
+
+    /**
+     * Decode a method name straight from the request bytes, without creating a
+     * <code>String</code>. Like {@link #lookup(String)} the name is case
+     * sensitive.
+     *
+     * @return the method, or null when the bytes name none of them.
+     */
+    public static Method lookup(byte[] buf, int offset, int length) {
+        if (length < 3)
+            return null;
+
+        Method method;
+        switch (buf[offset]) {
+            case 'G':
+                method = GET;
+                break;
+            case 'P':
+                method = length == 3 ? PUT : length == 4 ? POST : length == 5 ? PATCH : length == 8 ? PROPFIND :
+                        PROPPATCH;
+                break;
+            case 'D':
+                method = DELETE;
+                break;
+            case 'H':
+                method = HEAD;
+                break;
+            case 'O':
+                method = OPTIONS;
+                break;
+            case 'T':
+                method = TRACE;
+                break;
+            case 'C':
+                method = length == 4 ? COPY : CONNECT;
+                break;
+            case 'M':
+                method = length == 4 ? MOVE : MKCOL;
+                break;
+            case 'L':
+                method = LOCK;
+                break;
+            case 'U':
+                method = UNLOCK;
+                break;
+            case 'N':
+                method = NOTIFY;
+                break;
+            case 'S':
+                method = SUBSCRIBE;
+                break;
+            default:
+                return null;
+        }
+        return method.matches(buf, offset, length) ? method : null;
+    }
+
+    private boolean matches(byte[] buf, int offset, int length) {
+        if (length != bytes.length)
+            return false;
+
+        for (int i = 1; i < length; i++)
+            if (buf[offset + i] != bytes[i])
+                return false;
+        return true;
+    }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.ResponseException;
+import org.nanohttpd.util.buffer.BufferPool;
+import org.nanohttpd.util.buffer.BufferPools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses a multipart/form-data body in a single pass while it is read. The content of each part is handed to a
+ * {@link MultipartListener} in large slices of one buffer, so a part is never held whole and is copied only once, by
+ * the listener to wherever it goes.
+ */
+public class MultipartParser {
+
+    /**
+     * Size of the buffer the body is read in, unless a part header needs more.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] delimiter;
+
+    private final Charset charset;
+
+    private final int maxHeaderSize;
+
+    private final int maxParts;
+
+    private byte[] buf;
+
+    private int pos;
+
+    private int end;
+
+    /**
+     * @param boundary      the boundary of the body, from its content type.
+     * @param charset       decodes the header fields of the parts.
+     * @param maxHeaderSize maximum size in bytes of the header of a part.
+     * @param maxParts      maximum number of parts, 0 for no limit.
+     */
+    public MultipartParser(String boundary, Charset charset, int maxHeaderSize, int maxParts) {
+        this.delimiter = ("\r\n--" + boundary).getBytes(charset);
+        this.charset = charset;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxParts = maxParts;
+    }
+
+    /**
+     * Read a body up to its closing boundary, whatever follows it is left in the stream.
+     */
+    public void parse(InputStream in, MultipartListener listener) throws IOException, ResponseException {
+        BufferPool bufferPool = BufferPools.getDefault();
+        buf = bufferPool.acquire(Math.max(BUFFER_SIZE, maxHeaderSize + delimiter.length));
+        try {
+            // the first boundary need not follow a line break, pretend one to find it like the others
+            buf[0] = '\r';
+            buf[1] = '\n';
+            pos = 0;
+            end = 2;
+            if (!scan(in, null)) {
+                throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is "
+                        + "multipart/form-data but the body has no boundary.");
+            }
+
+            int parts = 0;
+            while (true) {
+                if (!fill(in, 2))
+                    throw endsEarly();
+                if (buf[pos] == '-' && buf[pos + 1] == '-')
+                    return;
+                if (readLine(in, maxHeaderSize).trim().length() != 0) {
+                    throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is "
+                            + "multipart/form-data but a boundary is not followed by a line break.");
+                }
+                if (maxParts > 0 && ++parts > maxParts) {
+                    throw new ResponseException(DefaultStatusCode.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: The body "
+                            + "has more than " + maxParts + " parts.");
+                }
+
+                MultipartPart part = readPartHeader(in);
+                listener.partStarted(part);
+                if (!scan(in, listener))
+                    throw endsEarly();
+                listener.partEnded(part);
+            }
+        } finally {
+            bufferPool.release(buf);
+            buf = null;
+        }
+    }
+
+    private static ResponseException endsEarly() {
+        return new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Content type is "
+                + "multipart/form-data but the body ends before its closing boundary.");
+    }
+
+    private ResponseException headerTooLarge() {
+        return new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Multipart header size exceeds "
+                + maxHeaderSize + " bytes.");
+    }
+
+    private MultipartPart readPartHeader(InputStream in) throws IOException, ResponseException {
+        Map<String, String> headers = new HashMap<>();
+        int left = maxHeaderSize;
+        String line;
+        while ((line = readLine(in, left)).length() != 0) {
+            left -= line.length() + 2;
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1)
+                        .trim());
+            }
+        }
+        return new MultipartPart(headers);
+    }
+
+    /**
+     * @return the next line without its line break, which may be a bare LF.
+     */
+    private String readLine(InputStream in, int limit) throws IOException, ResponseException {
+        int scanned = 0;
+        while (true) {
+            for (int i = pos + scanned; i < end; i++) {
+                if (buf[i] == '\n') {
+                    if (i - pos >= limit)
+                        throw headerTooLarge();
+                    int lineEnd = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buf, pos, lineEnd - pos, charset);
+                    pos = i + 1;
+                    return line;
+                }
+            }
+            scanned = end - pos;
+            if (scanned >= limit)
+                throw headerTooLarge();
+            if (!fill(in, scanned + 1))
+                throw endsEarly();
+        }
+    }
+
+    /**
+     * Hand everything up to the next delimiter to a listener, or drop it if there is none, and move past the
+     * delimiter. The bytes that may start a delimiter are held back until more has been read.
+     *
+     * @return false if the body ends without another delimiter.
+     */
+    private boolean scan(InputStream in, MultipartListener listener) throws IOException, ResponseException {
+        while (true) {
+            int match = indexOfDelimiter();
+            if (match >= 0) {
+                if (listener != null && match > pos)
+                    listener.partData(buf, pos, match - pos);
+                pos = match + delimiter.length;
+                return true;
+            }
+
+            int safe = Math.max(pos, end - delimiter.length + 1);
+            if (listener != null && safe > pos)
+                listener.partData(buf, pos, safe - pos);
+            pos = safe;
+            if (!fill(in, end - pos + 1))
+                return false;
+        }
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        int last = end - delimiter.length;
+        for (int i = pos; i <= last; i++) {
+            if (buf[i] != first)
+                continue;
+            int j = 1;
+            while (j < delimiter.length && buf[i + j] == delimiter[j])
+                j++;
+            if (j == delimiter.length)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Read until at least a number of unconsumed bytes are buffered, moving them to the start of the buffer first.
+     *
+     * @return false if the body ends before.
+     */
+    private boolean fill(InputStream in, int count) throws IOException {
+        if (end - pos >= count)
+            return true;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, end - pos);
+            end -= pos;
+            pos = 0;
+        }
+        while (end < count) {
+            int read = in.read(buf, end, buf.length - end);
+            if (read < 0)
+                return false;
+            end += read;
+        }
+        return true;
+    }
+}
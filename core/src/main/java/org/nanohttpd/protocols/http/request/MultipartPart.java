@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The headers of a part of a multipart/form-data body.
+ */
+public class MultipartPart {
+
+    private final Map<String, String> headers;
+
+    private final String name;
+
+    private final String fileName;
+
+    /**
+     * @param headers the header fields of the part, by lower case name.
+     */
+    public MultipartPart(Map<String, String> headers) {
+        this.headers = Collections.unmodifiableMap(headers);
+
+        String name = null, fileName = null;
+        String disposition = headers.get("content-disposition");
+        int i = disposition == null ? -1 : disposition.indexOf(';');
+        while (i >= 0 && i < disposition.length()) {
+            int eq = disposition.indexOf('=', i);
+            if (eq < 0)
+                break;
+            int semicolon = disposition.indexOf(';', i + 1);
+            if (semicolon >= 0 && semicolon < eq) {
+                // a parameter without a value
+                i = semicolon;
+                continue;
+            }
+            String key = disposition.substring(i + 1, eq).trim();
+
+            // the value is a token or a quoted string, which may contain the separator
+            int start = eq + 1;
+            while (start < disposition.length() && disposition.charAt(start) == ' ')
+                start++;
+            String value;
+            int next;
+            char quote = start < disposition.length() ? disposition.charAt(start) : 0;
+            if (quote == '"' || quote == '\'') {
+                StringBuilder sb = new StringBuilder();
+                next = start + 1;
+                while (next < disposition.length() && disposition.charAt(next) != quote) {
+                    char c = disposition.charAt(next++);
+                    if (c == '\\' && quote == '"' && next < disposition.length())
+                        c = disposition.charAt(next++);
+                    sb.append(c);
+                }
+                value = sb.toString();
+                next = disposition.indexOf(';', next);
+            } else {
+                next = disposition.indexOf(';', start);
+                value = disposition.substring(start, next < 0 ? disposition.length() : next).trim();
+            }
+
+            if ("name".equalsIgnoreCase(key))
+                name = value;
+            else if ("filename".equalsIgnoreCase(key))
+                fileName = value;
+            i = next;
+        }
+        this.name = name;
+        this.fileName = fileName;
+    }
+
+    /**
+     * @return the header fields of the part, by lower case name.
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the name of the form field, or {@code null} if the part has none.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the name of the uploaded file as sent by the client, or {@code null} if the part is not a file.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the content type of the part, or {@code null} if it was not given.
+     */
+    public String getContentType() {
+        return headers.get("content-type");
+    }
+}
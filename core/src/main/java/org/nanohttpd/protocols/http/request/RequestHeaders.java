@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The header fields of a request as a map with lower case names, read from a {@link RequestParser}. Looking up a
+ * field only creates the string of its value. The fields are copied into a <code>HashMap</code> the first time the
+ * map is changed or iterated, from then on it behaves like one.
+ * <p/>
+ * Besides the fields of the request the map holds the address of the client as {@code remote-addr} and
+ * {@code http-client-ip}.
+ */
+public class RequestHeaders extends AbstractMap<String, String> {
+
+    private static final String REMOTE_ADDR = "remote-addr",
+            HTTP_CLIENT_IP = "http-client-ip";
+
+    private final RequestParser parser;
+
+    private final String remoteIp;
+
+    private final Map<String, String> copy = new HashMap<>();
+
+    private boolean copied;
+
+    public RequestHeaders(RequestParser parser, String remoteIp) {
+        this.parser = parser;
+        this.remoteIp = remoteIp;
+    }
+
+    /**
+     * Drop the copy of the fields, for the next request read by the parser. The map itself is kept.
+     */
+    public void reset() {
+        if (copied) {
+            copy.clear();
+            copied = false;
+        }
+    }
+
+    private boolean isRemoteAddress(Object key) {
+        return remoteIp != null && (REMOTE_ADDR.equals(key) || HTTP_CLIENT_IP.equals(key));
+    }
+
+    private Map<String, String> copy() {
+        if (!copied) {
+            copied = true;
+            for (int field = 0; field < parser.getHeaderCount(); field++)
+                copy.put(parser.getHeaderName(field), parser.getHeaderValue(field));
+            if (remoteIp != null) {
+                copy.put(REMOTE_ADDR, remoteIp);
+                copy.put(HTTP_CLIENT_IP, remoteIp);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (copied)
+            return copy.get(key);
+        if (isRemoteAddress(key))
+            return remoteIp;
+        if (!(key instanceof String))
+            return null;
+
+        int field = parser.indexOfHeader((String) key);
+        return field < 0 ? null : parser.getHeaderValue(field);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (copied)
+            return copy.containsKey(key);
+        return isRemoteAddress(key) || key instanceof String && parser.indexOfHeader((String) key) >= 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return copied ? copy.isEmpty() : remoteIp == null && parser.getHeaderCount() == 0;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return copy().put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        return copy().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        copy().clear();
+    }
+
+    @Override
+    public int size() {
+        return copy().size();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return copy().entrySet();
+    }
+}
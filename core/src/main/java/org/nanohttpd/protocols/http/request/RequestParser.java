@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.request;
+
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.ResponseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the request line and the header fields of a request into a byte buffer and splits them by remembering
+ * offsets, without creating a <code>String</code> for anything. Strings are only made for the parts somebody asks for.
+ * <p/>
+ * The buffer starts small and grows up to the maximum header size, a request with a larger header is answered with
+ * 431. It is kept for the next request on the connection after {@link #reset()}.
+ * <p/>
+ * The header fields that the server looks at itself are recognized while parsing and can be queried by their
+ * constant, e.g. {@link #CONNECTION}.
+ */
+public class RequestParser {
+
+    public static final int CONNECTION = 0,
+            CONTENT_LENGTH = 1,
+            CONTENT_TYPE = 2,
+            TRANSFER_ENCODING = 3,
+            ACCEPT_ENCODING = 4,
+            COOKIE = 5,
+            HOST = 6,
+            EXPECT = 7;
+
+    private static final byte[][] KNOWN_HEADERS = {
+            bytes("connection"),
+            bytes("content-length"),
+            bytes("content-type"),
+            bytes("transfer-encoding"),
+            bytes("accept-encoding"),
+            bytes("cookie"),
+            bytes("host"),
+            bytes("expect")
+    };
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final int REQUEST_LINE = 0,
+            HEADERS = 1,
+            COMPLETE = 2;
+
+    private static final String HTTP_1_0 = "HTTP/1.0",
+            HTTP_1_1 = "HTTP/1.1";
+
+    private static final byte[] HTTP_1_0_BYTES = bytes(HTTP_1_0),
+            HTTP_1_1_BYTES = bytes(HTTP_1_1);
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private final int maxHeaderSize;
+
+    private byte[] buffer;
+
+    private int length;
+
+    private int position;
+
+    private int lineStart;
+
+    private int state;
+
+    private int headerEnd;
+
+    private int methodStart, methodEnd;
+
+    private int targetStart, targetEnd;
+
+    private int versionStart, versionEnd;
+
+    // name start, name end, value start and value end of every header field
+    private int[] fields = new int[64];
+
+    private int fieldCount;
+
+    private final int[] known = new int[KNOWN_HEADERS.length];
+
+    public RequestParser(int maxHeaderSize) {
+        if (maxHeaderSize <= 0)
+            throw new IllegalArgumentException("The maximum header size must be positive.");
+
+        this.maxHeaderSize = maxHeaderSize;
+        this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, maxHeaderSize)];
+        reset();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Forget the last request, keeping the buffer for the next one.
+     */
+    public void reset() {
+        length = 0;
+        position = 0;
+        lineStart = 0;
+        state = REQUEST_LINE;
+        headerEnd = 0;
+        methodStart = methodEnd = 0;
+        targetStart = targetEnd = 0;
+        versionStart = versionEnd = 0;
+        fieldCount = 0;
+        Arrays.fill(known, -1);
+    }
+
+    /**
+     * Read once from the stream into the buffer, growing it when it is full.
+     *
+     * @return the number of bytes read, -1 at the end of the stream.
+     * @throws ResponseException when the header does not fit into the maximum header size.
+     */
+    public int read(InputStream in) throws IOException, ResponseException {
+        if (length == buffer.length) {
+            if (length >= maxHeaderSize)
+                throw new ResponseException(DefaultStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request header " +
+                        "exceeds " + maxHeaderSize + " bytes.");
+            buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxHeaderSize));
+        }
+
+        int read = in.read(buffer, length, buffer.length - length);
+        if (read > 0)
+            length += read;
+        return read;
+    }
+
+    /**
+     * Parse the bytes read since the last call.
+     *
+     * @return whether the header is complete.
+     * @throws ResponseException when the request line is malformed.
+     */
+    public boolean parse() throws ResponseException {
+        while (state != COMPLETE) {
+            int end = position;
+            while (end < length && buffer[end] != '\n')
+                end++;
+            if (end == length) {
+                position = length;
+                return false;
+            }
+
+            position = end + 1;
+            parseLine(lineStart, end);
+            lineStart = position;
+        }
+        return true;
+    }
+
+    /**
+     * Take the end of the stream as the end of the header, the way lenient clients end a request without an empty
+     * line.
+     *
+     * @throws ResponseException when there is no request line.
+     */
+    public void finish() throws ResponseException {
+        if (state == COMPLETE)
+            return;
+
+        if (lineStart < length)
+            parseLine(lineStart, length);
+        if (state == REQUEST_LINE)
+            throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET " +
+                    "/example/file.html");
+        state = COMPLETE;
+        headerEnd = length;
+    }
+
+    private void parseLine(int start, int end) throws ResponseException {
+        while (start < end && isWhitespace(buffer[start]))
+            start++;
+        while (end > start && isWhitespace(buffer[end - 1]))
+            end--;
+
+        if (state == REQUEST_LINE) {
+            // an empty line before the request line is skipped, like a CRLF a client sent after a body
+            if (start < end)
+                parseRequestLine(start, end);
+        } else if (start == end) {
+            state = COMPLETE;
+            headerEnd = position;
+        } else {
+            parseHeaderField(start, end);
+        }
+    }
+
+    private void parseRequestLine(int start, int end) throws ResponseException {
+        int i = start;
+        while (i < end && !isWhitespace(buffer[i]))
+            i++;
+        methodStart = start;
+        methodEnd = i;
+
+        while (i < end && isWhitespace(buffer[i]))
+            i++;
+        if (i == end)
+            throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET " +
+                    "/example/file.html");
+        targetStart = i;
+        while (i < end && !isWhitespace(buffer[i]))
+            i++;
+        targetEnd = i;
+
+        while (i < end && isWhitespace(buffer[i]))
+            i++;
+        versionStart = i;
+        while (i < end && !isWhitespace(buffer[i]))
+            i++;
+        versionEnd = i;
+
+        state = HEADERS;
+    }
+
+    private void parseHeaderField(int start, int end) {
+        int colon = start;
+        while (colon < end && buffer[colon] != ':')
+            colon++;
+        if (colon == end)
+            return;
+
+        int nameEnd = colon;
+        while (nameEnd > start && isWhitespace(buffer[nameEnd - 1]))
+            nameEnd--;
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(buffer[valueStart]))
+            valueStart++;
+
+        if (fieldCount * 4 == fields.length)
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        int field = fieldCount * 4;
+        fields[field] = start;
+        fields[field + 1] = nameEnd;
+        fields[field + 2] = valueStart;
+        fields[field + 3] = end;
+
+        int header = knownHeader(start, nameEnd - start);
+        if (header >= 0)
+            known[header] = fieldCount;
+        fieldCount++;
+    }
+
+    private int knownHeader(int start, int length) {
+        int header;
+        switch (length) {
+            case 4:
+                header = HOST;
+                break;
+            case 6:
+                header = toLowerCase(buffer[start]) == 'c' ? COOKIE : EXPECT;
+                break;
+            case 10:
+                header = CONNECTION;
+                break;
+            case 12:
+                header = CONTENT_TYPE;
+                break;
+            case 14:
+                header = CONTENT_LENGTH;
+                break;
+            case 15:
+                header = ACCEPT_ENCODING;
+                break;
+            case 17:
+                header = TRANSFER_ENCODING;
+                break;
+            default:
+                return -1;
+        }
+        return equalsIgnoreCase(start, length, KNOWN_HEADERS[header]) ? header : -1;
+    }
+
+    private boolean equalsIgnoreCase(int start, int length, byte[] lowerCase) {
+        if (length != lowerCase.length)
+            return false;
+
+        for (int i = 0; i < length; i++)
+            if (toLowerCase(buffer[start + i]) != lowerCase[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes of the header, including the empty line that ends it.
+     */
+    public int getHeaderEnd() {
+        return headerEnd;
+    }
+
+    /**
+     * @return the number of bytes in the buffer, which may include the start of the body.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the request method, or null when the method is unknown.
+     */
+    public Method getMethod() {
+        return Method.lookup(buffer, methodStart, methodEnd - methodStart);
+    }
+
+    public String getMethodName() {
+        return new String(buffer, methodStart, methodEnd - methodStart, CHARSET);
+    }
+
+    /**
+     * @return the request target as sent, still percent-encoded and with the query string.
+     */
+    public String getTarget() {
+        return new String(buffer, targetStart, targetEnd - targetStart, CHARSET);
+    }
+
+    /**
+     * @return the protocol version, HTTP/1.1 when the request line has none.
+     */
+    public String getProtocolVersion() {
+        if (versionStart == versionEnd || isVersion(HTTP_1_1_BYTES))
+            return HTTP_1_1;
+        if (isVersion(HTTP_1_0_BYTES))
+            return HTTP_1_0;
+        return new String(buffer, versionStart, versionEnd - versionStart, CHARSET);
+    }
+
+    public boolean hasProtocolVersion() {
+        return versionStart != versionEnd;
+    }
+
+    private boolean isVersion(byte[] version) {
+        return versionEnd - versionStart == version.length && regionMatches(versionStart, version);
+    }
+
+    private boolean regionMatches(int start, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            if (buffer[start + i] != bytes[i])
+                return false;
+        return true;
+    }
+
+    public int getHeaderCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return the name of a header field in lower case.
+     */
+    public String getHeaderName(int field) {
+        int start = fields[field * 4], end = fields[field * 4 + 1];
+        char[] name = new char[end - start];
+        for (int i = 0; i < name.length; i++)
+            name[i] = (char) (toLowerCase(buffer[start + i]) & 0xff);
+        return new String(name);
+    }
+
+    public String getHeaderValue(int field) {
+        int start = fields[field * 4 + 2];
+        return new String(buffer, start, fields[field * 4 + 3] - start, CHARSET);
+    }
+
+    /**
+     * @param name a header name in lower case.
+     * @return the last header field with the name, or -1 when there is none.
+     */
+    public int indexOfHeader(String name) {
+        for (int field = fieldCount - 1; field >= 0; field--) {
+            int start = fields[field * 4], end = fields[field * 4 + 1];
+            if (end - start != name.length())
+                continue;
+
+            int i = 0;
+            while (i < name.length() && toLowerCase(buffer[start + i]) == name.charAt(i))
+                i++;
+            if (i == name.length())
+                return field;
+        }
+        return -1;
+    }
+
+    /**
+     * @param header one of the known header constants, e.g. {@link #CONNECTION}.
+     */
+    public boolean hasHeader(int header) {
+        return known[header] >= 0;
+    }
+
+    /**
+     * @param header one of the known header constants, e.g. {@link #CONNECTION}.
+     * @return the value of the header, or null when the request does not have it.
+     */
+    public String getHeader(int header) {
+        return known[header] < 0 ? null : getHeaderValue(known[header]);
+    }
+
+    /**
+     * @param header one of the known header constants, e.g. {@link #CONNECTION}.
+     * @param token  the text to look for, in lower case.
+     * @return whether the value of the header contains the text, ignoring case.
+     */
+    public boolean headerContains(int header, String token) {
+        if (known[header] < 0)
+            return false;
+
+        int field = known[header] * 4;
+        int last = fields[field + 3] - token.length();
+        for (int start = fields[field + 2]; start <= last; start++) {
+            int i = 0;
+            while (i < token.length() && toLowerCase(buffer[start + i]) == token.charAt(i))
+                i++;
+            if (i == token.length())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the value of the Content-Length header, -1 when it is missing.
+     * @throws ResponseException when a value is not a number of at most 18 digits or the header is repeated with
+     *                           another value, the end of the body cannot be trusted then.
+     */
+    public long getContentLength() throws ResponseException {
+        if (known[CONTENT_LENGTH] < 0)
+            return -1;
+
+        long contentLength = -1;
+        for (int field = 0; field < fieldCount; field++) {
+            int nameStart = fields[field * 4];
+            if (!equalsIgnoreCase(nameStart, fields[field * 4 + 1] - nameStart, KNOWN_HEADERS[CONTENT_LENGTH]))
+                continue;
+
+            int start = fields[field * 4 + 2], end = fields[field * 4 + 3];
+            while (end > start && isWhitespace(buffer[end - 1]))
+                end--;
+            if (start == end || end - start > 18)
+                throw invalidContentLength(field);
+            long value = 0;
+            for (int i = start; i < end; i++) {
+                if (buffer[i] < '0' || buffer[i] > '9')
+                    throw invalidContentLength(field);
+                value = value * 10 + buffer[i] - '0';
+            }
+            if (contentLength >= 0 && value != contentLength)
+                throw new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Conflicting Content-Length "
+                        + "headers.");
+            contentLength = value;
+        }
+        return contentLength;
+    }
+
+    private ResponseException invalidContentLength(int field) {
+        return new ResponseException(DefaultStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length "
+                + getHeaderValue(field) + ".");
+    }
+}
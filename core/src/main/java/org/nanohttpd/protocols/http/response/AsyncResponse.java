@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.response;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+
+/**
+ * A response that is produced later, returned by an asynchronous handler (see
+ * {@link NanoHTTPD#setAsyncHTTPHandler(org.nanohttpd.util.Handler)}). While it is pending the connection is suspended
+ * without holding a thread. Completing it, from any thread, resumes the connection on the client request executor
+ * service, which sends the response. A response that is not completed in time is answered with a timeout response.
+ * <p/>
+ * On Java 8 and later it is completed from a {@code CompletionStage} with
+ * {@code stage.whenComplete((response, error) -> { if (error == null) async.complete(response); else async.fail(error); })}.
+ */
+public final class AsyncResponse {
+
+    private Response response;
+
+    private Throwable failure;
+
+    private boolean done;
+
+    private Runnable listener;
+
+    private long timeout = -1;
+
+    private Response timeoutResponse;
+
+    /**
+     * @return an asynchronous response that is already done, e.g. for requests answered synchronously.
+     */
+    public static AsyncResponse completed(Response response) {
+        AsyncResponse async = new AsyncResponse();
+        async.complete(response);
+        return async;
+    }
+
+    /**
+     * Complete with the given response. This has no effect if the response is done already, e.g. because it timed
+     * out; the given response is closed then.
+     *
+     * @return whether this completed the response.
+     */
+    public boolean complete(Response response) {
+        Runnable listener;
+        synchronized (this) {
+            if (done) {
+                NanoHTTPD.safeClose(response);
+                return false;
+            }
+            this.response = response;
+            this.done = true;
+            listener = this.listener;
+        }
+        if (listener != null)
+            listener.run();
+        return true;
+    }
+
+    /**
+     * Complete with an error, which is answered with {@code 500 Internal Server Error}. This has no effect if the
+     * response is done already.
+     *
+     * @return whether this completed the response.
+     */
+    public boolean fail(Throwable failure) {
+        if (failure == null)
+            throw new IllegalArgumentException("The failure cannot be null.");
+
+        Runnable listener;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.failure = failure;
+            this.done = true;
+            listener = this.listener;
+        }
+        if (listener != null)
+            listener.run();
+        return true;
+    }
+
+    /**
+     * Complete with the timeout response. Called by the server when the response was not done in time.
+     *
+     * @return whether this completed the response.
+     */
+    public boolean timeOut() {
+        Response response;
+        synchronized (this) {
+            response = timeoutResponse;
+        }
+        if (response == null)
+            response = Response.newFixedLengthResponse(DefaultStatusCode.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT,
+                    "SERVICE UNAVAILABLE: The response was not ready in time.");
+        return complete(response);
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the response it was completed with, {@code null} if it is not done or failed.
+     */
+    public synchronized Response getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the error it failed with, {@code null} if it is not done or did not fail.
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return milliseconds the response may stay pending, -1 for the server's default.
+     */
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set how long the response may stay pending, instead of the server's default. Call this before returning it from
+     * the handler.
+     *
+     * @param timeout         milliseconds, {@code 0} to wait as long as it takes.
+     * @param timeoutResponse what to answer when the time is up, e.g. {@code 204 No Content} for a long poll, or
+     *                        {@code null} for {@code 503 Service Unavailable}.
+     */
+    public synchronized AsyncResponse setTimeout(long timeout, Response timeoutResponse) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("The timeout cannot be negative.");
+
+        this.timeout = timeout;
+        this.timeoutResponse = timeoutResponse;
+        return this;
+    }
+
+    /**
+     * Run the listener once the response is done, right away if it is done already. Used by the server to resume
+     * the connection, there is only one listener.
+     */
+    public void whenDone(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                this.listener = listener;
+                return;
+            }
+        }
+        listener.run();
+    }
+}
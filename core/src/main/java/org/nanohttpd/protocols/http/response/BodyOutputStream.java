@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the body of a response to the connection. Bytes are collected in a buffer and leave when it is full or on
+ * {@link #flush()}, as one chunk when the transfer is chunked. The chunk size is written in room left in front of the
+ * data, so each chunk takes a single write, and the head of the response still waiting in the buffer goes out with the
+ * first one.
+ * <p/>
+ * It is a {@link WritableByteChannel} too, for code that produces buffers. This is not thread safe.
+ */
+public class BodyOutputStream extends OutputStream implements WritableByteChannel {
+
+    /**
+     * Room left in front of a chunk for its size: up to 8 hex digits and the line break.
+     */
+    private static final int CHUNK_SIZE_ROOM = 10;
+
+    /**
+     * Room left behind a chunk for its line break and the terminating chunk.
+     */
+    private static final int CHUNK_END_ROOM = 2 + 5;
+
+    /**
+     * The smallest chunk worth appending to the head still in the buffer.
+     */
+    private static final int MIN_CHUNK_SIZE = 512;
+
+    private static final byte[] HEX_DIGITS = {
+            '0',
+            '1',
+            '2',
+            '3',
+            '4',
+            '5',
+            '6',
+            '7',
+            '8',
+            '9',
+            'a',
+            'b',
+            'c',
+            'd',
+            'e',
+            'f'
+    };
+
+    private final OutputStream out;
+
+    private final byte[] buffer;
+
+    private final boolean chunked;
+
+    /**
+     * Bytes at the start of the buffer that precede the body, written with the first bytes of it.
+     */
+    private int headLength;
+
+    /**
+     * Bytes of the body in the buffer.
+     */
+    private int count;
+
+    /**
+     * Start of the bytes to write, after the room a short chunk size left unused.
+     */
+    private int from;
+
+    /**
+     * Bytes the body may still have, or -1 if its length is not fixed.
+     */
+    private long remaining;
+
+    private boolean closed;
+
+    /**
+     * @param buffer  the buffer to collect the body in, starting with {@code headLength} bytes to write first.
+     * @param chunked {@code true} to write the body in chunks.
+     * @param length  the length of the body, or -1 if it is not known.
+     */
+    BodyOutputStream(OutputStream out, byte[] buffer, int headLength, boolean chunked, long length) throws IOException {
+        this.out = out;
+        this.buffer = buffer;
+        this.headLength = headLength;
+        this.chunked = chunked;
+        this.remaining = length;
+        if (capacity() < MIN_CHUNK_SIZE)
+            emit();
+    }
+
+    private int dataStart() {
+        return chunked ? headLength + CHUNK_SIZE_ROOM : headLength;
+    }
+
+    private int capacity() {
+        return buffer.length - dataStart() - (chunked ? CHUNK_END_ROOM : 0);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+    }
+
+    private void take(long length) throws IOException {
+        if (remaining < 0)
+            return;
+        if (length > remaining)
+            throw new IOException("The body is longer than its declared length.");
+        remaining -= length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        take(1);
+        if (count == capacity())
+            emit();
+        buffer[dataStart() + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+            throw new IndexOutOfBoundsException();
+        ensureOpen();
+        take(len);
+        while (len > 0) {
+            if (count == capacity())
+                emit();
+            int n = Math.min(len, capacity() - count);
+            System.arraycopy(b, off, buffer, dataStart() + count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+        ensureOpen();
+        take(length);
+        while (src.hasRemaining()) {
+            if (count == capacity())
+                emit();
+            int n = Math.min(src.remaining(), capacity() - count);
+            src.get(buffer, dataStart() + count, n);
+            count += n;
+        }
+        return length;
+    }
+
+    /**
+     * Read the input to its end straight into the buffer, writing what each read returned right away.
+     */
+    void readFrom(InputStream in) throws IOException {
+        ensureOpen();
+        while (true) {
+            if (count == capacity())
+                emit();
+            int read = in.read(buffer, dataStart() + count, capacity() - count);
+            if (read <= 0)
+                return;
+            take(read);
+            count += read;
+            emit();
+        }
+    }
+
+    /**
+     * Write what is buffered and flush the connection.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        emit();
+        out.flush();
+    }
+
+    /**
+     * @return whether as many bytes were written as the declared length of the body.
+     */
+    boolean isComplete() {
+        return remaining <= 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Write what is buffered, followed by the terminating chunk when the transfer is chunked. This does not close the
+     * connection.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        int end = frame();
+        if (chunked) {
+            byte[] finish = ChunkedStreams.DATA_DELIMITER_FINISH;
+            System.arraycopy(finish, 0, buffer, end, finish.length);
+            end += finish.length;
+        }
+        writeOut(end);
+    }
+
+    private void emit() throws IOException {
+        writeOut(frame());
+    }
+
+    /**
+     * Put the chunk size in front of the buffered bytes and the line break behind them, moving them up to the head if
+     * there is one.
+     *
+     * @return the end of the bytes to write.
+     */
+    private int frame() {
+        if (!chunked || count == 0)
+            return headLength + count;
+
+        int dataStart = dataStart();
+        int prefix = hexLength(count) + 2;
+        int chunkStart = headLength == 0 ? dataStart - prefix : headLength;
+        if (chunkStart + prefix != dataStart)
+            System.arraycopy(buffer, dataStart, buffer, chunkStart + prefix, count);
+        int digitsEnd = chunkStart + prefix - 2;
+        int value = count;
+        for (int i = digitsEnd - 1; i >= chunkStart; i--) {
+            buffer[i] = HEX_DIGITS[value & 0xf];
+            value >>>= 4;
+        }
+        buffer[digitsEnd] = '\r';
+        buffer[digitsEnd + 1] = '\n';
+        int end = chunkStart + prefix + count;
+        buffer[end++] = '\r';
+        buffer[end++] = '\n';
+        if (headLength == 0)
+            from = chunkStart;
+        return end;
+    }
+
+    private void writeOut(int end) throws IOException {
+        int from = this.from;
+        this.from = 0;
+        headLength = 0;
+        count = 0;
+        if (end > from)
+            out.write(buffer, from, end - from);
+    }
+
+    private static int hexLength(int value) {
+        return Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(value) + 3) / 4);
+    }
+}
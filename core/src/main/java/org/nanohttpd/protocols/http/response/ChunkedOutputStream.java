@@ -47,8 +47,8 @@ public class ChunkedOutputStream extends FilterOutputStream {
     }
 
     @Override
-    public synchronized void write(int b) throws IOException {
-        singleByteArray[1] = (byte) b;
+    public void write(int b) throws IOException {
+        singleByteArray[0] = (byte) b;
         write(singleByteArray, 0, 1);
     }
 
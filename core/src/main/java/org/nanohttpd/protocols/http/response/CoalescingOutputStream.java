@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.response;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output stream of a connection that can hold back the responses to pipelined requests. While coalescing, writes go to
+ * a buffer and {@link #flush()} does nothing, so the responses to several requests leave in as few writes as possible.
+ * Otherwise writes pass straight through after whatever is still buffered, which keeps streamed responses flowing.
+ * <p/>
+ * This is not thread safe; a connection only writes from the thread serving it.
+ * <p/>
+ * Writes to the connection are split into slices of at most {@value #WRITE_SLICE} bytes, so that no single write
+ * blocks for long on a slow client, and each goes between {@link #beginWrite()} and {@link #endWrite(long)}, which
+ * subclasses can use to watch them.
+ */
+public class CoalescingOutputStream extends FilterOutputStream {
+    public static final int WRITE_SLICE = 65536;
+
+    private final byte[] buffer;
+
+    private final WritableByteChannel channel;
+
+    private int count;
+
+    private boolean coalescing;
+
+    public CoalescingOutputStream(OutputStream out, int size) {
+        this(out, size, null);
+    }
+
+    /**
+     * @param channel the channel {@code out} writes to, if file regions and buffers may be sent to it directly. Must be
+     *                {@code null} when the stream encrypts or otherwise transforms the bytes, as for TLS.
+     */
+    public CoalescingOutputStream(OutputStream out, int size, WritableByteChannel channel) {
+        super(out);
+        this.buffer = new byte[size];
+        this.channel = channel;
+    }
+
+    /**
+     * @return whether {@link #transferFrom(FileChannel, long, long)} and {@link #gather(ByteBuffer[])} can be used.
+     */
+    public boolean hasChannel() {
+        return channel != null;
+    }
+
+    /**
+     * Write the remaining bytes of the buffers after whatever is buffered, handing them all to the channel at once
+     * instead of copying them into a stream. Their positions are advanced.
+     */
+    public void gather(ByteBuffer[] buffers) throws IOException {
+        if (channel == null)
+            throw new IllegalStateException("No channel to write to.");
+
+        ByteBuffer[] all = buffers;
+        if (count > 0) {
+            all = new ByteBuffer[buffers.length + 1];
+            all[0] = ByteBuffer.wrap(buffer, 0, count);
+            System.arraycopy(buffers, 0, all, 1, buffers.length);
+            count = 0;
+        }
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            int first = 0;
+            while (true) {
+                while (first < all.length && !all[first].hasRemaining())
+                    first++;
+                if (first == all.length)
+                    break;
+
+                // the slice ends within the last buffer it takes, which is cut short for the write
+                int last = first;
+                long total = 0;
+                while (last < all.length && total < WRITE_SLICE)
+                    total += all[last++].remaining();
+                ByteBuffer cut = all[last - 1];
+                int limit = cut.limit();
+                if (total > WRITE_SLICE)
+                    cut.limit(limit - (int) (total - WRITE_SLICE));
+                long written = -1;
+                beginWrite();
+                try {
+                    written = gathering.write(all, first, last - first);
+                } finally {
+                    cut.limit(limit);
+                    endWrite(written);
+                }
+            }
+        } else {
+            for (ByteBuffer b : all) {
+                while (b.hasRemaining()) {
+                    int limit = b.limit();
+                    b.limit(b.position() + Math.min(b.remaining(), WRITE_SLICE));
+                    long written = -1;
+                    beginWrite();
+                    try {
+                        written = channel.write(b);
+                    } finally {
+                        b.limit(limit);
+                        endWrite(written);
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write a region of a file after whatever is buffered, letting the operating system copy it to the connection
+     * without passing it through the heap.
+     *
+     * @return the number of bytes sent, less than requested only if the file ended first.
+     */
+    public long transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (channel == null)
+            throw new IllegalStateException("No channel to transfer to.");
+
+        flushPending();
+        long sent = 0;
+        while (sent < count) {
+            long transferred = -1;
+            beginWrite();
+            try {
+                transferred = file.transferTo(position + sent, Math.min(count - sent, WRITE_SLICE), channel);
+            } finally {
+                endWrite(transferred);
+            }
+            if (transferred <= 0)
+                break;
+            sent += transferred;
+        }
+        return sent;
+    }
+
+    /**
+     * Called before each write to the connection. Does nothing by default.
+     */
+    protected void beginWrite() throws IOException {
+    }
+
+    /**
+     * Called after each write to the connection, also when it failed. An exception thrown here takes the place of the
+     * one the write failed with. Does nothing by default.
+     *
+     * @param written the number of bytes written, -1 if the write failed.
+     */
+    protected void endWrite(long written) throws IOException {
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int slice = Math.min(len, WRITE_SLICE);
+            long written = -1;
+            beginWrite();
+            try {
+                out.write(b, off, slice);
+                written = slice;
+            } finally {
+                endWrite(written);
+            }
+            off += slice;
+            len -= slice;
+        }
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * @param coalescing {@code true} to buffer writes and defer flushes until {@link #flushPending()} or until this is
+     *                   turned off and flushed again.
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * @return whether buffered bytes are waiting to be written.
+     */
+    public boolean hasPending() {
+        return count > 0;
+    }
+
+    /**
+     * Write and flush whatever is buffered, even while coalescing.
+     */
+    public void flushPending() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            writeOut(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!coalescing) {
+            drain();
+            long written = -1;
+            beginWrite();
+            try {
+                out.write(b);
+                written = 1;
+            } finally {
+                endWrite(written);
+            }
+            return;
+        }
+
+        if (count == buffer.length)
+            drain();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!coalescing || len >= buffer.length) {
+            drain();
+            writeOut(b, off, len);
+            return;
+        }
+
+        if (len > buffer.length - count)
+            drain();
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!coalescing)
+            flushPending();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushPending();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.response;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The encoded {@code Date} header line. It only changes once per second, so it is formatted by the first response of
+ * a second and shared by all the others.
+ */
+final class DateHeader {
+
+    private static final class Line {
+        private final long second;
+
+        private final byte[] bytes;
+
+        private Line(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+
+    // guarded by the class lock
+    private static final SimpleDateFormat FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+    static {
+        FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    private static volatile Line current = new Line(-1, null);
+
+    private DateHeader() {
+    }
+
+    /**
+     * @return the header line for the current second, including the line break. The array must not be modified.
+     */
+    static byte[] line() {
+        long second = System.currentTimeMillis() / 1000;
+        Line line = current;
+        return line.second == second ? line.bytes : format(second);
+    }
+
+    private static synchronized byte[] format(long second) {
+        if (current.second != second) {
+            String line = "Date: " + FORMAT.format(new Date(second * 1000)) + "\r\n";
+            current = new Line(second, line.getBytes(StandardCharsets.US_ASCII));
+        }
+        return current.bytes;
+    }
+}
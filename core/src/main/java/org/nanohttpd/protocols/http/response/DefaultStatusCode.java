@@ -30,6 +30,8 @@
 
 package org.nanohttpd.protocols.http.response;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * This enum class defines the known HTTP status codes at a given time making them easily accessible. If a status code
  * is not present at a later time you can define it with {@link UndefinedStatusCode} class.
@@ -73,6 +75,7 @@ public enum DefaultStatusCode implements StatusCode {
     RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
     EXPECTATION_FAILED(417, "Expectation Failed"),
     TOO_MANY_REQUESTS(429, "Too Many Requests"),
+    REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
 
     INTERNAL_ERROR(500, "Internal Server Error"),
     NOT_IMPLEMENTED(501, "Not Implemented"),
@@ -83,9 +86,12 @@ public enum DefaultStatusCode implements StatusCode {
 
     private final String mDescription;
 
+    private final byte[] mStatusLine;
+
     DefaultStatusCode(int statusCode, String description) {
         mStatusCode = statusCode;
         mDescription = description;
+        mStatusLine = ("HTTP/1.1 " + statusCode + " " + description + " \r\n").getBytes(StandardCharsets.US_ASCII);
     }
 
     public String getDescription() {
@@ -100,6 +106,13 @@ public enum DefaultStatusCode implements StatusCode {
         return mStatusCode;
     }
 
+    /**
+     * @return the encoded status line of a response, including the line break. The array must not be modified.
+     */
+    byte[] getStatusLine() {
+        return mStatusLine;
+    }
+
     @Override
     public String toString() {
         return getHttpDescription();
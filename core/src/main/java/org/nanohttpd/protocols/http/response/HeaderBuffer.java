@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.response;
+
+import org.nanohttpd.util.buffer.BufferPool;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Collects the encoded status line and header fields of a response in a pooled array. The room left behind them is
+ * used for the start of the body, so that a response with a small body goes out in a single write.
+ */
+final class HeaderBuffer {
+
+    private static final byte[] SEPARATOR = {
+            ':',
+            ' '
+    };
+
+    static final byte[] LINE_END = {
+            '\r',
+            '\n'
+    };
+
+    private final BufferPool bufferPool;
+
+    private byte[] buffer;
+
+    private int length;
+
+    HeaderBuffer(BufferPool bufferPool, int size) {
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(size);
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void write(byte[] bytes) {
+        ensureRoom(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    void writeHeader(String name, String value) {
+        write(name);
+        write(SEPARATOR);
+        write(value);
+        write(LINE_END);
+    }
+
+    private void write(String s) {
+        ensureRoom(s.length());
+        int start = length;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // header values are almost always ASCII, anything else is written as UTF-8
+                length = start;
+                write(s.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[length++] = (byte) c;
+        }
+    }
+
+    private void ensureRoom(int room) {
+        if (buffer.length - length >= room)
+            return;
+
+        byte[] larger = bufferPool.acquire(Math.max(buffer.length * 2, length + room));
+        System.arraycopy(buffer, 0, larger, 0, length);
+        bufferPool.release(buffer);
+        buffer = larger;
+    }
+
+    void release() {
+        bufferPool.release(buffer);
+        buffer = null;
+    }
+}
@@ -33,22 +33,39 @@ package org.nanohttpd.protocols.http.response;
 import org.nanohttpd.protocols.http.NanoHTTPD;
 import org.nanohttpd.protocols.http.content.ContentType;
 import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.util.buffer.BufferPool;
+import org.nanohttpd.util.buffer.BufferPools;
+import org.nanohttpd.util.buffer.ByteBufferInputStream;
 
 import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.logging.Level;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * HTTP response. Return one of these from serve().
  */
 public class Response implements Closeable {
 
+    /**
+     * Size of the buffer the body is copied through, taken from the {@link BufferPools#getDefault() buffer pool}.
+     */
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CONTENT_ENCODING_GZIP = "Content-Encoding: gzip\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+
     /**
      * HTTP status code after processing, e.g. "200 OK", Status.OK
      */
@@ -67,23 +84,31 @@ public class Response implements Closeable {
     private final long contentLength;
 
     /**
-     * Headers for the HTTP response. Use addHeader() to add lines. the
-     * lowercase map is automatically kept up to date.
+     * File the body is a region of, may be null. {@link #data} then reads the same region.
      */
-    @SuppressWarnings("serial")
-    private final Map<String, String> header = new HashMap<String, String>() {
+    private FileChannel file;
 
-        public String put(String key, String value) {
-            lowerCaseHeader.put(key == null ? key : key.toLowerCase(), value);
-            return super.put(key, value);
-        }
+    private long filePosition;
 
-    };
+    /**
+     * Buffers the body is made of, may be null. They are never modified, each send works on duplicates.
+     */
+    private ByteBuffer[] segments;
 
     /**
-     * copy of the header map with all the keys lowercase for faster searching.
+     * Writes the body while the response is sent, may be null.
      */
-    private final Map<String, String> lowerCaseHeader = new HashMap<String, String>();
+    private StreamingBody streamingBody;
+
+    /**
+     * Headers for the HTTP response in the order they were added. Use addHeader() to add lines, names are compared
+     * ignoring case. A response rarely has more than a handful, so they are searched linearly.
+     */
+    private String[] headerNames = new String[8];
+
+    private String[] headerValues = new String[8];
+
+    private int headerCount;
 
     /**
      * The request method that spawned this response.
@@ -129,6 +154,48 @@ public class Response implements Closeable {
         this.cookieHeaders = new ArrayList(10);
     }
 
+    /**
+     * Creates a response with a region of a file as body. Over plain TCP the region goes from the file to the socket
+     * without being copied through the heap.
+     */
+    protected Response(StatusCode status, String mimeType, FileChannel file, long position, long count) throws IOException {
+        this(status, mimeType, Channels.newInputStream(file.position(position)), count);
+        this.file = file;
+        this.filePosition = position;
+    }
+
+    /**
+     * Creates a response with the remaining bytes of the given buffers as body. The buffers may be read-only and shared
+     * with other responses, their positions and limits are left untouched.
+     */
+    protected Response(StatusCode status, String mimeType, ByteBuffer[] segments) {
+        this(status, mimeType, new ByteBufferInputStream(duplicate(segments)), remaining(segments));
+        this.segments = duplicate(segments);
+    }
+
+    /**
+     * Creates a response whose body is written by the given callback while it is sent, chunked if {@code totalBytes}
+     * is negative.
+     */
+    protected Response(StatusCode status, String mimeType, long totalBytes, StreamingBody body) {
+        this(status, mimeType, new ByteArrayInputStream(new byte[0]), totalBytes);
+        this.streamingBody = body;
+    }
+
+    private static ByteBuffer[] duplicate(ByteBuffer[] buffers) {
+        ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++)
+            duplicates[i] = buffers[i].duplicate();
+        return duplicates;
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        return remaining;
+    }
+
     @Override
     public void close() throws IOException {
         if (this.data != null) {
@@ -158,7 +225,38 @@ public class Response implements Closeable {
      * Adds given line to the header.
      */
     public void addHeader(String name, String value) {
-        this.header.put(name, value);
+        int index = indexOfHeader(name);
+        if (index >= 0) {
+            this.headerValues[index] = value;
+            return;
+        }
+        if (this.headerCount == this.headerNames.length) {
+            this.headerNames = Arrays.copyOf(this.headerNames, this.headerCount * 2);
+            this.headerValues = Arrays.copyOf(this.headerValues, this.headerCount * 2);
+        }
+        this.headerNames[this.headerCount] = name;
+        this.headerValues[this.headerCount] = value;
+        this.headerCount++;
+    }
+
+    private void removeHeader(String name) {
+        int index = indexOfHeader(name);
+        if (index < 0)
+            return;
+
+        this.headerCount--;
+        System.arraycopy(this.headerNames, index + 1, this.headerNames, index, this.headerCount - index);
+        System.arraycopy(this.headerValues, index + 1, this.headerValues, index, this.headerCount - index);
+        this.headerNames[this.headerCount] = null;
+        this.headerValues[this.headerCount] = null;
+    }
+
+    private int indexOfHeader(String name) {
+        for (int i = 0; i < this.headerCount; i++) {
+            if (name.equalsIgnoreCase(this.headerNames[i]))
+                return i;
+        }
+        return -1;
     }
 
     /**
@@ -169,9 +267,9 @@ public class Response implements Closeable {
      */
     public void closeConnection(boolean close) {
         if (close)
-            this.header.put("connection", "close");
+            addHeader("connection", "close");
         else
-            this.header.remove("connection");
+            removeHeader("connection");
     }
 
     /**
@@ -182,12 +280,24 @@ public class Response implements Closeable {
         return "close".equals(getHeader("connection"));
     }
 
+    /**
+     * For a response that keeps writing to the connection after {@link #send(OutputStream)} returned, such as an event
+     * stream: done once the response is finished with the connection. The connection waits without a thread until
+     * then, and the response writes the terminating chunk of a chunked body itself.
+     *
+     * @return {@code null} for a response that is complete when it was sent.
+     */
+    public AsyncResponse getConnectionHold() {
+        return null;
+    }
+
     public InputStream getData() {
         return this.data;
     }
 
     public String getHeader(String name) {
-        return this.lowerCaseHeader.get(name.toLowerCase());
+        int index = indexOfHeader(name);
+        return index < 0 ? null : this.headerValues[index];
     }
 
     public String getMimeType() {
@@ -207,63 +317,108 @@ public class Response implements Closeable {
     }
 
     /**
-     * Sends given response to the socket.
+     * Sends given response to the socket. The status line and headers are encoded into a pooled buffer and go out
+     * together with the start of the body.
      */
     public void send(OutputStream outputStream) {
-
-        SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
+        HeaderBuffer head = null;
         try {
             if (this.status == null) {
                 throw new Error("sendResponse(): Status can't be null.");
             }
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream,
-                    new ContentType(this.mimeType).getEncoding())), false);
-            pw.append("HTTP/1.1 ").append(this.status.getHttpDescription()).append(" \r\n");
+            head = new HeaderBuffer(BufferPools.getDefault(), SEND_BUFFER_SIZE);
+            head.write(statusLine(this.status));
             if (this.mimeType != null) {
-                printHeader(pw, "Content-Type", this.mimeType);
+                head.writeHeader("Content-Type", this.mimeType);
             }
             if (getHeader("date") == null) {
-                printHeader(pw, "Date", gmtFrmt.format(new Date()));
+                head.write(DateHeader.line());
             }
-            for (Entry<String, String> entry : this.header.entrySet()) {
-                printHeader(pw, entry.getKey(), entry.getValue());
+            for (int i = 0; i < this.headerCount; i++) {
+                head.writeHeader(this.headerNames[i], this.headerValues[i]);
             }
             for (String cookieHeader : this.cookieHeaders) {
-                printHeader(pw, "Set-Cookie", cookieHeader);
+                head.writeHeader("Set-Cookie", cookieHeader);
             }
             if (getHeader("connection") == null) {
-                printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
+                head.write(this.keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
             }
             if (getHeader("content-length") != null) {
                 setUseGzip(false);
             }
-            if (useGzipWhenAccepted()) {
-                printHeader(pw, "Content-Encoding", "gzip");
+            boolean gzip = useGzipWhenAccepted();
+            if (gzip) {
+                head.write(CONTENT_ENCODING_GZIP);
                 setChunkedTransfer(true);
             }
             long pending = this.data != null ? this.contentLength : 0;
-            if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                printHeader(pw, "Transfer-Encoding", "chunked");
-            } else if (!useGzipWhenAccepted()) {
-                pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
+            boolean chunked = this.requestMethod != Method.HEAD && this.chunkedTransfer;
+            if (chunked) {
+                head.write(TRANSFER_ENCODING_CHUNKED);
+            } else if (!gzip) {
+                pending = sendContentLengthHeaderIfNotAlreadyPresent(head, pending);
+            }
+            head.write(HeaderBuffer.LINE_END);
+            if (this.streamingBody != null) {
+                sendStreamingBody(outputStream, head, gzip, chunked, pending);
+            } else if (gzip) {
+                write(outputStream, head.array(), 0, head.length());
+                sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
+            } else if (chunked) {
+                sendChunkedBody(outputStream, head);
+            } else {
+                sendBody(outputStream, head, pending);
             }
-            pw.append("\r\n");
-            pw.flush();
-            sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
             outputStream.flush();
             NanoHTTPD.safeClose(this.data);
+        } catch (SocketTimeoutException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "The client was too slow to take the response", e);
         } catch (IOException e) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", e);
+        } finally {
+            if (head != null) {
+                head.release();
+            }
+        }
+    }
+
+    private static byte[] statusLine(StatusCode status) {
+        if (status instanceof DefaultStatusCode) {
+            return ((DefaultStatusCode) status).getStatusLine();
+        }
+        return ("HTTP/1.1 " + status.getHttpDescription() + " \r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long sendContentLengthHeaderIfNotAlreadyPresent(HeaderBuffer head, long defaultSize) {
+        String contentLengthString = getHeader("content-length");
+        long size = defaultSize;
+        if (contentLengthString != null) {
+            try {
+                size = Long.parseLong(contentLengthString);
+            } catch (NumberFormatException ex) {
+                NanoHTTPD.LOG.severe("content-length was no number " + contentLengthString);
+            }
+        } else {
+            head.writeHeader("Content-Length", Long.toString(size));
         }
+        return size;
     }
 
-    @SuppressWarnings("static-method")
+    /**
+     * @deprecated {@link #send(OutputStream)} writes the head into a byte buffer and does not call this anymore, so
+     * overriding it has no effect. Headers are encoded as ASCII, or as UTF-8 when a value is not ASCII, whatever the
+     * charset of the content type.
+     */
+    @Deprecated
     protected void printHeader(PrintWriter pw, String key, String value) {
         pw.append(key).append(": ").append(value).append("\r\n");
     }
 
+    /**
+     * @deprecated {@link #send(OutputStream)} does not call this anymore, so overriding it has no effect. Set the
+     * {@code Content-Length} header with {@link #addHeader(String, String)} instead.
+     */
+    @Deprecated
     protected long sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, long defaultSize) {
         String contentLengthString = getHeader("content-length");
         long size = defaultSize;
@@ -279,6 +434,154 @@ public class Response implements Closeable {
         return size;
     }
 
+    /**
+     * Sends the head followed by the body without transfer coding. The first block of the body is read behind the
+     * head, so a small response takes a single write.
+     */
+    private void sendBody(OutputStream outputStream, HeaderBuffer head, long pending) throws IOException {
+        byte[] buff = head.array();
+        int length = head.length();
+        if (this.file != null && pending > buff.length - length && outputStream instanceof CoalescingOutputStream
+                && ((CoalescingOutputStream) outputStream).hasChannel()) {
+            write(outputStream, buff, 0, length);
+            transfer((CoalescingOutputStream) outputStream, pending);
+            return;
+        }
+        if (this.segments != null && pending == this.contentLength && pending > buff.length - length) {
+            sendSegments(outputStream, buff, length);
+            return;
+        }
+        boolean sendEverything = pending == -1;
+        while (pending > 0 || sendEverything) {
+            if (length == buff.length) {
+                write(outputStream, buff, 0, length);
+                length = 0;
+            }
+            int room = buff.length - length;
+            long bytesToRead = sendEverything ? room : Math.min(pending, room);
+            int read = this.data.read(buff, length, (int) bytesToRead);
+            if (read <= 0) {
+                break;
+            }
+            write(outputStream, buff, 0, length + read);
+            length = 0;
+            if (!sendEverything) {
+                pending -= read;
+            }
+        }
+        if (length > 0) {
+            write(outputStream, buff, 0, length);
+        }
+    }
+
+    /**
+     * Sends the head followed by the body in chunks, each read of the body becoming a chunk.
+     */
+    private void sendChunkedBody(OutputStream outputStream, HeaderBuffer head) throws IOException {
+        BodyOutputStream body = new BodyOutputStream(outputStream, head.array(), head.length(), true, -1);
+        body.readFrom(this.data);
+        body.close();
+    }
+
+    /**
+     * Sends the head and lets the streaming body write the rest. A gzip body is compressed into a second body stream
+     * that does the chunking.
+     */
+    private void sendStreamingBody(OutputStream outputStream, HeaderBuffer head, boolean gzip, boolean chunked, long pending)
+            throws IOException {
+        if (this.requestMethod == Method.HEAD) {
+            write(outputStream, head.array(), 0, head.length());
+            return;
+        }
+        try {
+            if (gzip) {
+                BodyOutputStream encoded = new BodyOutputStream(outputStream, head.array(), head.length(), true, -1);
+                GzipOutputStream gzipOutputStream = new GzipOutputStream(encoded);
+                BufferPool bufferPool = BufferPools.getDefault();
+                byte[] buff = bufferPool.acquire(SEND_BUFFER_SIZE);
+                try {
+                    BodyOutputStream body = new BodyOutputStream(gzipOutputStream, buff, 0, false, -1);
+                    this.streamingBody.writeTo(body);
+                    body.close();
+                } finally {
+                    bufferPool.release(buff);
+                }
+                gzipOutputStream.finish();
+                encoded.close();
+            } else {
+                BodyOutputStream body = new BodyOutputStream(outputStream, head.array(), head.length(), chunked, chunked ? -1 : pending);
+                this.streamingBody.writeTo(body);
+                if (chunked && getConnectionHold() != null) {
+                    // the response goes on writing chunks itself after it was sent
+                    body.flush();
+                    return;
+                }
+                body.close();
+                if (!body.isComplete()) {
+                    throw new IOException("The body is shorter than its declared length.");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client cannot tell where the body ends
+            closeConnection(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the head and the buffers of the body. With a channel this is a single gathering write, otherwise the
+     * arrays of heap buffers are written as they are and only read-only or direct buffers are copied.
+     */
+    private void sendSegments(OutputStream outputStream, byte[] buff, int length) throws IOException {
+        ByteBuffer[] body = duplicate(this.segments);
+        if (outputStream instanceof CoalescingOutputStream && ((CoalescingOutputStream) outputStream).hasChannel()) {
+            ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+            buffers[0] = ByteBuffer.wrap(buff, 0, length);
+            System.arraycopy(body, 0, buffers, 1, body.length);
+            try {
+                ((CoalescingOutputStream) outputStream).gather(buffers);
+            } catch (IOException e) {
+                this.data.close();
+                throw e;
+            }
+            return;
+        }
+        write(outputStream, buff, 0, length);
+        for (ByteBuffer segment : body) {
+            if (segment.hasArray()) {
+                write(outputStream, segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+                continue;
+            }
+            while (segment.hasRemaining()) {
+                int count = Math.min(segment.remaining(), buff.length);
+                segment.get(buff, 0, count);
+                write(outputStream, buff, 0, count);
+            }
+        }
+    }
+
+    private void transfer(CoalescingOutputStream outputStream, long count) throws IOException {
+        try {
+            long sent = outputStream.transferFrom(this.file, this.filePosition, count);
+            if (sent < count) {
+                NanoHTTPD.LOG.warning("File ended after " + sent + " of " + count + " bytes.");
+            }
+        } catch (IOException e) {
+            this.data.close();
+            throw e;
+        }
+    }
+
+    private void write(OutputStream outputStream, byte[] buff, int offset, int length) throws IOException {
+        try {
+            outputStream.write(buff, offset, length);
+        } catch (Exception e) {
+            if (this.data != null) {
+                this.data.close();
+            }
+        }
+    }
+
     private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
         if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
             ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
@@ -297,9 +600,9 @@ public class Response implements Closeable {
 
     private void sendBodyWithCorrectEncoding(OutputStream outputStream, long pending) throws IOException {
         if (useGzipWhenAccepted()) {
-            GZIPOutputStream gzipOutputStream = null;
+            GzipOutputStream gzipOutputStream = null;
             try {
-                gzipOutputStream = new GZIPOutputStream(outputStream);
+                gzipOutputStream = new GzipOutputStream(outputStream);
             } catch (Exception e) {
                 if (this.data != null) {
                     this.data.close();
@@ -325,34 +628,39 @@ public class Response implements Closeable {
      * @throws IOException if something goes wrong while sending the data.
      */
     private void sendBody(OutputStream outputStream, long pending) throws IOException {
-        long BUFFER_SIZE = 16 * 1024;
-        byte[] buff = new byte[(int) BUFFER_SIZE];
-        boolean sendEverything = pending == -1;
-        while (pending > 0 || sendEverything) {
-            long bytesToRead = sendEverything ? BUFFER_SIZE : Math.min(pending, BUFFER_SIZE);
-            int read = this.data.read(buff, 0, (int) bytesToRead);
-            if (read <= 0) {
-                break;
-            }
-            try {
-                outputStream.write(buff, 0, read);
-            } catch (Exception e) {
-                if (this.data != null) {
-                    this.data.close();
+        BufferPool bufferPool = BufferPools.getDefault();
+        byte[] buff = bufferPool.acquire(SEND_BUFFER_SIZE);
+        try {
+            boolean sendEverything = pending == -1;
+            while (pending > 0 || sendEverything) {
+                long bytesToRead = sendEverything ? SEND_BUFFER_SIZE : Math.min(pending, SEND_BUFFER_SIZE);
+                int read = this.data.read(buff, 0, (int) bytesToRead);
+                if (read <= 0) {
+                    break;
+                }
+                write(outputStream, buff, 0, read);
+                if (!sendEverything) {
+                    pending -= read;
                 }
             }
-            if (!sendEverything) {
-                pending -= read;
-            }
+        } finally {
+            bufferPool.release(buff);
         }
     }
 
+    public boolean isChunkedTransfer() {
+        return this.chunkedTransfer;
+    }
+
     public void setChunkedTransfer(boolean chunkedTransfer) {
         this.chunkedTransfer = chunkedTransfer;
     }
 
     public void setData(InputStream data) {
         this.data = data;
+        this.file = null;
+        this.segments = null;
+        this.streamingBody = null;
     }
 
     public void setMimeType(String mimeType) {
@@ -374,8 +682,53 @@ public class Response implements Closeable {
         return new Response(status, mimeType, data, -1);
     }
 
+    /**
+     * Create a response with a whole file as body.
+     */
+    public static Response newFileResponse(StatusCode status, String mimeType, File file) throws IOException {
+        return newFileResponse(status, mimeType, file, 0, file.length());
+    }
+
+    /**
+     * Create a response with {@code count} bytes of a file as body, starting at {@code position}.
+     */
+    public static Response newFileResponse(StatusCode status, String mimeType, File file, long position, long count)
+            throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            return new Response(status, mimeType, channel, position, count);
+        } catch (IOException e) {
+            NanoHTTPD.safeClose(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Create a chunked response whose body is written by the handler's callback while the response is sent, without a
+     * pipe or a producer thread.
+     */
+    public static Response newStreamingResponse(StatusCode status, String mimeType, StreamingBody body) {
+        return new Response(status, mimeType, -1, body);
+    }
+
+    /**
+     * Create a response whose body of known length is written by the handler's callback while the response is sent.
+     * Writing more than {@code totalBytes} fails, as does writing less.
+     */
+    public static Response newStreamingResponse(StatusCode status, String mimeType, long totalBytes, StreamingBody body) {
+        return new Response(status, mimeType, totalBytes, body);
+    }
+
     public static Response newFixedLengthResponse(StatusCode status, String mimeType, byte[] data) {
-        return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(data), data.length);
+        return newFixedLengthResponse(status, mimeType, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a response with the remaining bytes of the buffers as body, e.g. a cached page shell followed by the
+     * content rendered for the request. The buffers are not copied.
+     */
+    public static Response newFixedLengthResponse(StatusCode status, String mimeType, ByteBuffer... segments) {
+        return new Response(status, mimeType, segments);
     }
 
     /**
@@ -404,7 +757,7 @@ public class Response implements Closeable {
                 NanoHTTPD.LOG.log(Level.SEVERE, "encoding problem, responding nothing", e);
                 bytes = new byte[0];
             }
-            return newFixedLengthResponse(status, contentType.getContentTypeHeader(), new ByteArrayInputStream(bytes), bytes.length);
+            return newFixedLengthResponse(status, contentType.getContentTypeHeader(), bytes);
         }
     }
 
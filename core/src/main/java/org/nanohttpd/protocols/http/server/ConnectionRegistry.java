@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.server;
+
+import org.nanohttpd.protocols.http.client.ClientRequestExecutor;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The open connections of a server, from when they are accepted until they are closed, with how many each remote
+ * address has open. Adding and removing a connection takes no global lock, so short connections accepted by several
+ * threads do not contend on it. Optionally an address may only have a limited number of connections open at once,
+ * so that one client cannot take every worker.
+ */
+public class ConnectionRegistry {
+
+    private final ConcurrentHashMap<ClientRequestExecutor, InetAddress> connections = new ConcurrentHashMap<>(256);
+
+    /**
+     * Connections open per address. A count that dropped to zero is set to -1 before it is removed, so that it is not
+     * taken again while it is being removed.
+     */
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> addressCounts = new ConcurrentHashMap<>(256);
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private volatile int maxConnectionsPerAddress;
+
+    /**
+     * @return the number of connections a remote address may have open at once, 0 if there is no limit.
+     */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /**
+     * @param maxConnectionsPerAddress connections a remote address may have open at once, 0 for no limit. Connections
+     *                                 already open are not closed when the limit is lowered.
+     */
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        if (maxConnectionsPerAddress < 0)
+            throw new IllegalArgumentException("The connection limit cannot be negative.");
+
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * Register a newly accepted connection.
+     *
+     * @return {@code false} if its remote address has as many connections open as it may, the connection is not
+     * registered then.
+     */
+    public boolean add(ClientRequestExecutor connection) {
+        InetAddress address = connection.getClientSocket().getInetAddress();
+        if (!acquire(address)) {
+            rejections.incrementAndGet();
+            return false;
+        }
+        connections.put(connection, address);
+        return true;
+    }
+
+    /**
+     * Forget a closed connection. Does nothing if it is not registered, so this can be called on every close.
+     */
+    public void remove(ClientRequestExecutor connection) {
+        InetAddress address = connections.remove(connection);
+        if (address != null) {
+            release(address);
+            if (connections.isEmpty())
+                synchronized (this) {
+                    notifyAll();
+                }
+        }
+    }
+
+    private boolean acquire(InetAddress address) {
+        while (true) {
+            AtomicInteger count = addressCounts.get(address);
+            if (count == null) {
+                count = addressCounts.putIfAbsent(address, new AtomicInteger(1));
+                if (count == null)
+                    return true;
+            }
+
+            int current = count.get();
+            if (current < 0) {
+                // the count is being removed, help and start over
+                addressCounts.remove(address, count);
+                continue;
+            }
+            int max = maxConnectionsPerAddress;
+            if (max > 0 && current >= max)
+                return false;
+            if (count.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    private void release(InetAddress address) {
+        AtomicInteger count = addressCounts.get(address);
+        if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1))
+            addressCounts.remove(address, count);
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Wait until every connection is closed.
+     *
+     * @param millis maximum milliseconds to wait.
+     * @return {@code false} if connections were still open when the time ran out.
+     * @throws InterruptedException when the calling thread is interrupted.
+     */
+    public boolean awaitEmpty(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (this) {
+            while (!connections.isEmpty()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                wait(left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of connections the remote address has open.
+     */
+    public int getConnectionCount(InetAddress address) {
+        AtomicInteger count = addressCounts.get(address);
+        return count == null ? 0 : Math.max(0, count.get());
+    }
+
+    /**
+     * @return the open connections at the time of the call.
+     */
+    public List<ClientRequestExecutor> getConnections() {
+        return new ArrayList<>(connections.keySet());
+    }
+
+    /**
+     * @return the number of connections refused because their remote address had too many open.
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+}
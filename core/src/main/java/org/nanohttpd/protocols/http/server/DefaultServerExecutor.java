@@ -30,16 +30,37 @@
 package org.nanohttpd.protocols.http.server;
 
 import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.ServerSocketFactory;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
+/**
+ * Accepts connections on one or more acceptor threads and passes them to the server. The first acceptor runs on the
+ * server thread. Additional acceptors listen on sockets of their own when the server socket factory is a
+ * {@link ChannelServerSocketFactory} with {@code SO_REUSEPORT}, and share the server socket otherwise.
+ */
 public class DefaultServerExecutor extends NanoHTTPD.ServerExecutor {
     private final NanoHTTPD server;
 
+    private final int acceptorCount;
+
+    private volatile Acceptor[] acceptors = new Acceptor[0];
+
     public DefaultServerExecutor(NanoHTTPD server) {
+        this(server, 1);
+    }
+
+    public DefaultServerExecutor(NanoHTTPD server, int acceptorCount) {
+        if (acceptorCount < 1)
+            throw new IllegalArgumentException("There must be at least one acceptor.");
+
         this.server = server;
+        this.acceptorCount = acceptorCount;
     }
 
     @Override
@@ -47,17 +68,122 @@ public class DefaultServerExecutor extends NanoHTTPD.ServerExecutor {
         return server;
     }
 
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    /**
+     * @return number of connections each acceptor accepted during the current or last execution, indexed by acceptor.
+     */
+    public long[] getAcceptCounts() {
+        Acceptor[] acceptors = this.acceptors;
+        long[] counts = new long[acceptors.length];
+        for (int i = 0; i < acceptors.length; i++)
+            counts[i] = acceptors[i].accepted.get();
+        return counts;
+    }
+
+    /**
+     * @return connections accepted per second by each acceptor since the execution started, indexed by acceptor.
+     */
+    public double[] getAcceptRates() {
+        Acceptor[] acceptors = this.acceptors;
+        double[] rates = new double[acceptors.length];
+        for (int i = 0; i < acceptors.length; i++) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - acceptors[i].startTime);
+            rates[i] = acceptors[i].accepted.get() * 1000.0 / elapsed;
+        }
+        return rates;
+    }
+
     @Override
     protected void serve(ServerSocket serverSocket) {
-        while (!serverSocket.isClosed() && !Thread.interrupted()) {
+        Acceptor[] acceptors = new Acceptor[acceptorCount];
+        Thread[] threads = new Thread[acceptorCount];
+        try {
+            acceptors[0] = new Acceptor(serverSocket);
+            for (int i = 1; i < acceptorCount; i++) {
+                acceptors[i] = new Acceptor(openAcceptorSocket(serverSocket));
+                threads[i] = new Thread(acceptors[i]);
+                threads[i].setDaemon(Thread.currentThread().isDaemon());
+                threads[i].setName("uduhttpd acceptor " + i);
+            }
+            this.acceptors = acceptors;
+
+            for (int i = 1; i < acceptorCount; i++)
+                threads[i].start();
+            acceptors[0].run();
+        } finally {
+            // stops the other acceptors, whether they have sockets of their own or share this one
+            for (Acceptor acceptor : acceptors)
+                if (acceptor != null)
+                    NanoHTTPD.safeClose(acceptor.serverSocket);
+
+            for (Thread thread : threads)
+                try {
+                    if (thread != null && thread.isAlive())
+                        thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+            for (int i = 0; i < acceptorCount; i++)
+                if (acceptors[i] != null)
+                    NanoHTTPD.LOG.log(Level.FINE, "Acceptor {0} accepted {1} connections.",
+                            new Object[]{i, acceptors[i].accepted.get()});
+        }
+    }
+
+    private ServerSocket openAcceptorSocket(ServerSocket serverSocket) {
+        ServerSocketFactory factory = server.getServerSocketFactory();
+        if (factory instanceof ChannelServerSocketFactory)
             try {
-                serverSocket.setReuseAddress(true);
-                Socket client = serverSocket.accept();
-                client.setSoTimeout(getServer().getServerSocketFactory().getSoTimeout());
-                server.handleConnectionRequest(client);
+                ServerSocket sibling = ((ChannelServerSocketFactory) factory).createSibling(serverSocket);
+                if (sibling != null)
+                    return sibling;
             } catch (IOException e) {
-                if (!serverSocket.isClosed())
-                    e.printStackTrace();
+                NanoHTTPD.LOG.log(Level.WARNING, "Could not open a SO_REUSEPORT socket, the acceptor shares the " +
+                        "server socket.", e);
+            }
+
+        return serverSocket;
+    }
+
+    /**
+     * Hand over a freshly accepted client socket. By default the socket is passed to
+     * {@link NanoHTTPD#handleConnectionRequest(Socket)} and served by a thread from the client request executor service.
+     * With more than one acceptor this is called concurrently from all acceptor threads.
+     *
+     * @param clientSocket the accepted socket with its timeout already set.
+     * @throws IOException when the socket cannot be prepared for serving.
+     */
+    protected void handleClient(Socket clientSocket) throws IOException {
+        server.handleConnectionRequest(clientSocket);
+    }
+
+    private class Acceptor implements Runnable {
+        private final ServerSocket serverSocket;
+
+        private final AtomicLong accepted = new AtomicLong();
+
+        private final long startTime = System.currentTimeMillis();
+
+        Acceptor(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed() && !Thread.interrupted()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    client.setSoTimeout(getServer().getServerSocketFactory().getSoTimeout());
+                    handleClient(client);
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed())
+                        NanoHTTPD.LOG.log(Level.SEVERE, "Could not accept a connection.", e);
+                }
             }
         }
     }
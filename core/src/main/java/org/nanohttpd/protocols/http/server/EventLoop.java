@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.server;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * A single selector thread that watches many client connections for read readiness. Connections are registered while
+ * they have nothing to be served yet, and are handed off (in blocking mode again) once their {@link Client} says so.
+ * This way an idle or slowly sending connection costs a selection key instead of a thread.
+ */
+public class EventLoop implements Runnable, Closeable {
+    /**
+     * The maximum time the loop sleeps in {@link Selector#select(long)} before checking for idle connections.
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /**
+     * A connection that can be watched by an event loop.
+     */
+    public interface Client extends Closeable {
+        SocketChannel getChannel();
+
+        /**
+         * Called on the event loop thread when the channel has bytes to read. The channel is in non-blocking mode.
+         *
+         * @return {@code true} if the connection should be handed off now.
+         * @throws IOException when the connection is broken, it will be closed.
+         */
+        boolean onReadable() throws IOException;
+
+        /**
+         * Called on the event loop thread after the connection left the selector and went back to blocking mode.
+         */
+        void onHandOff();
+    }
+
+    private static final class Entry {
+        private final Client client;
+
+        private long lastActivity;
+
+        private Entry(Client client, long lastActivity) {
+            this.client = client;
+            this.lastActivity = lastActivity;
+        }
+    }
+
+    private final Selector selector;
+
+    private final Queue<Client> registrations = new ConcurrentLinkedQueue<>();
+
+    private final List<Client> handOffs = new ArrayList<>();
+
+    private final long idleTimeout;
+
+    private volatile boolean closed;
+
+    private long lastIdleCheck;
+
+    /**
+     * @param idleTimeout milliseconds a registered connection may stay silent before it is closed, {@code 0} to keep
+     *                    connections as long as the client does.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public EventLoop(long idleTimeout) throws IOException {
+        this.selector = Selector.open();
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Watch the given client. This can be called from any thread; the channel is put into non-blocking mode by the
+     * loop itself.
+     */
+    public void register(Client client) {
+        if (closed) {
+            NanoHTTPD.safeClose(client);
+            return;
+        }
+
+        registrations.add(client);
+        selector.wakeup();
+
+        // the loop may have shut down in the meantime and will never pick this one up
+        if (closed && registrations.remove(client))
+            NanoHTTPD.safeClose(client);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void run() {
+        lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (!closed) {
+                selector.select(SELECT_TIMEOUT);
+                long now = System.currentTimeMillis();
+                processRegistrations(now);
+                processSelectedKeys(now);
+                processHandOffs();
+                if (idleTimeout > 0 && now - lastIdleCheck >= SELECT_TIMEOUT) {
+                    closeIdleClients(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            NanoHTTPD.LOG.log(Level.SEVERE, "Event loop exited unexpectedly.", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void processRegistrations(long now) {
+        Client client;
+        while ((client = registrations.poll()) != null) {
+            try {
+                SocketChannel channel = client.getChannel();
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Entry(client, now));
+            } catch (IOException e) {
+                NanoHTTPD.safeClose(client);
+            }
+        }
+    }
+
+    private void processSelectedKeys(long now) {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            Entry entry = (Entry) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    entry.lastActivity = now;
+                    if (entry.client.onReadable()) {
+                        key.cancel();
+                        handOffs.add(entry.client);
+                    }
+                }
+            } catch (IOException | CancelledKeyException e) {
+                key.cancel();
+                NanoHTTPD.safeClose(entry.client);
+            }
+        }
+    }
+
+    private void processHandOffs() throws IOException {
+        if (handOffs.isEmpty())
+            return;
+
+        // A channel cannot go back to blocking mode before its cancelled key is flushed out of the selector.
+        selector.selectNow();
+        for (Client client : handOffs) {
+            try {
+                client.getChannel().configureBlocking(true);
+                client.onHandOff();
+            } catch (IOException e) {
+                NanoHTTPD.safeClose(client);
+            }
+        }
+        handOffs.clear();
+    }
+
+    private void closeIdleClients(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Entry entry = (Entry) key.attachment();
+            if (key.isValid() && now - entry.lastActivity >= idleTimeout) {
+                key.cancel();
+                NanoHTTPD.safeClose(entry.client);
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys())
+                NanoHTTPD.safeClose(((Entry) key.attachment()).client);
+        } catch (ClosedSelectorException ignored) {
+        }
+
+        Client client;
+        while ((client = registrations.poll()) != null)
+            NanoHTTPD.safeClose(client);
+
+        NanoHTTPD.safeClose(selector);
+    }
+}
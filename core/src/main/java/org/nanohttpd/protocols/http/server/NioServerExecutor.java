@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.server;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.client.NioClientRequestExecutor;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Server executor that keeps client connections on a few {@link EventLoop} threads while they are idle or still
+ * sending their request header. Worker threads from the client request executor service only see requests whose
+ * header has fully arrived, so thousands of open keep-alive connections cost a handful of threads. Handlers run
+ * exactly as with {@link DefaultServerExecutor}.
+ * <p/>
+ * The server socket has to be backed by a channel, e.g. created by
+ * {@link org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory}.
+ */
+public class NioServerExecutor extends DefaultServerExecutor {
+    public static final int DEFAULT_EVENT_LOOP_COUNT = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final int eventLoopCount;
+
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    private EventLoop[] eventLoops;
+
+    public NioServerExecutor(NanoHTTPD server) {
+        this(server, DEFAULT_EVENT_LOOP_COUNT);
+    }
+
+    public NioServerExecutor(NanoHTTPD server, int eventLoopCount) {
+        this(server, eventLoopCount, 1);
+    }
+
+    public NioServerExecutor(NanoHTTPD server, int eventLoopCount, int acceptorCount) {
+        super(server, acceptorCount);
+
+        if (eventLoopCount < 1)
+            throw new IllegalArgumentException("There must be at least one event loop.");
+
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    @Override
+    protected void serve(ServerSocket serverSocket) {
+        if (serverSocket.getChannel() == null) {
+            NanoHTTPD.LOG.log(Level.SEVERE, "The server socket has no channel, use a ChannelServerSocketFactory.");
+            return;
+        }
+
+        eventLoops = new EventLoop[eventLoopCount];
+        Thread[] threads = new Thread[eventLoopCount];
+        try {
+            for (int i = 0; i < eventLoopCount; i++) {
+                eventLoops[i] = new EventLoop(getServer().getKeepAliveTimeout());
+                threads[i] = new Thread(eventLoops[i]);
+                threads[i].setDaemon(Thread.currentThread().isDaemon());
+                threads[i].setName("uduhttpd event loop " + i);
+                threads[i].start();
+            }
+
+            super.serve(serverSocket);
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.SEVERE, "Could not open the event loops.", e);
+        } finally {
+            for (EventLoop eventLoop : eventLoops)
+                if (eventLoop != null)
+                    eventLoop.close();
+
+            for (Thread thread : threads)
+                try {
+                    if (thread != null)
+                        thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+        }
+    }
+
+    @Override
+    protected void handleClient(Socket clientSocket) {
+        EventLoop eventLoop = eventLoops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+        NioClientRequestExecutor requestExecutor = new NioClientRequestExecutor(getServer(), clientSocket, eventLoop);
+        if (getServer().registerConnection(requestExecutor))
+            eventLoop.register(requestExecutor);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.sockets;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Creates a ServerSocket backed by a {@link ServerSocketChannel} for TCP connections. The client sockets accepted from
+ * it also have a channel, which is what {@link org.nanohttpd.protocols.http.server.NioServerExecutor} needs to watch
+ * them with a selector.
+ * <p/>
+ * With {@code reusePort} enabled the sockets are created with {@code SO_REUSEPORT}, so every acceptor thread of a
+ * {@link org.nanohttpd.protocols.http.server.DefaultServerExecutor} can listen on a socket of its own and the
+ * operating system spreads incoming connections over them. The option needs Java 9 and an operating system that
+ * supports it, otherwise the acceptors share one socket.
+ */
+public class ChannelServerSocketFactory extends ServerSocketFactoryImpl {
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+
+    private final boolean mReusePort;
+
+    public ChannelServerSocketFactory(InetAddress bindAddress, int bindPort, int timeout) {
+        this(bindAddress, bindPort, timeout, DEFAULT_BACKLOG, false);
+    }
+
+    public ChannelServerSocketFactory(InetAddress bindAddress, int bindPort, int timeout, int backlog,
+                                      boolean reusePort) {
+        super(bindAddress, bindPort, timeout, backlog);
+        mReusePort = reusePort;
+    }
+
+    public ChannelServerSocketFactory(int bindPort) {
+        this(null, bindPort, NanoHTTPD.SOCKET_READ_TIMEOUT);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            // StandardSocketOptions.SO_REUSEPORT was added in Java 9
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the created sockets are bound with {@code SO_REUSEPORT}, which needs the option to be enabled
+     * and supported by the running Java version and operating system.
+     */
+    public boolean isReusePort() {
+        if (!mReusePort || SO_REUSEPORT == null)
+            return false;
+
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public ServerSocket create() throws IOException {
+        return open(getBindPort());
+    }
+
+    /**
+     * Create another socket listening on the same port as the given one, for an additional acceptor thread.
+     *
+     * @param serverSocket a socket created by this factory.
+     * @return the new socket, or null when {@link #isReusePort()} is false and the given socket has to be shared.
+     * @throws IOException when the socket cannot be bound.
+     */
+    public ServerSocket createSibling(ServerSocket serverSocket) throws IOException {
+        return isReusePort() ? open(serverSocket.getLocalPort()) : null;
+    }
+
+    private ServerSocket open(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            ServerSocket serverSocket = channel.socket();
+            serverSocket.setReuseAddress(true);
+            if (mReusePort && SO_REUSEPORT != null && channel.supportedOptions().contains(SO_REUSEPORT))
+                channel.setOption(SO_REUSEPORT, true);
+            serverSocket.bind(new InetSocketAddress(getBindAddress(), port), getBacklog());
+            return serverSocket;
+        } catch (IOException e) {
+            NanoHTTPD.safeClose(channel);
+            throw e;
+        }
+    }
+}
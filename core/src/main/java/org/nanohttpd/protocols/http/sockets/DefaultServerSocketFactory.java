@@ -30,21 +30,19 @@
 
 package org.nanohttpd.protocols.http.sockets;
 
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 
 /**
- * Creates a normal ServerSocket for TCP connections
+ * Creates a ServerSocket for TCP connections. It is backed by a channel like the ones of
+ * {@link ChannelServerSocketFactory}, so idle keep-alive connections are watched without holding a thread and file
+ * bodies are sent without copying them, but it is bound without {@code SO_REUSEPORT}.
  */
-public class DefaultServerSocketFactory extends ServerSocketFactoryImpl {
+public class DefaultServerSocketFactory extends ChannelServerSocketFactory {
     public DefaultServerSocketFactory(InetAddress bindAddress, int bindPort, int timeout) {
         super(bindAddress, bindPort, timeout);
     }
 
-    @Override
-    public ServerSocket create() throws IOException {
-        return getBindAddress() != null ? new ServerSocket(getBindPort(), 0, getBindAddress())
-                : new ServerSocket(getBindPort());
+    public DefaultServerSocketFactory(InetAddress bindAddress, int bindPort, int timeout, int backlog) {
+        super(bindAddress, bindPort, timeout, backlog, false);
     }
 }
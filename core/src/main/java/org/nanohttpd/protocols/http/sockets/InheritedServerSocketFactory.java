@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.sockets;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adopts a listening socket that is already bound instead of binding one, such as the socket a process inherits from
+ * the one it replaces or from a service manager. The process being replaced keeps accepting until the new one is
+ * ready and then drains, see {@link NanoHTTPD#drain(int)}. As both hold the same socket, the connections waiting in
+ * its backlog are accepted by the new process, while two sockets bound with {@code SO_REUSEPORT} would lose those of
+ * the socket that is closed.
+ * <p/>
+ * Stopping the server closes the socket, so it can only be adopted once.
+ */
+public class InheritedServerSocketFactory implements ServerSocketFactory {
+    private final ServerSocketChannel mChannel;
+
+    private final int mSoTimeout;
+
+    private final AtomicBoolean mAdopted = new AtomicBoolean();
+
+    public InheritedServerSocketFactory(ServerSocketChannel channel, int timeout) {
+        if (channel == null)
+            throw new IllegalArgumentException("The channel cannot be null.");
+
+        mChannel = channel;
+        mSoTimeout = timeout;
+    }
+
+    public InheritedServerSocketFactory(ServerSocketChannel channel) {
+        this(channel, NanoHTTPD.SOCKET_READ_TIMEOUT);
+    }
+
+    /**
+     * @return a factory adopting the listening socket this process inherited, see {@link System#inheritedChannel()},
+     * or {@code null} if it did not inherit one.
+     * @throws IOException when the inherited channel cannot be obtained.
+     */
+    public static InheritedServerSocketFactory fromInheritedChannel(int timeout) throws IOException {
+        Channel channel = System.inheritedChannel();
+        return channel instanceof ServerSocketChannel
+                ? new InheritedServerSocketFactory((ServerSocketChannel) channel, timeout) : null;
+    }
+
+    @Override
+    public ServerSocket create() throws IOException {
+        if (!mAdopted.compareAndSet(false, true))
+            throw new IOException("The inherited socket was already adopted.");
+
+        ServerSocket serverSocket = mChannel.socket();
+        if (!mChannel.isOpen() || !serverSocket.isBound())
+            throw new IOException("The inherited socket is not listening.");
+
+        // accepting through the socket needs a blocking channel
+        mChannel.configureBlocking(true);
+        return serverSocket;
+    }
+
+    @Override
+    public InetAddress getBindAddress() {
+        return mChannel.socket().getInetAddress();
+    }
+
+    @Override
+    public int getBindPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return mSoTimeout;
+    }
+}
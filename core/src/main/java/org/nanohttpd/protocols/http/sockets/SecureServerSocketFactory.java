@@ -47,7 +47,12 @@ public class SecureServerSocketFactory extends ServerSocketFactoryImpl {
 
     public SecureServerSocketFactory(InetAddress bindAddress, int bindPort, int timeout,
                                      SSLServerSocketFactory sslServerSocketFactory, String[] sslProtocols) {
-        super(bindAddress, bindPort, timeout);
+        this(bindAddress, bindPort, timeout, DEFAULT_BACKLOG, sslServerSocketFactory, sslProtocols);
+    }
+
+    public SecureServerSocketFactory(InetAddress bindAddress, int bindPort, int timeout, int backlog,
+                                     SSLServerSocketFactory sslServerSocketFactory, String[] sslProtocols) {
+        super(bindAddress, bindPort, timeout, backlog);
         mServerSocketFactory = sslServerSocketFactory;
         mSslProtocols = sslProtocols;
     }
@@ -59,7 +64,7 @@ public class SecureServerSocketFactory extends ServerSocketFactoryImpl {
     @Override
     public ServerSocket create() throws IOException {
         SSLServerSocket serverSocket = (SSLServerSocket) mServerSocketFactory.createServerSocket(
-                getBindPort(), 0, getBindAddress());
+                getBindPort(), getBacklog(), getBindAddress());
         serverSocket.setEnabledProtocols(mSslProtocols != null ? mSslProtocols : serverSocket.getSupportedProtocols());
         serverSocket.setUseClientMode(false);
         serverSocket.setWantClientAuth(false);
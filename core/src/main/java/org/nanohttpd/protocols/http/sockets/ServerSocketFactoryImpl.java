@@ -34,14 +34,26 @@ import java.net.Socket;
 import java.net.SocketImpl;
 
 abstract class ServerSocketFactoryImpl implements ServerSocketFactory {
+    /**
+     * Listen backlog used unless another one is given. Java falls back to 50 when asked for the system default, which
+     * overflows under connection bursts. Linux caps the value at net.core.somaxconn.
+     */
+    public static final int DEFAULT_BACKLOG = 1024;
+
     private final InetAddress mBindAddress;
     private final int mBindPort;
     private final int mSoTimeout;
+    private final int mBacklog;
 
     public ServerSocketFactoryImpl(InetAddress bindAddress, int bindPort, int timeout) {
+        this(bindAddress, bindPort, timeout, DEFAULT_BACKLOG);
+    }
+
+    public ServerSocketFactoryImpl(InetAddress bindAddress, int bindPort, int timeout, int backlog) {
         mBindAddress = bindAddress;
         mBindPort = bindPort;
         mSoTimeout = timeout;
+        mBacklog = backlog;
 
         if (bindPort < 0)
             throw new IllegalArgumentException("The port cannot be below 0.");
@@ -61,4 +73,12 @@ abstract class ServerSocketFactoryImpl implements ServerSocketFactory {
     public int getSoTimeout() {
         return mSoTimeout;
     }
+
+    /**
+     * @return maximum number of connections the operating system queues for the created server socket until they are
+     * accepted, 0 or less for the system default.
+     */
+    public int getBacklog() {
+        return mBacklog;
+    }
 }
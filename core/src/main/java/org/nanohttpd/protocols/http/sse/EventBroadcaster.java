@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.sse;
+
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Sends server-sent events to any number of subscribers. Each event is encoded once and written to every subscriber
+ * by a small shared pool of threads, which also sends the heartbeat comments that keep idle connections open, so a
+ * subscriber costs no thread of its own. The last events with an id are kept to replay them to clients reconnecting
+ * with {@code Last-Event-ID}.
+ * <p/>
+ * A subscriber that does not keep up has its events queued up to a limit. Past it, events for that subscriber are
+ * dropped or the subscriber is closed, as chosen by the {@link OverflowPolicy}. A closed client reconnects and
+ * catches up from the replayed events.
+ */
+public class EventBroadcaster implements Closeable {
+
+    /**
+     * What to do with a subscriber whose queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Leave the event out for this subscriber.
+         */
+        DROP,
+        /**
+         * Close the connection of the subscriber.
+         */
+        CLOSE
+    }
+
+    public static final int DEFAULT_HISTORY_SIZE = 100;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+
+    public static final int DEFAULT_WRITER_THREADS = 2;
+
+    private final int historySize;
+
+    private final int queueCapacity;
+
+    private final long heartbeatInterval;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final ArrayDeque<ServerSentEvent> history = new ArrayDeque<>();
+
+    private final List<EventStream> subscribers = new ArrayList<>();
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private ScheduledFuture<?> heartbeat;
+
+    private boolean closed;
+
+    public EventBroadcaster() {
+        this(DEFAULT_HISTORY_SIZE, DEFAULT_QUEUE_CAPACITY, DEFAULT_HEARTBEAT_INTERVAL, OverflowPolicy.CLOSE,
+                DEFAULT_WRITER_THREADS);
+    }
+
+    /**
+     * @param historySize       events with an id kept for replay, 0 for none.
+     * @param queueCapacity     events queued per subscriber at most.
+     * @param heartbeatInterval milliseconds between heartbeat comments, 0 for none.
+     * @param overflowPolicy    what to do with a subscriber whose queue is full.
+     * @param writerThreads     threads writing to the subscribers.
+     */
+    public EventBroadcaster(int historySize, int queueCapacity, long heartbeatInterval, OverflowPolicy overflowPolicy,
+                            int writerThreads) {
+        if (historySize < 0)
+            throw new IllegalArgumentException("The history size cannot be negative.");
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("The queue capacity must be positive.");
+        if (heartbeatInterval < 0)
+            throw new IllegalArgumentException("The heartbeat interval cannot be negative.");
+        if (overflowPolicy == null)
+            throw new NullPointerException("Overflow policy cannot be null.");
+        if (writerThreads <= 0)
+            throw new IllegalArgumentException("The number of writer threads must be positive.");
+
+        this.historySize = historySize;
+        this.queueCapacity = queueCapacity;
+        this.heartbeatInterval = heartbeatInterval;
+        this.overflowPolicy = overflowPolicy;
+        this.executor = new ScheduledThreadPoolExecutor(writerThreads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                thread.setName("uduhttpd event broadcaster");
+                return thread;
+            }
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Subscribe the client of the session, replaying the events it missed when it reconnects with
+     * {@code Last-Event-ID}.
+     *
+     * @return the response to answer the request with.
+     */
+    public EventStream subscribe(HTTPSession session) {
+        return subscribe(session.getHeaders().get("last-event-id"));
+    }
+
+    /**
+     * @param lastEventId the id of the last event the client received, null for a new client. When it is no longer
+     *                    kept, every kept event is replayed.
+     * @return the response to send to the subscriber.
+     */
+    public synchronized EventStream subscribe(String lastEventId) {
+        if (closed)
+            throw new IllegalStateException("The broadcaster is closed.");
+
+        EventStream stream = new EventStream(this, lastEventId, queueCapacity);
+        if (lastEventId != null) {
+            List<ServerSentEvent> missed = new ArrayList<>(history);
+            for (int i = missed.size() - 1; i >= 0; i--) {
+                if (lastEventId.equals(missed.get(i).getId())) {
+                    missed = missed.subList(i + 1, missed.size());
+                    break;
+                }
+            }
+            stream.replay(missed);
+        }
+        subscribers.add(stream);
+
+        if (heartbeat == null && heartbeatInterval > 0) {
+            heartbeat = executor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (EventStream subscriber : getSubscribers())
+                        subscriber.heartbeat();
+                }
+            }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        }
+        return stream;
+    }
+
+    /**
+     * Send the event to every subscriber, and keep it for replay if it has an id.
+     */
+    public synchronized void broadcast(ServerSentEvent event) {
+        if (closed)
+            throw new IllegalStateException("The broadcaster is closed.");
+
+        if (event.getId() != null && historySize > 0) {
+            if (history.size() == historySize)
+                history.removeFirst();
+            history.addLast(event);
+        }
+        for (EventStream subscriber : getSubscribers())
+            deliver(subscriber, event);
+    }
+
+    /**
+     * @return whether the event was queued for the subscriber.
+     */
+    synchronized boolean deliver(EventStream subscriber, ServerSentEvent event) {
+        if (subscriber.offer(event))
+            return true;
+
+        if (overflowPolicy == OverflowPolicy.CLOSE) {
+            NanoHTTPD.LOG.log(Level.FINE, "Closing an event stream that does not keep up.");
+            subscriber.finish(true);
+        } else {
+            NanoHTTPD.LOG.log(Level.FINE, "Dropping an event for an event stream that does not keep up.");
+        }
+        return false;
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private synchronized List<EventStream> getSubscribers() {
+        return new ArrayList<>(subscribers);
+    }
+
+    synchronized void remove(EventStream subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * End every stream once its queued events are written and stop the writer threads.
+     */
+    @Override
+    public void close() {
+        List<EventStream> streams;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (heartbeat != null)
+                heartbeat.cancel(false);
+            streams = new ArrayList<>(subscribers);
+        }
+        for (EventStream stream : streams)
+            stream.end();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.sse;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.protocols.http.response.AsyncResponse;
+import org.nanohttpd.protocols.http.response.BodyOutputStream;
+import org.nanohttpd.protocols.http.response.CoalescingOutputStream;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.StreamingBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+/**
+ * A {@code text/event-stream} response of one subscriber of an {@link EventBroadcaster}, created by
+ * {@link EventBroadcaster#subscribe(org.nanohttpd.protocols.http.HTTPSession)}. Once the head is sent the connection
+ * waits without a thread, and events are written by the broadcaster's threads as a chunk each, flushed one by one.
+ * Events wait in a bounded queue while the client is slow to take them.
+ */
+public class EventStream extends Response {
+
+    private static final StreamingBody NO_BODY = new StreamingBody() {
+
+        @Override
+        public void writeTo(BodyOutputStream out) {
+            // the events follow once the stream is sent
+        }
+    };
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ServerSentEvent HEARTBEAT = ServerSentEvent.comment("");
+
+    /**
+     * Queued by {@link #end()} behind the remaining events.
+     */
+    private static final ServerSentEvent END = ServerSentEvent.comment("end");
+
+    private final EventBroadcaster broadcaster;
+
+    private final String lastEventId;
+
+    private final int capacity;
+
+    private final ArrayDeque<ServerSentEvent> queue = new ArrayDeque<>();
+
+    private final AsyncResponse hold = new AsyncResponse().setTimeout(0, null);
+
+    private final Runnable drain = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * The connection, once the head was sent.
+     */
+    private OutputStream out;
+
+    private boolean draining;
+
+    private boolean ending;
+
+    private boolean closed;
+
+    EventStream(EventBroadcaster broadcaster, String lastEventId, int capacity) {
+        super(DefaultStatusCode.OK, "text/event-stream", -1, NO_BODY);
+        this.broadcaster = broadcaster;
+        this.lastEventId = lastEventId;
+        this.capacity = capacity;
+        addHeader("Cache-Control", "no-cache");
+        setUseGzip(false);
+    }
+
+    /**
+     * @return the {@code Last-Event-ID} the client reconnected with, null for a new client.
+     */
+    public String getLastEventId() {
+        return lastEventId;
+    }
+
+    @Override
+    public AsyncResponse getConnectionHold() {
+        return hold;
+    }
+
+    /**
+     * @return whether events are still sent to this subscriber.
+     */
+    public synchronized boolean isOpen() {
+        return !closed && !ending;
+    }
+
+    /**
+     * Send an event to this subscriber only. A full queue is handled like for a broadcast event.
+     *
+     * @return whether the event was queued.
+     */
+    public boolean send(ServerSentEvent event) {
+        return broadcaster.deliver(this, event);
+    }
+
+    /**
+     * End the stream once the queued events are written. The connection then serves the next request.
+     */
+    public void end() {
+        synchronized (this) {
+            if (closed || ending)
+                return;
+            ending = true;
+            queue.add(END);
+        }
+        // it takes no more events, whether or not the last ones are written yet
+        broadcaster.remove(this);
+        scheduleDrain();
+    }
+
+    @Override
+    public void send(OutputStream outputStream) {
+        // events go out as they come, never held back for a pipelined request
+        if (outputStream instanceof CoalescingOutputStream)
+            ((CoalescingOutputStream) outputStream).setCoalescing(false);
+        super.send(outputStream);
+
+        boolean cancelled;
+        synchronized (this) {
+            cancelled = closed;
+            if (!closed && getRequestMethod() != Method.HEAD && !isCloseConnection())
+                this.out = outputStream;
+        }
+        if (cancelled) {
+            closeConnection(true);
+        } else if (this.out == null) {
+            // a HEAD request, or the head could not be sent
+            finish(false);
+        } else {
+            scheduleDrain();
+        }
+    }
+
+    void replay(Collection<ServerSentEvent> events) {
+        synchronized (this) {
+            queue.addAll(events);
+        }
+    }
+
+    /**
+     * @return {@code false} if the queue is full, the event is not queued then.
+     */
+    boolean offer(ServerSentEvent event) {
+        synchronized (this) {
+            if (closed || ending)
+                return true;
+            if (queue.size() >= capacity)
+                return false;
+            queue.add(event);
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    void heartbeat() {
+        synchronized (this) {
+            // a subscriber with events waiting does not need to be kept awake
+            if (out == null || closed || ending || !queue.isEmpty())
+                return;
+            queue.add(HEARTBEAT);
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (out == null || closed || draining || queue.isEmpty())
+                return;
+            draining = true;
+        }
+        try {
+            broadcaster.execute(drain);
+        } catch (RejectedExecutionException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "The broadcaster is closed, closing the event stream.", e);
+            finish(true);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            ServerSentEvent event;
+            OutputStream out;
+            synchronized (this) {
+                event = queue.poll();
+                if (event == null || closed) {
+                    draining = false;
+                    return;
+                }
+                out = this.out;
+            }
+            try {
+                if (event == END) {
+                    out.write(LAST_CHUNK);
+                    out.flush();
+                    finish(false);
+                    return;
+                }
+                out.write(event.chunk());
+                out.flush();
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "Could not write to the event stream, closing it.", e);
+                finish(true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop sending events and give the connection back, closing it if the stream is cut short.
+     */
+    void finish(boolean close) {
+        OutputStream out;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            queue.clear();
+            out = this.out;
+        }
+        if (close && out != null) {
+            closeConnection(true);
+            // also wakes a writer blocked on a client that stopped reading
+            NanoHTTPD.safeClose(out);
+        }
+        broadcaster.remove(this);
+        hold.complete(null);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.protocols.http.sse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * An event of a {@code text/event-stream}. The event is encoded once, as the chunk it is sent in, and the same bytes
+ * go to every subscriber.
+ */
+public final class ServerSentEvent {
+
+    private static final Pattern LINE_BREAK = Pattern.compile("\r\n|\r|\n");
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final String id;
+
+    private final String event;
+
+    private final String data;
+
+    private final long retry;
+
+    private final String comment;
+
+    private volatile byte[] chunk;
+
+    /**
+     * @param id    the id a reconnecting client sends back as {@code Last-Event-ID}, may be null.
+     * @param event the event type, null for {@code message}.
+     * @param data  the data, may span several lines.
+     */
+    public ServerSentEvent(String id, String event, String data) {
+        this(id, event, data, -1);
+    }
+
+    /**
+     * @param retry milliseconds the client should wait before reconnecting, -1 to leave it to the client.
+     */
+    public ServerSentEvent(String id, String event, String data, long retry) {
+        this(id, event, data, retry, null);
+    }
+
+    private ServerSentEvent(String id, String event, String data, long retry, String comment) {
+        if (id != null && (id.indexOf('\n') >= 0 || id.indexOf('\r') >= 0 || id.indexOf('\0') >= 0))
+            throw new IllegalArgumentException("The id of an event cannot contain line breaks or NUL.");
+        if (event != null && (event.indexOf('\n') >= 0 || event.indexOf('\r') >= 0))
+            throw new IllegalArgumentException("The type of an event cannot contain line breaks.");
+
+        this.id = id;
+        this.event = event;
+        this.data = data;
+        this.retry = retry;
+        this.comment = comment;
+    }
+
+    /**
+     * @return a comment, which clients ignore. Used to keep idle connections open.
+     */
+    public static ServerSentEvent comment(String comment) {
+        return new ServerSentEvent(null, null, null, -1, comment);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public long getRetry() {
+        return retry;
+    }
+
+    @Override
+    public String toString() {
+        return new String(encode(), StandardCharsets.UTF_8);
+    }
+
+    private byte[] encode() {
+        StringBuilder text = new StringBuilder();
+        if (comment != null) {
+            for (String line : LINE_BREAK.split(comment, -1))
+                text.append(": ").append(line).append('\n');
+        }
+        if (id != null)
+            text.append("id: ").append(id).append('\n');
+        if (event != null)
+            text.append("event: ").append(event).append('\n');
+        if (retry >= 0)
+            text.append("retry: ").append(retry).append('\n');
+        if (data != null) {
+            for (String line : LINE_BREAK.split(data, -1))
+                text.append("data: ").append(line).append('\n');
+        }
+        text.append('\n');
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the encoded event framed as a chunk of a chunked body.
+     */
+    byte[] chunk() {
+        byte[] chunk = this.chunk;
+        if (chunk == null) {
+            byte[] encoded = encode();
+            int digits = Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(encoded.length) + 3) / 4);
+            chunk = new byte[digits + 2 + encoded.length + 2];
+            for (int i = digits - 1, value = encoded.length; i >= 0; i--, value >>>= 4)
+                chunk[i] = HEX_DIGITS[value & 0xf];
+            chunk[digits] = '\r';
+            chunk[digits + 1] = '\n';
+            System.arraycopy(encoded, 0, chunk, digits + 2, encoded.length);
+            chunk[chunk.length - 2] = '\r';
+            chunk[chunk.length - 1] = '\n';
+            this.chunk = chunk;
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.util.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands out buffers for short lived I/O and takes them back for reuse, so that serving requests does not keep
+ * allocating arrays that die young. A buffer must not be used after it was released, and must be released at most
+ * once.
+ */
+public interface BufferPool {
+
+    /**
+     * @param minimumSize the number of bytes needed.
+     * @return an array of at least the given size, its content is undefined.
+     */
+    byte[] acquire(int minimumSize);
+
+    /**
+     * Give back an array acquired from this pool. Arrays the pool cannot reuse are left to the garbage collector.
+     */
+    void release(byte[] buffer);
+
+    /**
+     * @param minimumSize the number of bytes needed.
+     * @return a cleared buffer with a capacity of at least the given size, direct if the pool is configured so.
+     */
+    ByteBuffer acquireByteBuffer(int minimumSize);
+
+    /**
+     * Give back a buffer acquired with {@link #acquireByteBuffer(int)}.
+     */
+    void release(ByteBuffer buffer);
+
+    /**
+     * @return how many buffers were served from the pool.
+     */
+    long getHitCount();
+
+    /**
+     * @return how many buffers had to be allocated.
+     */
+    long getMissCount();
+
+    /**
+     * @return how many poolable buffers are acquired and not yet released.
+     */
+    long getOutstandingCount();
+}
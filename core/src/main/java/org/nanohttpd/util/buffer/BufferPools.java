@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.util.buffer;
+
+/**
+ * Holds the buffer pool used by the server for request and response I/O. Responses and frames are written without
+ * knowing the server they belong to, so the pool is shared by all servers of the process.
+ */
+public final class BufferPools {
+
+    private static volatile BufferPool defaultPool = new DefaultBufferPool();
+
+    private static volatile BufferPool directPool = new DefaultBufferPool(64 * 1024, 1024 * 1024, 4, 0, true);
+
+    private BufferPools() {
+    }
+
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replace the pool, e.g. by one with direct buffers or by one without thread-local caches when connections are
+     * served by virtual threads. Buffers acquired from the old pool are still released to it.
+     */
+    public static void setDefault(BufferPool pool) {
+        if (pool == null)
+            throw new IllegalArgumentException("The buffer pool cannot be null.");
+
+        defaultPool = pool;
+    }
+
+    /**
+     * @return the pool of direct buffers that holds request bodies too large for the heap, see
+     * {@link org.nanohttpd.protocols.http.request.BodyStore}.
+     */
+    public static BufferPool getDirect() {
+        return directPool;
+    }
+
+    /**
+     * Replace the pool of direct buffers, e.g. by one that keeps fewer of them when direct memory is scarce.
+     */
+    public static void setDirect(BufferPool pool) {
+        if (pool == null)
+            throw new IllegalArgumentException("The buffer pool cannot be null.");
+
+        directPool = pool;
+    }
+}
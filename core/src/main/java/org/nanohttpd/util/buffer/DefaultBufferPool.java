@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.util.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pools buffers in size classes of powers of two. Every thread keeps a few buffers of each class for itself, so most
+ * requests are served without touching shared state; the rest go through a bounded queue per class that is shared by
+ * all threads. Requests larger than the largest class are allocated and left to the garbage collector.
+ * <p/>
+ * Byte buffers are heap buffers backed by pooled arrays, or, with {@code direct} enabled, direct buffers from pools of
+ * their own. Direct buffers are only shared, a thread-local cache of them would pin native memory to idle threads.
+ * <p/>
+ * With one virtual thread per connection the thread-local caches rarely see a second request; set
+ * {@code threadLocalBuffers} to 0 then.
+ */
+public class DefaultBufferPool implements BufferPool {
+    public static final int DEFAULT_MINIMUM_SIZE = 512;
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_SHARED_BUFFERS = 64;
+
+    public static final int DEFAULT_THREAD_LOCAL_BUFFERS = 4;
+
+    private final int minimumShift;
+
+    private final int maximumSize;
+
+    private final int threadLocalBuffers;
+
+    private final boolean direct;
+
+    private final ArrayBlockingQueue<byte[]>[] shared;
+
+    private final ArrayBlockingQueue<ByteBuffer>[] sharedDirect;
+
+    private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+
+        @Override
+        protected Cache initialValue() {
+            return new Cache(shared.length, threadLocalBuffers);
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * The buffers kept by one thread, a stack for every size class.
+     */
+    private static final class Cache {
+        private final byte[][][] buffers;
+
+        private final int[] counts;
+
+        private Cache(int classes, int buffersPerClass) {
+            buffers = new byte[classes][buffersPerClass][];
+            counts = new int[classes];
+        }
+    }
+
+    public DefaultBufferPool() {
+        this(DEFAULT_MINIMUM_SIZE, DEFAULT_MAXIMUM_SIZE, DEFAULT_SHARED_BUFFERS, DEFAULT_THREAD_LOCAL_BUFFERS, false);
+    }
+
+    /**
+     * @param minimumSize        size of the smallest class, a power of two.
+     * @param maximumSize        size of the largest class, a power of two.
+     * @param sharedBuffers      buffers of each class kept for all threads.
+     * @param threadLocalBuffers buffers of each class kept by every thread, 0 to only use the shared ones.
+     * @param direct             whether {@link #acquireByteBuffer(int)} returns direct buffers.
+     */
+    @SuppressWarnings({
+            "unchecked",
+            "rawtypes"
+    })
+    public DefaultBufferPool(int minimumSize, int maximumSize, int sharedBuffers, int threadLocalBuffers,
+                             boolean direct) {
+        if (Integer.bitCount(minimumSize) != 1 || Integer.bitCount(maximumSize) != 1 || maximumSize < minimumSize)
+            throw new IllegalArgumentException("Invalid size classes: " + minimumSize + "/" + maximumSize);
+        if (sharedBuffers < 0 || threadLocalBuffers < 0)
+            throw new IllegalArgumentException("The number of pooled buffers cannot be negative.");
+
+        this.minimumShift = Integer.numberOfTrailingZeros(minimumSize);
+        this.maximumSize = maximumSize;
+        this.threadLocalBuffers = threadLocalBuffers;
+        this.direct = direct;
+
+        int classes = Integer.numberOfTrailingZeros(maximumSize) - minimumShift + 1;
+        this.shared = new ArrayBlockingQueue[classes];
+        this.sharedDirect = new ArrayBlockingQueue[classes];
+        for (int i = 0; i < classes && sharedBuffers > 0; i++) {
+            shared[i] = new ArrayBlockingQueue<>(sharedBuffers);
+            if (direct)
+                sharedDirect[i] = new ArrayBlockingQueue<>(sharedBuffers);
+        }
+    }
+
+    /**
+     * @return the size class of a requested size, or -1 when it is larger than the largest class.
+     */
+    private int sizeClass(int size) {
+        if (size > maximumSize)
+            return -1;
+        if (size <= 1 << minimumShift)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minimumShift;
+    }
+
+    /**
+     * @return the size class of a released buffer, or -1 when it does not have the exact size of a class.
+     */
+    private int exactSizeClass(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        return sizeClass >= 0 && capacity == 1 << (sizeClass + minimumShift) ? sizeClass : -1;
+    }
+
+    @Override
+    public byte[] acquire(int minimumSize) {
+        int sizeClass = sizeClass(minimumSize);
+        if (sizeClass < 0) {
+            misses.incrementAndGet();
+            return new byte[minimumSize];
+        }
+
+        outstanding.incrementAndGet();
+        byte[] buffer = null;
+        if (threadLocalBuffers > 0) {
+            Cache cache = caches.get();
+            if (cache.counts[sizeClass] > 0) {
+                int top = --cache.counts[sizeClass];
+                buffer = cache.buffers[sizeClass][top];
+                cache.buffers[sizeClass][top] = null;
+            }
+        }
+        if (buffer == null && shared[sizeClass] != null)
+            buffer = shared[sizeClass].poll();
+
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[1 << (sizeClass + minimumShift)];
+    }
+
+    @Override
+    public void release(byte[] buffer) {
+        int sizeClass = buffer == null ? -1 : exactSizeClass(buffer.length);
+        if (sizeClass < 0)
+            return;
+
+        outstanding.decrementAndGet();
+        if (threadLocalBuffers > 0) {
+            Cache cache = caches.get();
+            if (cache.counts[sizeClass] < threadLocalBuffers) {
+                cache.buffers[sizeClass][cache.counts[sizeClass]++] = buffer;
+                return;
+            }
+        }
+        if (shared[sizeClass] != null)
+            shared[sizeClass].offer(buffer);
+    }
+
+    @Override
+    public ByteBuffer acquireByteBuffer(int minimumSize) {
+        if (!direct)
+            return ByteBuffer.wrap(acquire(minimumSize));
+
+        int sizeClass = sizeClass(minimumSize);
+        if (sizeClass < 0) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(minimumSize);
+        }
+
+        outstanding.incrementAndGet();
+        ByteBuffer buffer = sharedDirect[sizeClass] == null ? null : sharedDirect[sizeClass].poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(1 << (sizeClass + minimumShift));
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (!buffer.isDirect()) {
+            if (buffer.hasArray() && buffer.arrayOffset() == 0)
+                release(buffer.array());
+            return;
+        }
+
+        int sizeClass = exactSizeClass(buffer.capacity());
+        if (!direct || sizeClass < 0)
+            return;
+
+        outstanding.decrementAndGet();
+        if (sharedDirect[sizeClass] != null)
+            sharedDirect[sizeClass].offer(buffer);
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+}
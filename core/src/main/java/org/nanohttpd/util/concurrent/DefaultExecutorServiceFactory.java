@@ -34,10 +34,134 @@
 package org.nanohttpd.util.concurrent;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Creates a {@link ThreadPoolExecutor} with a bounded queue. Unlike a plain thread pool executor, a connection arriving
+ * while every thread is busy grows the pool up to its maximum size before connections are queued, and a connection
+ * arriving when both the threads and the queue are exhausted is rejected with a {@link RejectedExecutionException},
+ * which the server answers with {@code 503 Service Unavailable}.
+ */
 public class DefaultExecutorServiceFactory implements ExecutorServiceFactory {
+    public static final int DEFAULT_CORE_POOL_SIZE = 3;
+
+    public static final int DEFAULT_MAXIMUM_POOL_SIZE = 50;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 50;
+
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 5;
+
+    private final int corePoolSize;
+
+    private final int maximumPoolSize;
+
+    private final int queueCapacity;
+
+    private final long keepAliveSeconds;
+
+    public DefaultExecutorServiceFactory() {
+        this(DEFAULT_CORE_POOL_SIZE, DEFAULT_MAXIMUM_POOL_SIZE, DEFAULT_QUEUE_CAPACITY, DEFAULT_KEEP_ALIVE_SECONDS);
+    }
+
+    /**
+     * @param corePoolSize     threads kept alive even when they are idle.
+     * @param maximumPoolSize  threads at most serving connections at the same time.
+     * @param queueCapacity    connections waiting for a thread once all threads are busy, 0 to reject them at once.
+     * @param keepAliveSeconds time an idle thread above the core pool size waits for work before it stops.
+     */
+    public DefaultExecutorServiceFactory(int corePoolSize, int maximumPoolSize, int queueCapacity,
+                                         long keepAliveSeconds) {
+        if (corePoolSize < 0 || maximumPoolSize <= 0 || maximumPoolSize < corePoolSize)
+            throw new IllegalArgumentException("Invalid pool size: " + corePoolSize + "/" + maximumPoolSize);
+        if (queueCapacity < 0)
+            throw new IllegalArgumentException("Queue capacity cannot be negative: " + queueCapacity);
+
+        this.corePoolSize = corePoolSize;
+        this.maximumPoolSize = maximumPoolSize;
+        this.queueCapacity = queueCapacity;
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
     @Override
     public ExecutorService create() {
-        return new ThreadPoolExecutor(3, 50, 5, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
+        if (queueCapacity == 0)
+            return new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveSeconds, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>());
+
+        GrowFirstQueue queue = new GrowFirstQueue(queueCapacity);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveSeconds,
+                TimeUnit.SECONDS, queue, queue);
+        queue.executor = executor;
+        return executor;
+    }
+
+    /**
+     * A thread pool executor only starts threads above the core size when its queue refuses a task. This queue takes
+     * the task while a worker waits for one, refuses it while every worker is busy and the pool can still grow, and
+     * takes it as the rejection handler once the pool is at its maximum.
+     */
+    private static class GrowFirstQueue extends ArrayBlockingQueue<Runnable> implements RejectedExecutionHandler {
+
+        private static final long serialVersionUID = 2831562404960716871L;
+
+        private transient ThreadPoolExecutor executor;
+
+        /**
+         * Workers waiting in {@link #take()} or {@link #poll(long, TimeUnit)}.
+         */
+        private final AtomicInteger idle = new AtomicInteger();
+
+        GrowFirstQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            if (idle.get() <= size() && executor.getPoolSize() < executor.getMaximumPoolSize())
+                return false;
+            return super.offer(runnable);
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            idle.incrementAndGet();
+            try {
+                return super.take();
+            } finally {
+                idle.decrementAndGet();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            idle.incrementAndGet();
+            try {
+                return super.poll(timeout, unit);
+            } finally {
+                idle.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown() || !super.offer(runnable))
+                throw new RejectedExecutionException("Thread pool and its queue are full.");
+        }
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.util.concurrent;
+
+import org.nanohttpd.protocols.http.NanoHTTPD;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A hashed timing wheel: one thread that runs many timeouts, most of which are cancelled before they expire. Scheduling
+ * and cancelling cost next to nothing, which suits a timeout per request. A timeout runs within one tick after its
+ * delay, on the wheel thread, so tasks should be short.
+ */
+public class TimingWheel implements Runnable, Closeable {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+
+        private final long deadline;
+
+        private long rounds;
+
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keep the task from running, if it did not run yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+
+    private final List<Timeout>[] buckets;
+
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+    private final long start = System.nanoTime();
+
+    private long tick;
+
+    private volatile boolean closed;
+
+    public TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis the precision of the timeouts.
+     * @param wheelSize  the number of buckets, rounded up to a power of two. Timeouts longer than a turn of the wheel
+     *                   wait in their bucket for the turns to pass.
+     */
+    @SuppressWarnings({
+            "unchecked",
+            "rawtypes"
+    })
+    public TimingWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("The tick must be positive.");
+        if (wheelSize <= 0 || wheelSize > 1 << 30)
+            throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize) == wheelSize ? wheelSize : Integer.highestOneBit(wheelSize) << 1;
+        this.buckets = new List[size];
+        for (int i = 0; i < size; i++)
+            this.buckets[i] = new ArrayList<>();
+    }
+
+    /**
+     * Run the task once the delay passed. This can be called from any thread.
+     *
+     * @return the timeout, to cancel it. It is already cancelled when the wheel is closed, the task never runs then.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        if (closed) {
+            timeout.cancel();
+            return timeout;
+        }
+
+        scheduled.add(timeout);
+        // the wheel may have been closed and cleared since the check above
+        if (closed) {
+            timeout.cancel();
+            scheduled.remove(timeout);
+        }
+        return timeout;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                    continue;
+                }
+                addScheduled();
+                expire(buckets[(int) (tick & (buckets.length - 1))]);
+                tick++;
+            }
+        } catch (InterruptedException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Timing wheel interrupted.", e);
+        } finally {
+            closed = true;
+            scheduled.clear();
+        }
+    }
+
+    private void addScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled)
+                continue;
+            // tick n is run once n + 1 ticks passed, a deadline already passed goes to the bucket of this tick
+            long ticks = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (ticks - tick) / buckets.length;
+            buckets[(int) (ticks & (buckets.length - 1))].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    NanoHTTPD.LOG.log(Level.SEVERE, "Timeout task failed.", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.util.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Creates a {@link ForkJoinPool} in async mode, where every worker has its own deque and idle workers steal from busy
+ * ones instead of all threads contending on one shared queue. Connections waiting for a worker beyond the configured
+ * limit are rejected with a {@link RejectedExecutionException}, which the server answers with
+ * {@code 503 Service Unavailable}.
+ * <p/>
+ * The pool does not add threads when a worker blocks on a socket, so the parallelism is the number of connections
+ * served at the same time. It fits best with {@link org.nanohttpd.protocols.http.server.NioServerExecutor}, where a
+ * connection only occupies a worker while a request is being served.
+ */
+public class WorkStealingExecutorServiceFactory implements ExecutorServiceFactory {
+    public static final int DEFAULT_MAX_QUEUED_TASKS = 50;
+
+    private final int parallelism;
+
+    private final int maxQueuedTasks;
+
+    public WorkStealingExecutorServiceFactory() {
+        this(Runtime.getRuntime().availableProcessors() * 4, DEFAULT_MAX_QUEUED_TASKS);
+    }
+
+    /**
+     * @param parallelism    number of worker threads.
+     * @param maxQueuedTasks connections waiting for a worker before new ones are rejected.
+     */
+    public WorkStealingExecutorServiceFactory(int parallelism, int maxQueuedTasks) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        if (maxQueuedTasks < 0)
+            throw new IllegalArgumentException("Queued task limit cannot be negative: " + maxQueuedTasks);
+
+        this.parallelism = parallelism;
+        this.maxQueuedTasks = maxQueuedTasks;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getMaxQueuedTasks() {
+        return maxQueuedTasks;
+    }
+
+    @Override
+    public ExecutorService create() {
+        return new BoundedForkJoinPool(parallelism, maxQueuedTasks);
+    }
+
+    private static class BoundedForkJoinPool extends ForkJoinPool {
+        private final int maxQueuedTasks;
+
+        BoundedForkJoinPool(int parallelism, int maxQueuedTasks) {
+            super(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            this.maxQueuedTasks = maxQueuedTasks;
+        }
+
+        private void checkQueue() {
+            // the count is a cheap estimate, the limit may be overshot by a few concurrent submissions
+            if (getQueuedSubmissionCount() + getQueuedTaskCount() >= maxQueuedTasks
+                    && getActiveThreadCount() >= getParallelism())
+                throw new RejectedExecutionException("Work stealing pool is saturated.");
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            checkQueue();
+            super.execute(task);
+        }
+
+        @Override
+        public ForkJoinTask<?> submit(Runnable task) {
+            checkQueue();
+            return super.submit(task);
+        }
+
+        @Override
+        public <T> ForkJoinTask<T> submit(Runnable task, T result) {
+            checkQueue();
+            return super.submit(task, result);
+        }
+
+        @Override
+        public <T> ForkJoinTask<T> submit(Callable<T> task) {
+            checkQueue();
+            return super.submit(task);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.HTTPSessionImpl;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.request.BodyStore;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.tempfiles.DefaultTempFileManager;
+import org.nanohttpd.util.buffer.BufferPool;
+import org.nanohttpd.util.buffer.BufferPools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpBodyStoreTest {
+
+    private final DefaultTempFileManager tempFileManager = new DefaultTempFileManager();
+
+    @After
+    public void tearDown() {
+        tempFileManager.clear();
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++)
+            bytes[i] = (byte) (i * 31);
+        return bytes;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        for (int read; (read = in.read(buf)) >= 0; )
+            out.write(buf, 0, read);
+        return out.toByteArray();
+    }
+
+    private static byte[] read(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private BodyStore store(byte[] body, long expectedSize) throws IOException {
+        BodyStore store = new BodyStore(tempFileManager, 100, 1000, expectedSize);
+        store.readFrom(new ByteArrayInputStream(body), expectedSize < 0 ? Long.MAX_VALUE : expectedSize);
+        return store;
+    }
+
+    @Test
+    public void tierFollowsTheKnownSize() throws IOException {
+        int[] sizes = {0, 100, 101, 1000, 1001, 200000};
+        BodyStore.Tier[] tiers = {BodyStore.Tier.HEAP, BodyStore.Tier.HEAP, BodyStore.Tier.DIRECT,
+                BodyStore.Tier.DIRECT, BodyStore.Tier.FILE, BodyStore.Tier.FILE};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] body = bytes(sizes[i]);
+            BodyStore store = store(body, body.length);
+            try {
+                assertEquals("size " + sizes[i], tiers[i], store.getTier());
+                assertEquals(body.length, store.getSize());
+                assertArrayEquals(body, read(store.getByteBuffer()));
+                assertArrayEquals(body, read(store.getInputStream()));
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    @Test
+    public void bodyOfUnknownSizeMovesUpAsItGrows() throws IOException {
+        byte[] body = bytes(5000);
+        BodyStore store = new BodyStore(tempFileManager, 100, 1000, -1);
+        try {
+            List<BodyStore.Tier> tiers = new ArrayList<>();
+            for (int off = 0; off < body.length; off += 70) {
+                store.write(body, off, Math.min(70, body.length - off));
+                if (!tiers.contains(store.getTier()))
+                    tiers.add(store.getTier());
+            }
+            assertEquals(Arrays.asList(BodyStore.Tier.HEAP, BodyStore.Tier.DIRECT, BodyStore.Tier.FILE), tiers);
+            assertArrayEquals(body, read(store.getByteBuffer()));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void announcedSizeIsNotReservedUpFront() throws IOException {
+        final BufferPool pool = BufferPools.getDirect();
+        final int[] largest = new int[1];
+        BufferPools.setDirect(new BufferPool() {
+
+            @Override
+            public byte[] acquire(int minimumSize) {
+                return pool.acquire(minimumSize);
+            }
+
+            @Override
+            public void release(byte[] buffer) {
+                pool.release(buffer);
+            }
+
+            @Override
+            public ByteBuffer acquireByteBuffer(int minimumSize) {
+                largest[0] = Math.max(largest[0], minimumSize);
+                return pool.acquireByteBuffer(minimumSize);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+
+            @Override
+            public long getHitCount() {
+                return pool.getHitCount();
+            }
+
+            @Override
+            public long getMissCount() {
+                return pool.getMissCount();
+            }
+
+            @Override
+            public long getOutstandingCount() {
+                return pool.getOutstandingCount();
+            }
+        });
+        try {
+            byte[] body = bytes(500);
+            BodyStore store = new BodyStore(tempFileManager, 100, 1000000, 1000000);
+            try {
+                store.readFrom(new ByteArrayInputStream(body), 1000000);
+                assertEquals(BodyStore.Tier.DIRECT, store.getTier());
+                assertArrayEquals(body, read(store.getByteBuffer()));
+            } finally {
+                store.close();
+            }
+            assertTrue("reserved " + largest[0], largest[0] < 1000);
+        } finally {
+            BufferPools.setDirect(pool);
+        }
+    }
+
+    @Test
+    public void buffersOfTheBodyAreIndependentAndReadOnly() throws IOException {
+        BodyStore store = store(bytes(50), 50);
+        try {
+            ByteBuffer first = store.getByteBuffer();
+            first.position(20);
+            ByteBuffer second = store.getByteBuffer();
+            assertEquals(0, second.position());
+            assertEquals(50, second.remaining());
+            assertTrue(second.isReadOnly());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void directLimitBelowTheHeapLimitIsRejected() {
+        new NanoHTTPD(0) {
+        }.setBodyStoreLimits(1000, 100);
+    }
+
+    @Test
+    public void handlerReadsTheBodyFromTheSession() throws IOException {
+        final List<Object> seen = new ArrayList<>();
+        NanoHTTPD server = new NanoHTTPD(0) {
+
+            @Override
+            public Response serve(HTTPSession session) {
+                try {
+                    BodyStore body = session.getBody();
+                    seen.add(body.getTier());
+                    seen.add(new String(read(body.getByteBuffer()), "US-ASCII"));
+                    seen.add(session.getBody() == body);
+                } catch (IOException e) {
+                    seen.add(e);
+                }
+                return Response.newFixedLengthResponse("ok");
+            }
+        };
+        server.setBodyStoreLimits(4, 8);
+        String request = "POST / HTTP/1.1\r\nContent-Length: 6\r\n\r\nabcdef";
+        HTTPSessionImpl session = new HTTPSessionImpl(server, tempFileManager,
+                new ByteArrayInputStream(request.getBytes("US-ASCII")), new ByteArrayOutputStream());
+        session.execute();
+
+        assertEquals(Arrays.<Object> asList(BodyStore.Tier.DIRECT, "abcdef", true), seen);
+    }
+}
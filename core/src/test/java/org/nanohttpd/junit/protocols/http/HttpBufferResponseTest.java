@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.response.CoalescingOutputStream;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.HttpServerTest.body;
+
+public class HttpBufferResponseTest {
+
+    private File sink;
+
+    private byte[] shell;
+
+    private ByteBuffer sharedShell;
+
+    @Before
+    public void setUp() throws IOException {
+        sink = File.createTempFile("buffer-response", ".out");
+        shell = new byte[40000];
+        for (int i = 0; i < shell.length; i++)
+            shell[i] = (byte) ('a' + i % 26);
+        ByteBuffer direct = ByteBuffer.allocateDirect(shell.length);
+        direct.put(shell).flip();
+        sharedShell = direct.asReadOnlyBuffer();
+    }
+
+    @After
+    public void tearDown() {
+        sink.delete();
+    }
+
+    private Response newResponse(String content) throws IOException {
+        return Response.newFixedLengthResponse(DefaultStatusCode.OK, "application/octet-stream", sharedShell,
+                ByteBuffer.wrap(content.getBytes("US-ASCII")).asReadOnlyBuffer(), ByteBuffer.wrap(shell, 0, 100));
+    }
+
+    private byte[] expected(String content) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(shell);
+        expected.write(content.getBytes("US-ASCII"));
+        expected.write(shell, 0, 100);
+        return expected.toByteArray();
+    }
+
+    @Test
+    public void testSegmentsAreGatheredToChannel() throws IOException {
+        for (String content : new String[]{
+                "first",
+                "second"
+        }) {
+            try (FileOutputStream out = new FileOutputStream(sink)) {
+                newResponse(content).send(new CoalescingOutputStream(out, 1024, out.getChannel()));
+            }
+            byte[] sent = Files.readAllBytes(sink.toPath());
+            assertTrue(new String(sent, "US-ASCII").contains("Content-Length: " + expected(content).length + "\r\n"));
+            assertArrayEquals(expected(content), body(sent));
+        }
+        assertEquals(0, sharedShell.position());
+        assertEquals(shell.length, sharedShell.limit());
+    }
+
+    @Test
+    public void testSegmentsAreWrittenWithoutChannel() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        newResponse("content").send(out);
+
+        assertArrayEquals(expected("content"), body(out.toByteArray()));
+        assertEquals(0, sharedShell.position());
+    }
+
+    @Test
+    public void testDataReadsTheSegments() throws IOException {
+        Response response = newResponse("content");
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        InputStream data = response.getData();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = data.read(buffer)) > 0)
+            read.write(buffer, 0, count);
+
+        assertArrayEquals(expected("content"), read.toByteArray());
+        assertEquals(0, sharedShell.position());
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.HTTPSessionImpl;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.tempfiles.DefaultTempFileManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HttpChunkedRequestTest {
+
+    private static class TestServer extends NanoHTTPD {
+
+        private boolean parseBody = true;
+
+        private boolean readBody = true;
+
+        private final List<String> bodies = new ArrayList<>();
+
+        private final List<IOException> failures = new ArrayList<>();
+
+        private Map<String, String> files;
+
+        @Override
+        public Response serve(HTTPSession session) {
+            try {
+                if (parseBody) {
+                    files = new HashMap<>();
+                    session.parseBody(files);
+                    String body = files.get("postData");
+                    if (files.containsKey("content"))
+                        body = new String(Files.readAllBytes(new File(files.get("content")).toPath()), "US-ASCII");
+                    bodies.add(body);
+                } else if (readBody) {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    InputStream in = session.getInputStream();
+                    byte[] buf = new byte[3];
+                    for (int read; (read = in.read(buf)) >= 0; )
+                        body.write(buf, 0, read);
+                    bodies.add(body.toString("US-ASCII"));
+                }
+            } catch (IOException e) {
+                failures.add(e);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return Response.newFixedLengthResponse(session.getUri());
+        }
+    }
+
+    private final TestServer server = new TestServer();
+
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    private String execute(String requests, int count) throws IOException {
+        DefaultTempFileManager tempFileManager = new DefaultTempFileManager();
+        try {
+            HTTPSessionImpl session = new HTTPSessionImpl(server, tempFileManager,
+                    new ByteArrayInputStream(requests.getBytes("US-ASCII")), outputStream);
+            for (int i = 0; i < count; i++)
+                session.execute();
+            return outputStream.toString("US-ASCII");
+        } finally {
+            tempFileManager.clear();
+        }
+    }
+
+    private static String chunked(String method, String uri, String body) {
+        return method + " " + uri + " HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + body;
+    }
+
+    @Test
+    public void chunkedBodyIsDecodedForParseBody() throws IOException {
+        String output = execute(chunked("POST", "/a", "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nChecksum: 1\r\n\r\n"),
+                1);
+
+        assertTrue(output, output.startsWith("HTTP/1.1 200 OK"));
+        assertEquals("hello world", server.bodies.get(0));
+        assertTrue(server.failures.isEmpty());
+    }
+
+    @Test
+    public void largeChunkedBodyMovesToAFile() throws IOException {
+        StringBuilder body = new StringBuilder();
+        StringBuilder chunks = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String chunk = String.format("%0100d", i);
+            body.append(chunk);
+            chunks.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+        }
+        execute(chunked("PUT", "/a", chunks + "0\r\n\r\n"), 1);
+
+        assertEquals(body.toString(), server.bodies.get(0));
+    }
+
+    @Test
+    public void connectionIsReusedAfterAChunkedBody() throws IOException {
+        server.parseBody = false;
+        String output = execute(chunked("POST", "/a", "3\r\nabc\r\n0\r\n\r\n")
+                + chunked("POST", "/b", "2\r\nde\r\n1\r\nf\r\n0\r\n\r\n"), 2);
+
+        assertEquals(2, output.split("HTTP/1.1 200 OK", -1).length - 1);
+        assertEquals("abc", server.bodies.get(0));
+        assertEquals("def", server.bodies.get(1));
+    }
+
+    @Test
+    public void unreadChunkedBodyIsDroppedForTheNextRequest() throws IOException {
+        server.parseBody = false;
+        server.readBody = false;
+        String output = execute(chunked("POST", "/a", "3;x=y\r\nabc\r\n0\r\nChecksum: 1\r\n\r\n")
+                + "GET /b HTTP/1.1\r\n\r\n", 2);
+
+        assertEquals(2, output.split("HTTP/1.1 200 OK", -1).length - 1);
+        assertTrue(output, output.endsWith("/b"));
+        assertFalse(output, output.toLowerCase().contains("connection: close"));
+    }
+
+    @Test
+    public void chunkedBodyOverTheLimitIsAnswered413() throws IOException {
+        server.setMaxRequestBodySize(5);
+        String output = execute(chunked("POST", "/a", "3\r\nabc\r\n3\r\ndef\r\n0\r\n\r\n"), 1);
+
+        assertTrue(output, output.startsWith("HTTP/1.1 413 Payload Too Large"));
+        assertEquals(1, server.failures.size());
+    }
+
+    @Test
+    public void contentLengthOverTheLimitIsAnswered413WithoutTheHandler() throws IOException {
+        server.setMaxRequestBodySize(5);
+        String output = execute("POST /a HTTP/1.1\r\nContent-Length: 6\r\n\r\nabcdef", 1);
+
+        assertTrue(output, output.startsWith("HTTP/1.1 413 Payload Too Large"));
+        assertTrue(server.bodies.isEmpty());
+    }
+
+    @Test
+    public void malformedChunkIsAnswered400() throws IOException {
+        String output = execute(chunked("POST", "/a", "x\r\nabc\r\n0\r\n\r\n"), 1);
+
+        assertTrue(output, output.startsWith("HTTP/1.1 400 Bad Request"));
+    }
+
+    @Test
+    public void chunkFramingOutsideTheGrammarIsAnswered400() throws IOException {
+        String[] bodies = {"1\r2\r\nabcdefghijklmnopqr\r\n0\r\n\r\n", "1 2\r\na\r\n0\r\n\r\n",
+                "1 ;x=y\r\na\r\n0\r\n\r\n", ";x=y\r\na\r\n0\r\n\r\n", "3\nabc\r\n0\r\n\r\n",
+                "3\r\nabc\n0\r\n\r\n", "3\r\nabc\r\n0\r\nChecksum: 1\n\r\n"};
+        for (String body : bodies) {
+            outputStream.reset();
+            String output = execute(chunked("POST", "/a", body), 1);
+
+            assertTrue(body + ": " + output, output.startsWith("HTTP/1.1 400 Bad Request"));
+        }
+        assertTrue(server.bodies.isEmpty());
+    }
+
+    @Test
+    public void chunkLongerThanItsSizeIsAnswered400() throws IOException {
+        String output = execute(chunked("POST", "/a", "2\r\nabc\r\n0\r\n\r\n"), 1);
+
+        assertTrue(output, output.startsWith("HTTP/1.1 400 Bad Request"));
+    }
+
+    @Test
+    public void transferEncodingOtherThanChunkedIsAnswered400() throws IOException {
+        String output = execute("POST /a HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\nabc", 1);
+
+        assertTrue(output, output.startsWith("HTTP/1.1 400 Bad Request"));
+        assertTrue(server.bodies.isEmpty());
+    }
+}
@@ -30,6 +30,7 @@
 
 package org.nanohttpd.junit.protocols.http;
 
+import org.nanohttpd.protocols.http.response.ChunkedOutputStream;
 import org.nanohttpd.protocols.http.response.DefaultStatusCode;
 import org.nanohttpd.protocols.http.response.Response;
 
@@ -37,6 +38,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PipedInputStream;
 
+import static org.junit.Assert.assertEquals;
+
 public class HttpChunkedResponseTest extends HttpServerTest {
 
     private static class ChunkedInputStream extends PipedInputStream {
@@ -53,7 +56,7 @@ public class HttpChunkedResponseTest extends HttpServerTest {
         public synchronized int read(byte[] buffer, int off, int len) throws IOException {
             // Too implementation-linked, but...
             for (int i = 0; i < this.chunks[this.chunk].length(); ++i) {
-                buffer[i] = (byte) this.chunks[this.chunk].charAt(i);
+                buffer[off + i] = (byte) this.chunks[this.chunk].charAt(i);
             }
             return this.chunks[this.chunk++].length();
         }
@@ -90,4 +93,14 @@ public class HttpChunkedResponseTest extends HttpServerTest {
 
         assertResponse(byteArrayOutputStream, expected);
     }
+
+    @org.junit.Test
+    public void thatSingleByteWriteIsChunked() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(bytes);
+        chunked.write('x');
+        chunked.finish();
+
+        assertEquals("1\r\nx\r\n0\r\n\r\n", bytes.toString("US-ASCII"));
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.CoalescingOutputStream;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.HttpServerTest.body;
+
+public class HttpFileResponseTest {
+
+    private File file;
+
+    private File sink;
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("file-response", ".bin");
+        sink = File.createTempFile("file-response", ".out");
+        content = new byte[100000];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i * 31);
+        Files.write(file.toPath(), content);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        sink.delete();
+    }
+
+    private byte[] sendToChannel(Response response) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(sink)) {
+            response.send(new CoalescingOutputStream(out, 1024, out.getChannel()));
+        }
+        return Files.readAllBytes(sink.toPath());
+    }
+
+    @Test
+    public void testRegionIsCopiedWithoutChannel() throws IOException {
+        Response response = Response.newFileResponse(DefaultStatusCode.PARTIAL_CONTENT, "application/octet-stream", file, 1000, 50000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.send(out);
+
+        byte[] sent = out.toByteArray();
+        assertTrue(new String(sent, "US-ASCII").contains("Content-Length: 50000\r\n"));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 51000), body(sent));
+    }
+
+    @Test
+    public void testRegionIsTransferredToChannel() throws IOException {
+        Response response = Response.newFileResponse(DefaultStatusCode.OK, "application/octet-stream", file, 10, content.length - 10);
+
+        assertArrayEquals(Arrays.copyOfRange(content, 10, content.length), body(sendToChannel(response)));
+    }
+
+    @Test
+    public void testSmallFileIsSentWithTheHead() throws IOException {
+        Response response = Response.newFileResponse(DefaultStatusCode.OK, "application/octet-stream", file, 5, 100);
+
+        assertArrayEquals(Arrays.copyOfRange(content, 5, 105), body(sendToChannel(response)));
+    }
+
+    @Test
+    public void testRegionBeyondTwoGigabytes() throws IOException {
+        long position = Integer.MAX_VALUE + 1000L;
+        try (RandomAccessFile large = new RandomAccessFile(file, "rw")) {
+            // sparse where the file system allows it
+            large.setLength(position + content.length);
+            large.seek(position);
+            large.write(content);
+        }
+
+        Response response = Response.newFileResponse(DefaultStatusCode.PARTIAL_CONTENT, "application/octet-stream", file, position, content.length);
+        byte[] sent = sendToChannel(response);
+
+        assertTrue(new String(sent, "US-ASCII").contains("Content-Length: " + content.length + "\r\n"));
+        assertArrayEquals(content, body(sent));
+    }
+
+    @Test
+    public void testDefaultServerTransfersToChannel() throws Exception {
+        final AtomicBoolean hasChannel = new AtomicBoolean();
+        NanoHTTPD server = new NanoHTTPD(0) {
+
+            @Override
+            public Response serve(HTTPSession session) {
+                try {
+                    return new Response(DefaultStatusCode.OK, "application/octet-stream",
+                            FileChannel.open(file.toPath()), 0, content.length) {
+
+                        @Override
+                        public void send(OutputStream outputStream) {
+                            hasChannel.set(outputStream instanceof CoalescingOutputStream
+                                    && ((CoalescingOutputStream) outputStream).hasChannel());
+                            super.send(outputStream);
+                        }
+                    };
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        server.start();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try (Socket socket = new Socket("localhost", server.getListeningPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) >= 0)
+                received.write(buf, 0, read);
+        } finally {
+            server.stop();
+        }
+
+        assertTrue(hasChannel.get());
+        assertArrayEquals(content, body(received.toByteArray()));
+    }
+}
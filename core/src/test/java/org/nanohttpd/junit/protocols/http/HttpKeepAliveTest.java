@@ -34,10 +34,15 @@ import org.junit.Test;
 import org.nanohttpd.protocols.http.HTTPSessionImpl;
 import org.nanohttpd.protocols.http.tempfiles.DefaultTempFileManager;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
 public class HttpKeepAliveTest extends HttpServerTest {
@@ -73,6 +78,27 @@ public class HttpKeepAliveTest extends HttpServerTest {
         testManyRequests(request, expected);
     }
 
+    @Test
+    public void testSessionIsResetBetweenRequests() throws Exception {
+        String requests = "POST /first?a=1 HTTP/1.1\r\nX-First: 1\r\nContent-Type: application/x-www-form-urlencoded"
+                + "\r\nContent-Length: 3\r\n\r\nb=2GET /second HTTP/1.1\r\n\r\n";
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        HTTPSessionImpl session = this.testServer.createSession(new DefaultTempFileManager(),
+                new ByteArrayInputStream(requests.getBytes("US-ASCII")), outputStream);
+
+        session.execute();
+        assertEquals("/first", this.testServer.uri);
+        assertEquals("1", this.testServer.header.get("x-first"));
+        assertEquals(2, this.testServer.parameters.size());
+
+        session.execute();
+        assertEquals("/second", this.testServer.uri);
+        assertNull(this.testServer.header.get("x-first"));
+        assertNull(this.testServer.queryParameterString);
+        assertTrue(this.testServer.parameters.isEmpty());
+        assertSame(session.getHeaders(), this.testServer.header);
+    }
+
     /**
      * Issue the given request many times to check whether an error occurs. For
      * this test, a small stack size is used, since a stack overflow is among
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.HTTPSessionImpl;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.request.FormDataCollector;
+import org.nanohttpd.protocols.http.request.MultipartListener;
+import org.nanohttpd.protocols.http.request.MultipartParser;
+import org.nanohttpd.protocols.http.request.MultipartPart;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.ResponseException;
+import org.nanohttpd.protocols.http.tempfiles.DefaultTempFileManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpMultipartTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String BOUNDARY = "xyz";
+
+    private final DefaultTempFileManager tempFileManager = new DefaultTempFileManager();
+
+    @After
+    public void tearDown() {
+        tempFileManager.clear();
+    }
+
+    /**
+     * Returns a few bytes per read, so parts and delimiters are split across reads.
+     */
+    private static InputStream trickle(byte[] bytes) {
+        return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+
+            private int next;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                next = next % 7 + 1;
+                return super.read(b, off, Math.min(len, next));
+            }
+        };
+    }
+
+    private static String part(String disposition, String contentType, String content) {
+        return "--" + BOUNDARY + "\r\nContent-Disposition: form-data; " + disposition + "\r\n"
+                + (contentType == null ? "" : "Content-Type: " + contentType + "\r\n") + "\r\n" + content + "\r\n";
+    }
+
+    private static byte[] body(String... parts) {
+        StringBuilder sb = new StringBuilder("preamble\r\n");
+        for (String part : parts)
+            sb.append(part);
+        return sb.append("--").append(BOUNDARY).append("--\r\nepilogue").toString().getBytes(ASCII);
+    }
+
+    private static class Recorder implements MultipartListener {
+
+        private final List<MultipartPart> parts = new ArrayList<>();
+
+        private final List<String> contents = new ArrayList<>();
+
+        private ByteArrayOutputStream content;
+
+        @Override
+        public void partStarted(MultipartPart part) {
+            parts.add(part);
+            content = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void partData(byte[] b, int off, int len) {
+            content.write(b, off, len);
+        }
+
+        @Override
+        public void partEnded(MultipartPart part) {
+            contents.add(new String(content.toByteArray(), ASCII));
+        }
+    }
+
+    private Recorder parse(InputStream in, int maxParts) throws IOException, ResponseException {
+        Recorder recorder = new Recorder();
+        new MultipartParser(BOUNDARY, ASCII, 1024, maxParts).parse(in, recorder);
+        return recorder;
+    }
+
+    @Test
+    public void partsAreStreamedAcrossReads() throws Exception {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 200000)
+            large.append("\r\n--xy line ").append(large.length());
+        byte[] body = body(part("name=\"a\"", null, "one"), part("name=\"b\"; filename=\"b.txt\"", "text/plain",
+                large.toString()), part("name=\"c\"", null, ""));
+
+        Recorder recorder = parse(trickle(body), 0);
+
+        assertEquals(Arrays.asList("one", large.toString(), ""), recorder.contents);
+        assertEquals("b", recorder.parts.get(1).getName());
+        assertEquals("b.txt", recorder.parts.get(1).getFileName());
+        assertEquals("text/plain", recorder.parts.get(1).getContentType());
+        assertNull(recorder.parts.get(0).getFileName());
+    }
+
+    @Test
+    public void quotedParametersMayContainSeparators() throws Exception {
+        String disposition = "foo; name=\"a;b\"; filename=\"x \\\"y\\\".txt\"";
+        Recorder recorder = parse(new ByteArrayInputStream(body(part(disposition, "image/png", "data"))), 0);
+
+        assertEquals("a;b", recorder.parts.get(0).getName());
+        assertEquals("x \"y\".txt", recorder.parts.get(0).getFileName());
+    }
+
+    @Test
+    public void malformedBodiesAreRejected() throws Exception {
+        String[] bodies = {"no boundary at all",
+                "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nnever closed",
+                "--" + BOUNDARY + "trailing\r\n\r\n\r\n--" + BOUNDARY + "--"};
+        for (String body : bodies) {
+            try {
+                parse(new ByteArrayInputStream(body.getBytes(ASCII)), 0);
+                fail(body);
+            } catch (ResponseException e) {
+                assertEquals(body, DefaultStatusCode.BAD_REQUEST, e.getStatus());
+            }
+        }
+    }
+
+    @Test
+    public void tooManyPartsAreRejected() throws Exception {
+        try {
+            parse(new ByteArrayInputStream(body(part("name=\"a\"", null, "1"), part("name=\"b\"", null, "2"))), 1);
+            fail();
+        } catch (ResponseException e) {
+            assertEquals(DefaultStatusCode.PAYLOAD_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void collectorWritesFilesAndFields() throws Exception {
+        Map<String, List<String>> parms = new HashMap<>();
+        Map<String, String> files = new HashMap<>();
+        byte[] body = body(part("name=\"f\"; filename=\"a.bin\"", "application/octet-stream", "abc"), part(
+                "name=\"f\"; filename=\"b.bin\"", "application/octet-stream", "defg"), part("name=\"t\"", null, "text"),
+                part("name=\"e\"; filename=\"\"", "application/octet-stream", ""));
+        FormDataCollector collector = new FormDataCollector(tempFileManager, parms, files, ASCII, 0);
+        try {
+            new MultipartParser(BOUNDARY, ASCII, 1024, 0).parse(trickle(body), collector);
+        } finally {
+            collector.close();
+        }
+
+        assertArrayEquals("abc".getBytes(ASCII), Files.readAllBytes(new File(files.get("f")).toPath()));
+        assertArrayEquals("defg".getBytes(ASCII), Files.readAllBytes(new File(files.get("f1")).toPath()));
+        assertEquals("", files.get("e"));
+        assertEquals(Arrays.asList("a.bin"), parms.get("f"));
+        assertEquals(Arrays.asList("b.bin"), parms.get("f1"));
+        assertEquals(Arrays.asList("text"), parms.get("t"));
+    }
+
+    private final NanoHTTPD server = new NanoHTTPD(0) {
+
+        @Override
+        public Response serve(HTTPSession session) {
+            try {
+                session.parseBody(new HashMap<String, String>());
+            } catch (ResponseException e) {
+                return Response.newFixedLengthResponse(e.getStatus(), NanoHTTPD.MIME_PLAINTEXT, e.getMessage());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return Response.newFixedLengthResponse(session.getUri());
+        }
+    };
+
+    private String execute(String requests, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTTPSessionImpl session = new HTTPSessionImpl(server, tempFileManager,
+                new ByteArrayInputStream(requests.getBytes(ASCII)), out);
+        for (int i = 0; i < count; i++)
+            session.execute();
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void formFieldOverTheLimitIsAnsweredWith413() throws Exception {
+        server.setMultipartLimits(4, 10);
+        byte[] body = body(part("name=\"a\"", null, "12345"));
+        String response = execute("POST / HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=" + BOUNDARY
+                + "\r\nContent-Length: " + body.length + "\r\n\r\n" + new String(body, ASCII), 1);
+
+        assertTrue(response, response.startsWith("HTTP/1.1 413 "));
+    }
+
+    @Test
+    public void requestWithoutABodyDoesNotParseTheNextRequest() throws Exception {
+        String response = execute("POST /a HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=" + BOUNDARY
+                + "\r\n\r\nGET /b HTTP/1.1\r\n\r\n", 2);
+
+        assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+        assertTrue(response, response.endsWith("/b"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.Test;
+import org.nanohttpd.junit.protocols.http.HttpServerTest.CountingOutputStream;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.HTTPSessionImpl;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.tempfiles.DefaultTempFileManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpPipeliningTest {
+
+    private static class TestServer extends NanoHTTPD {
+
+        @Override
+        public Response serve(HTTPSession session) {
+            return Response.newFixedLengthResponse(session.getUri());
+        }
+    }
+
+    private final CountingOutputStream outputStream = new CountingOutputStream();
+
+    private HTTPSessionImpl createSession(String requests) throws IOException {
+        return new HTTPSessionImpl(new TestServer(), new DefaultTempFileManager(),
+                new ByteArrayInputStream(requests.getBytes("US-ASCII")), outputStream);
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1))
+            count++;
+        return count;
+    }
+
+    @Test
+    public void responsesToPipelinedRequestsAreWrittenTogether() throws IOException {
+        HTTPSessionImpl session = createSession("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\nGET /c HTTP/1.1\r\n\r\n");
+
+        session.execute();
+        session.execute();
+        assertEquals("Responses should be held while more requests are buffered.", 0, outputStream.getWrites());
+
+        session.execute();
+        String output = outputStream.toString("US-ASCII");
+        assertEquals(3, count(output, "HTTP/1.1 200 OK"));
+        assertTrue(output.indexOf("\r\n\r\n/a") < output.indexOf("\r\n\r\n/b"));
+        assertTrue(output.indexOf("\r\n\r\n/b") < output.indexOf("\r\n\r\n/c"));
+        assertTrue(output.endsWith("/c"));
+    }
+
+    @Test
+    public void lastResponseIsFlushedImmediately() throws IOException {
+        HTTPSessionImpl session = createSession("GET /a HTTP/1.1\r\n\r\n");
+
+        session.execute();
+        assertTrue(outputStream.toString("US-ASCII").endsWith("/a"));
+    }
+
+    @Test
+    public void responseToRequestWithBodyIsNotHeldBack() throws IOException {
+        // the handler does not read the body, so the buffered bytes are not a request to wait for
+        HTTPSessionImpl session = createSession("POST /a HTTP/1.1\r\nContent-Length: 4\r\n\r\nbody");
+
+        session.execute();
+        assertTrue(outputStream.toString("US-ASCII").endsWith("/a"));
+    }
+}
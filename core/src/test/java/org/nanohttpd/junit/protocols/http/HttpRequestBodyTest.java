@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.HTTPSessionImpl;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.ResponseException;
+import org.nanohttpd.protocols.http.tempfiles.DefaultTempFileManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HttpRequestBodyTest {
+
+    private enum Mode {
+        READ, IGNORE, CLOSE, PARSE
+    }
+
+    private static class TestServer extends NanoHTTPD {
+
+        private Mode mode = Mode.READ;
+
+        private final List<String> bodies = new ArrayList<>();
+
+        @Override
+        public Response serve(HTTPSession session) {
+            try {
+                if (mode == Mode.PARSE) {
+                    Map<String, String> files = new HashMap<>();
+                    session.parseBody(files);
+                    bodies.add(String.valueOf(files.get("postData")));
+                    return Response.newFixedLengthResponse(session.getUri());
+                }
+                InputStream in = session.getInputStream();
+                if (mode == Mode.READ) {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    byte[] buf = new byte[64];
+                    for (int read; (read = in.read(buf)) >= 0; )
+                        body.write(buf, 0, read);
+                    bodies.add(body.toString("US-ASCII"));
+                } else if (mode == Mode.CLOSE) {
+                    in.close();
+                }
+            } catch (IOException | ResponseException e) {
+                return Response.newFixedLengthResponse(e.getMessage());
+            }
+            return Response.newFixedLengthResponse(session.getUri());
+        }
+    }
+
+    private final TestServer server = new TestServer();
+
+    private String execute(String requests, int count) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        HTTPSessionImpl session = new HTTPSessionImpl(server, new DefaultTempFileManager(),
+                new ByteArrayInputStream(requests.getBytes("US-ASCII")), outputStream);
+        for (int i = 0; i < count; i++)
+            session.execute();
+        return outputStream.toString("US-ASCII");
+    }
+
+    private static int count(String text, String part) {
+        return text.split(part, -1).length - 1;
+    }
+
+    @Test
+    public void bodyEndsAtItsContentLength() throws IOException {
+        String output = execute("POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+                + "POST /b HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc", 2);
+
+        assertEquals(2, count(output, "HTTP/1.1 200 OK"));
+        assertEquals("hello", server.bodies.get(0));
+        assertEquals("abc", server.bodies.get(1));
+    }
+
+    @Test
+    public void unreadBodyIsDroppedForTheNextRequest() throws IOException {
+        server.mode = Mode.IGNORE;
+        String output = execute("POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+                + "GET /b HTTP/1.1\r\n\r\n", 2);
+
+        assertEquals(2, count(output, "HTTP/1.1 200 OK"));
+        assertTrue(output, output.endsWith("/b"));
+        assertFalse(output, output.toLowerCase().contains("connection: close"));
+    }
+
+    @Test
+    public void closingTheBodyKeepsTheConnection() throws IOException {
+        server.mode = Mode.CLOSE;
+        String output = execute("POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+                + "POST /b HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc", 2);
+
+        assertEquals(2, count(output, "HTTP/1.1 200 OK"));
+        assertTrue(output, output.endsWith("/b"));
+    }
+
+    @Test
+    public void connectionIsClosedWhenTooMuchOfTheBodyIsLeft() throws IOException {
+        server.mode = Mode.IGNORE;
+        server.setMaxBodyDrain(4);
+        String output = execute("POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+                + "GET /b HTTP/1.1\r\n\r\n", 1);
+
+        assertTrue(output, output.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(output, output.toLowerCase().contains("connection: close"));
+    }
+
+    @Test
+    public void bodyEndingBeforeItsContentLengthClosesTheConnection() throws IOException {
+        String output = execute("POST /a HTTP/1.1\r\nContent-Length: 10\r\n\r\nhello", 1);
+
+        assertEquals("hello", server.bodies.get(0));
+        assertTrue(output, output.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(output, output.toLowerCase().contains("connection: close"));
+    }
+
+    @Test
+    public void untrustedContentLengthIsRefused() throws IOException {
+        String[] lengths = {"33x", "1234567890123456789", "33\r\nContent-Length: 0"};
+        for (String length : lengths) {
+            String output = execute("POST /a HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n"
+                    + "GET /smuggled HTTP/1.1\r\n\r\n", 1);
+
+            assertTrue(length + ": " + output, output.startsWith("HTTP/1.1 400 Bad Request"));
+            assertEquals(0, count(output, "HTTP/1.1 200 OK"));
+            assertTrue(server.bodies.isEmpty());
+        }
+    }
+
+    @Test
+    public void requestWithoutALengthHasNoBody() throws IOException {
+        server.mode = Mode.PARSE;
+        String output = execute("POST /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n", 2);
+
+        assertEquals(2, count(output, "HTTP/1.1 200 OK"));
+        assertTrue(output, output.endsWith("/b"));
+        assertEquals("null", server.bodies.get(0));
+    }
+}
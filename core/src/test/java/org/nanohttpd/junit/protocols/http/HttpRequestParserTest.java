@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.Test;
+import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.protocols.http.request.RequestHeaders;
+import org.nanohttpd.protocols.http.request.RequestParser;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.ResponseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRequestParserTest extends HttpServerTest {
+
+    private static RequestParser parse(String request) throws IOException, ResponseException {
+        RequestParser parser = new RequestParser(8192);
+        InputStream in = new ByteArrayInputStream(request.getBytes("UTF-8"));
+        while (!parser.parse()) {
+            if (parser.read(in) <= 0) {
+                parser.finish();
+                break;
+            }
+        }
+        return parser;
+    }
+
+    @Test
+    public void testRequestLineAndHeaders() throws Exception {
+        String request = "POST /path?a=b HTTP/1.0\r\nHost: localhost\r\nContent-Length:  12 \r\n" +
+                "X-Custom: Some Value\r\n\r\nbody";
+        RequestParser parser = parse(request);
+
+        assertEquals(Method.POST, parser.getMethod());
+        assertEquals("/path?a=b", parser.getTarget());
+        assertEquals("HTTP/1.0", parser.getProtocolVersion());
+        assertEquals(3, parser.getHeaderCount());
+        assertEquals("x-custom", parser.getHeaderName(2));
+        assertEquals("Some Value", parser.getHeaderValue(2));
+        assertEquals("localhost", parser.getHeader(RequestParser.HOST));
+        assertEquals(12, parser.getContentLength());
+        assertFalse(parser.hasHeader(RequestParser.CONNECTION));
+        assertEquals(request.length() - 4, parser.getHeaderEnd());
+    }
+
+    @Test
+    public void testInvalidContentLengthIsRefused() throws Exception {
+        String[] lengths = {"33x", "-1", "", "1234567890123456789", "3 3", "33\r\nContent-Length: 0",
+                "5\r\ncontent-length: 6"};
+        for (String length : lengths) {
+            RequestParser parser = parse("POST / HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n");
+            try {
+                parser.getContentLength();
+                fail("Content-Length " + length + " must be refused.");
+            } catch (ResponseException e) {
+                assertEquals(DefaultStatusCode.BAD_REQUEST, e.getStatus());
+            }
+        }
+
+        assertEquals(7, parse("POST / HTTP/1.1\r\nContent-Length: 7\r\nContent-Length: 7\r\n\r\n")
+                .getContentLength());
+        assertEquals(-1, parse("POST / HTTP/1.1\r\n\r\n").getContentLength());
+    }
+
+    @Test
+    public void testHeaderSentInPieces() throws Exception {
+        RequestParser parser = new RequestParser(8192);
+        String[] pieces = {
+                "GET /sl",
+                "ow HTTP/1.1\r\nConn",
+                "ection: Keep-Alive, Upgrade\r",
+                "\n\r\n"
+        };
+        for (int i = 0; i < pieces.length; i++) {
+            parser.read(new ByteArrayInputStream(pieces[i].getBytes("US-ASCII")));
+            assertEquals(i == pieces.length - 1, parser.parse());
+        }
+
+        assertEquals("/slow", parser.getTarget());
+        assertTrue(parser.headerContains(RequestParser.CONNECTION, "keep-alive"));
+        assertFalse(parser.headerContains(RequestParser.CONNECTION, "close"));
+    }
+
+    @Test
+    public void testLenientLineEnds() throws Exception {
+        RequestParser parser = parse("\r\nGET /\nAccept: text/html\nno colon\n\n");
+
+        assertEquals(Method.GET, parser.getMethod());
+        assertEquals("HTTP/1.1", parser.getProtocolVersion());
+        assertFalse(parser.hasProtocolVersion());
+        assertEquals(1, parser.getHeaderCount());
+        assertEquals("text/html", parser.getHeaderValue(0));
+    }
+
+    @Test
+    public void testMethodLookupFromBytes() throws Exception {
+        for (Method method : Method.values()) {
+            byte[] bytes = (" " + method.name() + " ").getBytes("US-ASCII");
+            assertEquals(method, Method.lookup(bytes, 1, bytes.length - 2));
+        }
+
+        byte[] bytes = "GETT get PUTS".getBytes("US-ASCII");
+        assertNull(Method.lookup(bytes, 0, 4));
+        assertNull(Method.lookup(bytes, 5, 3));
+        assertNull(Method.lookup(bytes, 9, 4));
+        assertNull(Method.lookup(bytes, 0, 2));
+    }
+
+    @Test
+    public void testTooLargeHeader() throws Exception {
+        RequestParser parser = new RequestParser(64);
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (request.length() < 100)
+            request.append("X-Filler: 0123456789\r\n");
+        InputStream in = new ByteArrayInputStream(request.toString().getBytes("US-ASCII"));
+        try {
+            while (!parser.parse())
+                parser.read(in);
+            fail("A header larger than the limit must be refused.");
+        } catch (ResponseException e) {
+            assertEquals(DefaultStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testHeadersAreLookedUpLazily() throws Exception {
+        RequestParser parser = parse("GET / HTTP/1.1\r\nAccept: a\r\nACCEPT: b\r\nHost: h\r\n\r\n");
+        RequestHeaders headers = new RequestHeaders(parser, "127.0.0.1");
+
+        assertEquals("b", headers.get("accept"));
+        assertNull(headers.get("Accept"));
+        assertEquals("127.0.0.1", headers.get("remote-addr"));
+        assertTrue(headers.containsKey("host"));
+
+        headers.put("host", "changed");
+        assertEquals("changed", headers.get("host"));
+        assertEquals(4, headers.size());
+    }
+
+    @Test
+    public void testServerAnswersTooLargeHeaderWith431() throws IOException {
+        this.testServer.setMaxHeaderSize(256);
+        StringBuilder request = new StringBuilder("GET " + HttpServerTest.URI + " HTTP/1.1\r\n");
+        while (request.length() < 512)
+            request.append("X-Filler: 0123456789\r\n");
+        ByteArrayOutputStream outputStream = invokeServer(request.append("\r\n").toString());
+
+        assertResponse(outputStream, new String[]{
+                "HTTP/1.1 431 Request Header Fields Too Large"
+        });
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.Test;
+import org.nanohttpd.junit.protocols.http.HttpServerTest.CountingOutputStream;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.StatusCodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpResponseHeadTest {
+
+    private static CountingOutputStream send(Response response) {
+        response.setUseGzip(false);
+        CountingOutputStream out = new CountingOutputStream();
+        response.send(out);
+        return out;
+    }
+
+    @Test
+    public void testSmallBodyIsSentWithTheHeadInOneWrite() throws IOException {
+        CountingOutputStream out = send(Response.newFixedLengthResponse(DefaultStatusCode.OK, "text/plain", "hello"));
+
+        assertEquals(1, out.getWrites());
+        String text = out.text();
+        assertTrue(text, text.matches("HTTP/1\\.1 200 OK \r\n" + "Content-Type: text/plain\r\n"
+                + "Date: \\w{3}, \\d{1,2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n" + "Connection: keep-alive\r\n"
+                + "Content-Length: 5\r\n" + "\r\n" + "hello"));
+    }
+
+    @Test
+    public void testLargeBodyIsSentCompletely() throws IOException {
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++)
+            body[i] = (byte) i;
+        CountingOutputStream out = send(Response.newFixedLengthResponse(DefaultStatusCode.OK, "application/octet-stream", body));
+
+        byte[] sent = out.toByteArray();
+        assertArrayEquals(body, Arrays.copyOfRange(sent, sent.length - body.length, sent.length));
+        assertTrue(out.text().contains("Content-Length: 100000\r\n\r\n"));
+    }
+
+    @Test
+    public void testChunkedBodyIsFramed() throws IOException {
+        byte[] body = new byte[40000];
+        Arrays.fill(body, (byte) 'a');
+        Response response = Response.newChunkedResponse(DefaultStatusCode.OK, "application/octet-stream", new ByteArrayInputStream(body));
+        String text = send(response).text();
+
+        String head = text.substring(0, text.indexOf("\r\n\r\n") + 4);
+        assertTrue(head, head.endsWith("Transfer-Encoding: chunked\r\n\r\n"));
+        StringBuilder decoded = new StringBuilder();
+        int position = head.length();
+        while (true) {
+            int lineEnd = text.indexOf("\r\n", position);
+            int size = Integer.parseInt(text.substring(position, lineEnd), 16);
+            position = lineEnd + 2;
+            if (size == 0)
+                break;
+            decoded.append(text, position, position + size);
+            assertEquals("\r\n", text.substring(position + size, position + size + 2));
+            position += size + 2;
+        }
+        assertEquals("\r\n", text.substring(position));
+        assertEquals(new String(body, "US-ASCII"), decoded.toString());
+    }
+
+    @Test
+    public void testHeadersKeepTheirOrderAndAreReplacedIgnoringCase() throws IOException {
+        Response response = Response.newFixedLengthResponse(DefaultStatusCode.OK, null, (String) null);
+        response.addHeader("X-First", "1");
+        response.addHeader("X-Second", "2");
+        response.addHeader("x-first", "3");
+        response.closeConnection(true);
+        response.closeConnection(false);
+
+        assertEquals("3", response.getHeader("X-FIRST"));
+        assertNull(response.getHeader("connection"));
+        String text = send(response).text();
+        assertTrue(text, text.contains("\r\nX-First: 3\r\nX-Second: 2\r\nConnection: keep-alive\r\n"));
+    }
+
+    @Test
+    public void testExplicitDateIsNotDuplicated() throws IOException {
+        Response response = Response.newFixedLengthResponse(DefaultStatusCode.NOT_FOUND, null, (String) null);
+        response.addHeader("Date", "Thu, 1 Jan 1970 00:00:00 GMT");
+        String text = send(response).text();
+
+        assertTrue(text, text.startsWith("HTTP/1.1 404 Not Found \r\nDate: Thu, 1 Jan 1970 00:00:00 GMT\r\n"));
+        assertFalse(text, text.substring(text.indexOf("Date:") + 1).contains("Date:"));
+    }
+
+    @Test
+    public void testUndefinedStatusAndNonAsciiHeaderValue() throws IOException {
+        Response response = Response.newFixedLengthResponse(StatusCodes.of(299, "Custom"), null, (String) null);
+        response.addHeader("X-Name", "café");
+        String text = send(response).text();
+
+        assertTrue(text, text.startsWith("HTTP/1.1 299 Custom \r\n"));
+        assertTrue(text, text.contains("X-Name: café\r\n"));
+    }
+}
@@ -56,6 +56,7 @@ import java.io.*;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -68,6 +69,45 @@ import static org.junit.Assert.*;
  */
 public class HttpServerTest {
 
+    /**
+     * Counts the writes reaching the connection.
+     */
+    public static class CountingOutputStream extends ByteArrayOutputStream {
+
+        private int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            writes++;
+            super.write(b);
+        }
+
+        public int getWrites() {
+            return writes;
+        }
+
+        public String text() throws UnsupportedEncodingException {
+            return toString("UTF-8");
+        }
+    }
+
+    /**
+     * @return the body of a response, everything after the end of its head.
+     */
+    public static byte[] body(byte[] response) {
+        for (int i = 3; i < response.length; i++) {
+            if (response[i - 3] == '\r' && response[i - 2] == '\n' && response[i - 1] == '\r' && response[i] == '\n')
+                return Arrays.copyOfRange(response, i + 1, response.length);
+        }
+        throw new AssertionError("No end of head.");
+    }
+
     public static class TestServer extends NanoHTTPD {
         public Response response = Response.newFixedLengthResponse("");
 
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http;
+
+import org.junit.Test;
+import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.protocols.http.response.BodyOutputStream;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.StreamingBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.nanohttpd.junit.protocols.http.HttpServerTest.body;
+
+public class HttpStreamingResponseTest {
+
+    private static byte[] dechunk(byte[] chunked) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        String text = new String(chunked, "ISO-8859-1");
+        int position = 0;
+        while (true) {
+            int lineEnd = text.indexOf("\r\n", position);
+            int size = Integer.parseInt(text.substring(position, lineEnd), 16);
+            position = lineEnd + 2;
+            if (size == 0)
+                break;
+            decoded.write(chunked, position, size);
+            assertEquals("\r\n", text.substring(position + size, position + size + 2));
+            position += size + 2;
+        }
+        assertEquals("\r\n", text.substring(position));
+        return decoded.toByteArray();
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + i % 26);
+        return content;
+    }
+
+    @Test
+    public void testChunkedBodyIsSentAsWritten() throws IOException {
+        final byte[] content = content(50000);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Response response = Response.newStreamingResponse(DefaultStatusCode.OK, "application/octet-stream", new StreamingBody() {
+
+            @Override
+            public void writeTo(BodyOutputStream body) throws IOException {
+                body.write(content, 0, 10);
+                body.flush();
+                assertTrue(new String(out.toByteArray(), "US-ASCII").endsWith("\r\n\r\na\r\nabcdefghij\r\n"));
+                body.write(ByteBuffer.wrap(content, 10, 100).asReadOnlyBuffer());
+                body.write(content, 110, content.length - 110);
+            }
+        });
+        response.send(out);
+
+        String text = new String(out.toByteArray(), "US-ASCII");
+        assertTrue(text, text.contains("Transfer-Encoding: chunked\r\n"));
+        assertArrayEquals(content, dechunk(body(out.toByteArray())));
+        assertFalse(response.isCloseConnection());
+    }
+
+    @Test
+    public void testFixedLengthBody() throws IOException {
+        final byte[] content = content(30000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Response response = Response.newStreamingResponse(DefaultStatusCode.OK, "application/octet-stream", content.length, new StreamingBody() {
+
+            @Override
+            public void writeTo(BodyOutputStream body) throws IOException {
+                ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+                direct.put(content).flip();
+                body.write(direct);
+            }
+        });
+        response.send(out);
+
+        assertTrue(new String(out.toByteArray(), "US-ASCII").contains("Content-Length: 30000\r\n"));
+        assertArrayEquals(content, body(out.toByteArray()));
+        assertFalse(response.isCloseConnection());
+    }
+
+    @Test
+    public void testWrongLengthClosesTheConnection() {
+        for (final int written : new int[]{
+                5,
+                15
+        }) {
+            Response response = Response.newStreamingResponse(DefaultStatusCode.OK, "application/octet-stream", 10, new StreamingBody() {
+
+                @Override
+                public void writeTo(BodyOutputStream body) throws IOException {
+                    body.write(new byte[written]);
+                }
+            });
+            response.send(new ByteArrayOutputStream());
+
+            assertTrue(response.isCloseConnection());
+        }
+    }
+
+    @Test
+    public void testGzipBody() throws IOException {
+        final byte[] content = content(100000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Response response = Response.newStreamingResponse(DefaultStatusCode.OK, "text/plain", new StreamingBody() {
+
+            @Override
+            public void writeTo(BodyOutputStream body) throws IOException {
+                body.write(content, 0, 1000);
+                body.flush();
+                body.write(content, 1000, content.length - 1000);
+            }
+        });
+        response.setUseGzip(true);
+        response.send(out);
+
+        assertTrue(new String(out.toByteArray(), "US-ASCII").contains("Content-Encoding: gzip\r\n"));
+        GZIPInputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(dechunk(body(out.toByteArray()))));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = gunzip.read(buffer)) > 0)
+            decoded.write(buffer, 0, read);
+        assertArrayEquals(content, decoded.toByteArray());
+    }
+
+    @Test
+    public void testHeadRequestDoesNotWriteTheBody() {
+        Response response = Response.newStreamingResponse(DefaultStatusCode.OK, "application/octet-stream", new StreamingBody() {
+
+            @Override
+            public void writeTo(BodyOutputStream body) {
+                fail("The body of a HEAD response is not written.");
+            }
+        });
+        response.setRequestMethod(Method.HEAD);
+        response.send(new ByteArrayOutputStream());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.server.DefaultServerExecutor;
+import org.nanohttpd.protocols.http.server.ServerStartException;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.DefaultServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.ServerSocketFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AcceptorTest {
+
+    private static final int ACCEPTORS = 3;
+
+    private static final int CONNECTIONS = 30;
+
+    private static class TestServer extends NanoHTTPD {
+        private DefaultServerExecutor executor;
+
+        public TestServer(ServerSocketFactory factory) {
+            super(factory);
+        }
+
+        @Override
+        protected ServerExecutor createServerExecutor() {
+            executor = new DefaultServerExecutor(this, ACCEPTORS);
+            return executor;
+        }
+
+        @Override
+        public Response serve(HTTPSession session) {
+            return Response.newFixedLengthResponse("ok");
+        }
+    }
+
+    private TestServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null)
+            server.stop();
+    }
+
+    private static String request(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0)
+                response.write(b);
+            return response.toString("US-ASCII");
+        }
+    }
+
+    private long[] serveConnections(ServerSocketFactory factory) throws IOException, ServerStartException {
+        server = new TestServer(factory);
+        server.start();
+        for (int i = 0; i < CONNECTIONS; i++)
+            assertTrue(request(server.getListeningPort()).startsWith("HTTP/1.1 200 OK"));
+
+        long[] counts = server.executor.getAcceptCounts();
+        assertEquals(ACCEPTORS, counts.length);
+        assertEquals(ACCEPTORS, server.executor.getAcceptRates().length);
+
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        assertEquals(CONNECTIONS, total);
+        return counts;
+    }
+
+    @Test
+    public void acceptorsShareServerSocket() throws Exception {
+        serveConnections(new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT));
+    }
+
+    @Test
+    public void acceptorsListenOnReusePortSockets() throws Exception {
+        ChannelServerSocketFactory factory = new ChannelServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT,
+                128, true);
+        long[] counts = serveConnections(factory);
+
+        if (factory.isReusePort()) {
+            int busyAcceptors = 0;
+            for (long count : counts)
+                if (count > 0)
+                    busyAcceptors++;
+            assertTrue("The operating system should spread connections over the sockets.", busyAcceptors > 1);
+        }
+    }
+
+    @Test
+    public void backlogIsConfigurable() {
+        assertEquals(128, new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT, 128).getBacklog());
+        assertEquals(DefaultServerSocketFactory.DEFAULT_BACKLOG,
+                new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT).getBacklog());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.AsyncResponse;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.DefaultServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.ServerSocketFactory;
+import org.nanohttpd.util.Handler;
+import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.readResponse;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.send;
+
+public class AsyncHandlerTest {
+
+    private static class TestServer extends NanoHTTPD {
+
+        private final BlockingQueue<AsyncResponse> waiting = new LinkedBlockingQueue<>();
+
+        public TestServer(ServerSocketFactory socketFactory) {
+            super(socketFactory);
+            // a single worker, a pending response holding it would make the other connections wait
+            setClientRequestExecutorServiceFactory(new DefaultExecutorServiceFactory(1, 1, 10, 5));
+            setAsyncHTTPHandler(new Handler<HTTPSession, AsyncResponse>() {
+
+                @Override
+                public AsyncResponse handle(HTTPSession session) {
+                    if (!session.getUri().startsWith("/wait"))
+                        return AsyncResponse.completed(Response.newFixedLengthResponse(session.getUri()));
+
+                    AsyncResponse response = new AsyncResponse();
+                    if (session.getUri().equals("/wait/short"))
+                        response.setTimeout(100, Response.newFixedLengthResponse(DefaultStatusCode.NO_CONTENT,
+                                NanoHTTPD.MIME_PLAINTEXT, ""));
+                    waiting.add(response);
+                    return response;
+                }
+            });
+        }
+
+        AsyncResponse nextWaiting() throws InterruptedException {
+            AsyncResponse response = waiting.poll(2, TimeUnit.SECONDS);
+            assertNotNull("The request should have reached the handler.", response);
+            return response;
+        }
+    }
+
+    private TestServer server;
+
+    private final SocketClient client = new SocketClient(2000);
+
+    @Before
+    public void setUp() {
+        server = new TestServer(new ChannelServerSocketFactory(0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        return client.connect(server.getListeningPort());
+    }
+
+    private void pendingResponseDoesNotHoldTheWorker() throws Exception {
+        server.start();
+        Socket pending = connect();
+        send(pending, "GET /wait HTTP/1.1\r\n\r\n");
+        AsyncResponse response = server.nextWaiting();
+
+        // without a channel an idle connection holds the worker, so the others close after their request
+        for (int i = 0; i < 3; i++) {
+            Socket other = connect();
+            send(other, "GET /other HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue(readResponse(other).endsWith("/other"));
+        }
+
+        assertTrue(response.complete(Response.newFixedLengthResponse("done")));
+        String sent = readResponse(pending);
+        assertTrue(sent, sent.startsWith("HTTP/1.1 200 OK") && sent.endsWith("done"));
+
+        // the connection is kept alive after the pending response
+        send(pending, "GET /again HTTP/1.1\r\n\r\n");
+        assertTrue(readResponse(pending).endsWith("/again"));
+    }
+
+    @Test
+    public void pendingResponseDoesNotHoldTheWorkerWithChannel() throws Exception {
+        pendingResponseDoesNotHoldTheWorker();
+    }
+
+    @Test
+    public void pendingResponseDoesNotHoldTheWorkerWithoutChannel() throws Exception {
+        server = new TestServer(new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT));
+        pendingResponseDoesNotHoldTheWorker();
+    }
+
+    @Test
+    public void pendingResponseTimesOut() throws Exception {
+        server.setAsyncTimeout(200);
+        server.start();
+        Socket socket = connect();
+        send(socket, "GET /wait HTTP/1.1\r\n\r\n");
+        AsyncResponse response = server.nextWaiting();
+
+        assertTrue(readResponse(socket).startsWith("HTTP/1.1 503 Service Unavailable"));
+        assertTrue(response.isDone());
+        assertTrue(!response.complete(Response.newFixedLengthResponse("late")));
+    }
+
+    @Test
+    public void pendingResponseUsesItsOwnTimeout() throws Exception {
+        server.start();
+        Socket socket = connect();
+        send(socket, "GET /wait/short HTTP/1.1\r\n\r\n");
+        server.nextWaiting();
+
+        assertTrue(readResponse(socket).startsWith("HTTP/1.1 204 No Content"));
+    }
+
+    @Test
+    public void failedResponseIsAnInternalError() throws Exception {
+        server.start();
+        Socket socket = connect();
+        send(socket, "GET /wait HTTP/1.1\r\n\r\n");
+        server.nextWaiting().fail(new IllegalStateException("broken"));
+
+        assertTrue(readResponse(socket).startsWith("HTTP/1.1 500 Internal Server Error"));
+    }
+
+    @Test
+    public void interceptorsRunBeforeTheAsyncHandler() throws Exception {
+        server.addHTTPInterceptor(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                return session.getUri().equals("/wait/intercepted") ? Response.newFixedLengthResponse("intercepted")
+                        : null;
+            }
+        });
+        server.start();
+        Socket socket = connect();
+        send(socket, "GET /wait/intercepted HTTP/1.1\r\n\r\n");
+
+        assertTrue(readResponse(socket).endsWith("intercepted"));
+        assertEquals(0, server.waiting.size());
+    }
+}
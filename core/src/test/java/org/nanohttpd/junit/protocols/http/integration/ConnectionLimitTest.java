@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.server.NioServerExecutor;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.util.Handler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.request;
+
+public class ConnectionLimitTest {
+
+    private NanoHTTPD server;
+
+    private final SocketClient client = new SocketClient(2000);
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    private void start(final boolean nio) throws Exception {
+        server = new NanoHTTPD(new ChannelServerSocketFactory(0)) {
+
+            @Override
+            protected ServerExecutor createServerExecutor() {
+                return nio ? new NioServerExecutor(this, 1) : super.createServerExecutor();
+            }
+        };
+        server.setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                return Response.newFixedLengthResponse(session.getUri());
+            }
+        });
+        server.setMaxConnectionsPerAddress(2);
+        server.start();
+    }
+
+    private Socket connect() throws IOException {
+        return client.connect(server.getListeningPort());
+    }
+
+    private void awaitConnectionCount(InetAddress address, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && server.getConnectionRegistry().getConnectionCount(address) != count; i++)
+            Thread.sleep(20);
+        assertEquals(count, server.getConnectionRegistry().getConnectionCount(address));
+    }
+
+    private void connectionsPastTheLimitAreRejected() throws Exception {
+        Socket first = connect();
+        Socket second = connect();
+        assertTrue(request(first, "GET /first HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+        assertTrue(request(second, "GET /second HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+        InetAddress address = first.getLocalAddress();
+        awaitConnectionCount(address, 2);
+
+        String rejected = request(connect(), "GET /third HTTP/1.1\r\n\r\n");
+        assertTrue(rejected, rejected.startsWith("HTTP/1.1 503 Service Unavailable"));
+        assertEquals(1, server.getConnectionRegistry().getRejectionCount());
+
+        // the kept-alive connections are still served
+        assertTrue(request(first, "GET /again HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+
+        first.close();
+        awaitConnectionCount(address, 1);
+        assertTrue(request(connect(), "GET /fourth HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+        assertEquals(2, server.getConnectionRegistry().size());
+    }
+
+    @Test
+    public void connectionsPastTheLimitAreRejectedWithWorkers() throws Exception {
+        start(false);
+        connectionsPastTheLimitAreRejected();
+    }
+
+    @Test
+    public void connectionsPastTheLimitAreRejectedWithEventLoops() throws Exception {
+        start(true);
+        connectionsPastTheLimitAreRejected();
+    }
+
+    @Test
+    public void stopClosesTheRegisteredConnections() throws Exception {
+        start(false);
+        Socket socket = connect();
+        assertTrue(request(socket, "GET /open HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+        awaitConnectionCount(socket.getLocalAddress(), 1);
+
+        server.stop();
+        assertEquals(-1, socket.getInputStream().read());
+        assertEquals(0, server.getConnectionRegistry().size());
+    }
+}
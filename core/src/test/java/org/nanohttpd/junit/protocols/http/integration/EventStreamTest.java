@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.protocols.http.sse.EventBroadcaster;
+import org.nanohttpd.protocols.http.sse.EventStream;
+import org.nanohttpd.protocols.http.sse.ServerSentEvent;
+import org.nanohttpd.util.Handler;
+import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.readHead;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.send;
+
+public class EventStreamTest {
+
+    private NanoHTTPD server;
+
+    private EventBroadcaster broadcaster;
+
+    private final SocketClient client = new SocketClient(2000);
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        if (server != null)
+            server.stop();
+        if (broadcaster != null)
+            broadcaster.close();
+    }
+
+    private void start(EventBroadcaster broadcaster) throws Exception {
+        this.broadcaster = broadcaster;
+        server = new NanoHTTPD(new ChannelServerSocketFactory(0)) {
+        };
+        // a single worker, a subscriber holding it would make the others wait
+        server.setClientRequestExecutorServiceFactory(new DefaultExecutorServiceFactory(1, 1, 10, 5));
+        server.setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                if (session.getUri().equals("/events"))
+                    return EventStreamTest.this.broadcaster.subscribe(session);
+                return Response.newFixedLengthResponse(session.getUri());
+            }
+        });
+        server.start();
+    }
+
+    private Socket subscribe(String lastEventId) throws Exception {
+        Socket socket = client.connect(server.getListeningPort());
+        send(socket, "GET /events HTTP/1.1\r\n" + (lastEventId != null ? "Last-Event-ID: " + lastEventId + "\r\n" : "")
+                + "\r\n");
+
+        String head = readHead(socket.getInputStream());
+        assertTrue(head, head.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(head, head.contains("Content-Type: text/event-stream"));
+        assertTrue(head, head.contains("Transfer-Encoding: chunked"));
+        return socket;
+    }
+
+    private static String readLine(InputStream in, String end) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (!line.toString("UTF-8").endsWith(end)) {
+            int b = in.read();
+            if (b < 0)
+                throw new IOException("Connection closed.");
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * @return the content of the next chunk.
+     */
+    private static String readChunk(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        String sizeLine = readLine(in, "\r\n");
+        int size = Integer.parseInt(sizeLine.trim(), 16);
+        byte[] chunk = new byte[size];
+        for (int read = 0; read < size; ) {
+            int count = in.read(chunk, read, size - read);
+            if (count < 0)
+                throw new IOException("Connection closed.");
+            read += count;
+        }
+        assertEquals("\r\n", readLine(in, "\r\n"));
+        return new String(chunk, "UTF-8");
+    }
+
+    @Test
+    public void eventIsSentToEverySubscriber() throws Exception {
+        start(new EventBroadcaster(10, 10, 0, EventBroadcaster.OverflowPolicy.CLOSE, 1));
+        Socket first = subscribe(null);
+        Socket second = subscribe(null);
+
+        broadcaster.broadcast(new ServerSentEvent("1", "update", "line one\nline two"));
+        String expected = "id: 1\nevent: update\ndata: line one\ndata: line two\n\n";
+        assertEquals(expected, readChunk(first));
+        assertEquals(expected, readChunk(second));
+
+        // the subscribers do not hold the only worker
+        Socket other = client.connect(server.getListeningPort());
+        send(other, "GET /other HTTP/1.1\r\n\r\n");
+        assertTrue(readHead(other.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+    }
+
+    @Test
+    public void missedEventsAreReplayed() throws Exception {
+        start(new EventBroadcaster(10, 10, 0, EventBroadcaster.OverflowPolicy.CLOSE, 1));
+        for (int i = 1; i <= 3; i++)
+            broadcaster.broadcast(new ServerSentEvent(Integer.toString(i), null, "event " + i));
+
+        Socket socket = subscribe("1");
+        assertEquals("id: 2\ndata: event 2\n\n", readChunk(socket));
+        assertEquals("id: 3\ndata: event 3\n\n", readChunk(socket));
+        broadcaster.broadcast(new ServerSentEvent("4", null, "event 4"));
+        assertEquals("id: 4\ndata: event 4\n\n", readChunk(socket));
+    }
+
+    @Test
+    public void idleSubscribersGetHeartbeats() throws Exception {
+        start(new EventBroadcaster(10, 10, 50, EventBroadcaster.OverflowPolicy.CLOSE, 1));
+        Socket socket = subscribe(null);
+
+        assertEquals(": \n\n", readChunk(socket));
+        assertEquals(": \n\n", readChunk(socket));
+    }
+
+    @Test
+    public void endedStreamKeepsTheConnection() throws Exception {
+        start(new EventBroadcaster(10, 10, 0, EventBroadcaster.OverflowPolicy.CLOSE, 1));
+        final List<EventStream> streams = new ArrayList<>();
+        server.setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                if (!session.getUri().equals("/events"))
+                    return Response.newFixedLengthResponse(session.getUri());
+                EventStream stream = broadcaster.subscribe(session);
+                streams.add(stream);
+                return stream;
+            }
+        });
+        Socket socket = subscribe(null);
+        streams.get(0).send(new ServerSentEvent(null, null, "only you"));
+        streams.get(0).end();
+
+        assertEquals("data: only you\n\n", readChunk(socket));
+        assertEquals("", readChunk(socket));
+        assertEquals(0, broadcaster.getSubscriberCount());
+
+        send(socket, "GET /next HTTP/1.1\r\n\r\n");
+        assertTrue(readHead(socket.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+    }
+
+    @Test
+    public void slowSubscriberIsClosedOrLosesEvents() throws Exception {
+        // a subscriber that was not sent yet takes no events off its queue
+        broadcaster = new EventBroadcaster(10, 2, 0, EventBroadcaster.OverflowPolicy.CLOSE, 1);
+        EventStream closed = broadcaster.subscribe((String) null);
+        for (int i = 0; i < 3; i++)
+            broadcaster.broadcast(new ServerSentEvent(null, null, "event"));
+        assertFalse(closed.isOpen());
+        assertTrue(closed.getConnectionHold().isDone());
+        assertEquals(0, broadcaster.getSubscriberCount());
+        broadcaster.close();
+
+        broadcaster = new EventBroadcaster(10, 2, 0, EventBroadcaster.OverflowPolicy.DROP, 1);
+        EventStream dropping = broadcaster.subscribe((String) null);
+        assertTrue(dropping.send(new ServerSentEvent(null, null, "event")));
+        assertTrue(dropping.send(new ServerSentEvent(null, null, "event")));
+        assertFalse(dropping.send(new ServerSentEvent(null, null, "event")));
+        assertTrue(dropping.isOpen());
+        assertEquals(1, broadcaster.getSubscriberCount());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.util.Handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpectContinueTest {
+
+    private NanoHTTPD server;
+
+    private Socket socket;
+
+    private final AtomicInteger handled = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new NanoHTTPD(new ChannelServerSocketFactory(0)) {
+        };
+        server.addHTTPInterceptor(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                String length = session.getHeaders().get("content-length");
+                if (length != null && Long.parseLong(length) > 1000)
+                    return Response.newFixedLengthResponse(DefaultStatusCode.PAYLOAD_TOO_LARGE,
+                            NanoHTTPD.MIME_PLAINTEXT, "too large");
+                return null;
+            }
+        });
+        server.setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                handled.incrementAndGet();
+                int length = 0;
+                try {
+                    InputStream in = session.getInputStream();
+                    byte[] buf = new byte[64];
+                    for (int read; (read = in.read(buf)) >= 0; )
+                        length += read;
+                } catch (IOException e) {
+                    return Response.newFixedLengthResponse(e.toString());
+                }
+                return Response.newFixedLengthResponse(String.valueOf(length));
+            }
+        });
+        server.start();
+
+        socket = new Socket("localhost", server.getListeningPort());
+        socket.setSoTimeout(3000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        server.stop();
+    }
+
+    private void send(String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private String readHeader() throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (!header.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0)
+                throw new IOException("Connection closed before the response header ended.");
+            header.write(b);
+        }
+        return header.toString("US-ASCII");
+    }
+
+    private String readBody(String header) throws IOException {
+        int length = 0;
+        for (String line : header.split("\r\n"))
+            if (line.toLowerCase().startsWith("content-length:"))
+                length = Integer.parseInt(line.substring(15).trim());
+        byte[] body = new byte[length];
+        for (int off = 0; off < length; )
+            off += socket.getInputStream().read(body, off, length - off);
+        return new String(body, "US-ASCII");
+    }
+
+    @Test
+    public void bodyIsSentAfter100Continue() throws Exception {
+        send("POST /upload HTTP/1.1\r\nContent-Length: 10\r\nExpect: 100-continue\r\n\r\n");
+        assertEquals("HTTP/1.1 100 Continue\r\n\r\n", readHeader());
+
+        send("0123456789");
+        String header = readHeader();
+        assertTrue(header, header.startsWith("HTTP/1.1 200 OK"));
+        assertEquals("10", readBody(header));
+
+        // the connection goes on with the next request
+        send("POST /upload HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+        header = readHeader();
+        assertTrue(header, header.startsWith("HTTP/1.1 200 OK"));
+        assertEquals("3", readBody(header));
+    }
+
+    @Test
+    public void rejectedUploadIsAnsweredWithoutItsBody() throws Exception {
+        send("POST /upload HTTP/1.1\r\nContent-Length: 1000000000\r\nExpect: 100-continue\r\n\r\n");
+
+        String header = readHeader();
+        assertTrue(header, header.startsWith("HTTP/1.1 413 Payload Too Large"));
+        assertTrue(header, header.toLowerCase().contains("connection: close"));
+        assertEquals("too large", readBody(header));
+        assertEquals(-1, socket.getInputStream().read());
+        assertEquals(0, handled.get());
+    }
+
+    @Test
+    public void unknownExpectationIsAnswered417() throws Exception {
+        send("POST /upload HTTP/1.1\r\nContent-Length: 3\r\nExpect: something-else\r\n\r\nabc");
+
+        String header = readHeader();
+        assertTrue(header, header.startsWith("HTTP/1.1 417 Expectation Failed"));
+        assertEquals(0, handled.get());
+    }
+}
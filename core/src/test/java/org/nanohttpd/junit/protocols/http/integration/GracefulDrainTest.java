@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.DefaultServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.InheritedServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.ServerSocketFactory;
+import org.nanohttpd.util.Handler;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.readResponse;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.send;
+
+public class GracefulDrainTest {
+
+    private NanoHTTPD server;
+
+    private final CountDownLatch slowStarted = new CountDownLatch(1);
+
+    private final SocketClient client = new SocketClient(3000);
+
+    private void start(ServerSocketFactory factory, final int slowMillis) throws Exception {
+        server = new NanoHTTPD(factory) {
+        };
+        server.setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                if (session.getUri().equals("/slow")) {
+                    slowStarted.countDown();
+                    try {
+                        Thread.sleep(slowMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return Response.newFixedLengthResponse(session.getUri());
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        if (server != null)
+            server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        return client.connect(server.getListeningPort());
+    }
+
+    private Thread drainInBackground(final int waitMs, final AtomicBoolean drained) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drained.set(server.drain(waitMs));
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void drainFinishesInFlightRequestsAndClosesIdleConnections(ServerSocketFactory factory) throws Exception {
+        start(factory, 500);
+        int port = server.getListeningPort();
+
+        Socket idle = connect();
+        send(idle, "GET /first HTTP/1.1\r\n\r\n");
+        assertTrue(readResponse(idle).startsWith("HTTP/1.1 200 OK"));
+
+        Socket busy = connect();
+        send(busy, "GET /slow HTTP/1.1\r\n\r\n");
+        assertTrue(slowStarted.await(2, TimeUnit.SECONDS));
+
+        AtomicBoolean drained = new AtomicBoolean();
+        Thread drain = drainInBackground(5000, drained);
+
+        // the idle connection is closed without waiting for the slow request
+        assertEquals(-1, idle.getInputStream().read());
+        assertTrue(server.isDraining());
+
+        String header = readResponse(busy);
+        assertTrue(header, header.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(header, header.toLowerCase().contains("connection: close"));
+        assertEquals(-1, busy.getInputStream().read());
+
+        drain.join(5000);
+        assertTrue(drained.get());
+        assertEquals(0, server.getConnectionRegistry().size());
+        try {
+            new Socket("localhost", port).close();
+            fail("still accepting connections");
+        } catch (ConnectException expected) {
+        }
+    }
+
+    @Test
+    public void drainsConnectionsWaitingOnTheKeepAliveWatcher() throws Exception {
+        drainFinishesInFlightRequestsAndClosesIdleConnections(new ChannelServerSocketFactory(0));
+    }
+
+    @Test
+    public void drainsConnectionsWaitingOnTheirThread() throws Exception {
+        drainFinishesInFlightRequestsAndClosesIdleConnections(
+                new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT));
+    }
+
+    @Test
+    public void connectionsStillBusyWhenTheTimeRunsOutAreClosed() throws Exception {
+        start(new ChannelServerSocketFactory(0), 2000);
+
+        Socket busy = connect();
+        send(busy, "GET /slow HTTP/1.1\r\n\r\n");
+        assertTrue(slowStarted.await(2, TimeUnit.SECONDS));
+
+        long start = System.currentTimeMillis();
+        assertFalse(server.drain(200));
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(-1, busy.getInputStream().read());
+    }
+
+    @Test
+    public void servesOnAnAdoptedSocket() throws Exception {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+        int port = channel.socket().getLocalPort();
+
+        // a client that connects before the server starts waits in the backlog instead of being refused
+        Socket early = client.connect(port);
+        send(early, "GET /early HTTP/1.1\r\n\r\n");
+
+        InheritedServerSocketFactory factory = new InheritedServerSocketFactory(channel);
+        assertEquals(port, factory.getBindPort());
+        start(factory, 0);
+        assertEquals(port, server.getListeningPort());
+        assertTrue(readResponse(early).startsWith("HTTP/1.1 200 OK"));
+
+        server.stop();
+        assertFalse(channel.isOpen());
+        try {
+            factory.create();
+            fail("adopted twice");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.HTTPSessionImpl;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.protocols.http.tempfiles.DefaultTempFileManager;
+import org.nanohttpd.util.Handler;
+import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.readHead;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.send;
+
+public class HandlerDeadlineTest {
+
+    private NanoHTTPD server;
+
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+
+    private final AtomicBoolean interruptLeaked = new AtomicBoolean();
+
+    private final SocketClient client = new SocketClient(2000);
+
+    @Before
+    public void setUp() throws Exception {
+        server = new NanoHTTPD(new ChannelServerSocketFactory(0)) {
+        };
+        // a single worker, a hung handler holding it would make the others wait
+        server.setClientRequestExecutorServiceFactory(new DefaultExecutorServiceFactory(1, 1, 10, 5));
+        server.setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                if (Thread.currentThread().isInterrupted())
+                    interruptLeaked.set(true);
+                if (session.getUri().endsWith("/slow") || session.getUri().equals("/stuck")) {
+                    try {
+                        Thread.sleep(session.getUri().equals("/stuck") ? 5000 : 1000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        return Response.newFixedLengthResponse("interrupted");
+                    }
+                }
+                if (session.getUri().equals("/upload")) {
+                    try {
+                        // the client sends less than it announced
+                        while (session.getInputStream().read(new byte[16]) >= 0)
+                            continue;
+                    } catch (IOException e) {
+                        interrupted.countDown();
+                        return Response.newFixedLengthResponse("interrupted");
+                    }
+                }
+                return Response.newFixedLengthResponse(session.getUri());
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    private String request(String uri) throws IOException {
+        Socket socket = client.connect(server.getListeningPort());
+        send(socket, "GET " + uri + " HTTP/1.1\r\n\r\n");
+        return readHead(socket.getInputStream());
+    }
+
+    @Test
+    public void handlerMissingTheDeadlineIsAnsweredAndInterrupted() throws Exception {
+        server.setHandlerDeadline(100);
+
+        String header = request("/slow");
+        assertTrue(header, header.startsWith("HTTP/1.1 503 Service Unavailable"));
+        assertTrue(header, header.toLowerCase().contains("connection: close"));
+        assertTrue("not interrupted", interrupted.await(2, TimeUnit.SECONDS));
+        assertEquals(1, server.getHandlerDeadlineExpirations());
+
+        // the worker is free again, without the interrupt
+        String next = request("/next");
+        assertTrue(next, next.startsWith("HTTP/1.1 200 OK"));
+        assertFalse(interruptLeaked.get());
+    }
+
+    @Test
+    public void handlerBlockedReadingTheBodyIsAnsweredBeforeTheInterrupt() throws Exception {
+        server.setHandlerDeadline(100);
+
+        Socket socket = client.connect(server.getListeningPort());
+        send(socket, "POST /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\nab");
+        // the interrupt closes the channel the handler reads from, the answer must be written before
+        String header = readHead(socket.getInputStream());
+        assertTrue(header, header.startsWith("HTTP/1.1 503 Service Unavailable"));
+        assertTrue("not interrupted", interrupted.await(2, TimeUnit.SECONDS));
+        assertEquals(1, server.getHandlerDeadlineExpirations());
+    }
+
+    @Test
+    public void routeDeadlineTakesThePlaceOfTheServerDeadline() throws Exception {
+        server.setHandlerDeadline(100);
+        server.setHandlerDeadline("/reports/", 0);
+        server.setHandlerDeadline("/reports/live/", 100);
+        assertEquals(100, server.getHandlerDeadline("/other"));
+        assertEquals(0, server.getHandlerDeadline("/reports/slow"));
+        assertEquals(100, server.getHandlerDeadline("/reports/live/slow"));
+
+        assertTrue(request("/reports/slow").startsWith("HTTP/1.1 200 OK"));
+        assertTrue(request("/reports/live/slow").startsWith("HTTP/1.1 503 Service Unavailable"));
+
+        server.setHandlerDeadline("/reports/live/", -1);
+        assertEquals(0, server.getHandlerDeadline("/reports/live/slow"));
+    }
+
+    @Test
+    public void handlerWithinTheDeadlineIsNotInterrupted() throws Exception {
+        server.setHandlerDeadline(3000);
+
+        assertTrue(request("/slow").startsWith("HTTP/1.1 200 OK"));
+        assertEquals(1, interrupted.getCount());
+        assertEquals(0, server.getHandlerDeadlineExpirations());
+    }
+
+    @Test
+    public void clientNotTakingTheAnswerDelaysTheInterruptByTheAnswerDeadlineOnly() throws Exception {
+        server.setHandlerDeadline(100);
+        // a client that takes nothing, writes to it block until the connection is closed
+        final CountDownLatch closed = new CountDownLatch(1);
+        OutputStream stuck = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("Closed.");
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        final HTTPSessionImpl session = new HTTPSessionImpl(server, new DefaultTempFileManager(),
+                new ByteArrayInputStream("GET /stuck HTTP/1.1\r\n\r\n".getBytes("US-ASCII")), stuck);
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    session.execute();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.start();
+
+        // the answer gives up at its own short write deadline, not the one of the server, and the interrupt follows
+        assertTrue("not interrupted", interrupted.await(3, TimeUnit.SECONDS));
+        thread.join(2000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, server.getHandlerDeadlineExpirations());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.server.ServerStartException;
+import org.nanohttpd.protocols.http.sockets.DefaultServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.ServerSocketFactory;
+import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.request;
+
+public class KeepAliveTest {
+
+    private static class TestServer extends NanoHTTPD {
+
+        public TestServer() {
+            super(0);
+            init();
+        }
+
+        public TestServer(ServerSocketFactory serverSocketFactory) {
+            super(serverSocketFactory);
+            init();
+        }
+
+        private void init() {
+            // a single worker, a connection holding it makes the others wait until its socket times out
+            setClientRequestExecutorServiceFactory(new DefaultExecutorServiceFactory(1, 1, 10, 5));
+        }
+
+        @Override
+        public Response serve(HTTPSession session) {
+            return Response.newFixedLengthResponse(session.getUri());
+        }
+    }
+
+    private TestServer server;
+
+    private final SocketClient client = new SocketClient(2000);
+
+    @Before
+    public void setUp() {
+        server = new TestServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        return client.connect(server.getListeningPort());
+    }
+
+    private static void assertClosed(Socket socket) throws IOException {
+        try {
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketTimeoutException e) {
+            fail("Connection should have been closed.");
+        }
+    }
+
+    @Test
+    public void idleConnectionsDoNotHoldTheWorker() throws Exception {
+        server.start();
+        Socket first = connect();
+        assertTrue(request(first, "GET /first HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+        // only connections between requests are parked, so the second one sends right after connecting
+        Socket second = connect();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(request(second, "GET /second HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+            assertTrue(request(first, "GET /first HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+        }
+    }
+
+    @Test
+    public void idleConnectionIsClosedAfterKeepAliveTimeout() throws Exception {
+        server.setKeepAliveTimeout(200);
+        server.start();
+        Socket socket = connect();
+        assertTrue(request(socket, "GET / HTTP/1.1\r\n\r\n").contains("Connection: keep-alive"));
+        assertClosed(socket);
+    }
+
+    @Test
+    public void idleConnectionWithoutAChannelIsClosedAfterKeepAliveTimeout() throws Exception {
+        server = new TestServer(new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT) {
+
+            @Override
+            public ServerSocket create() throws IOException {
+                return new ServerSocket(0);
+            }
+        });
+        server.setKeepAliveTimeout(200);
+        server.start();
+        Socket socket = connect();
+        assertTrue(request(socket, "GET / HTTP/1.1\r\n\r\n").contains("Connection: keep-alive"));
+        assertClosed(socket);
+    }
+
+    @Test
+    public void connectionIsClosedAfterMaxRequests() throws Exception {
+        server.setMaxKeepAliveRequests(2);
+        server.start();
+        Socket socket = connect();
+        assertTrue(request(socket, "GET / HTTP/1.1\r\n\r\n").contains("Connection: keep-alive"));
+        assertTrue(request(socket, "GET / HTTP/1.1\r\n\r\n").contains("Connection: close"));
+        assertClosed(socket);
+    }
+
+    @Test
+    public void http10KeepAliveIsHonoured() throws Exception {
+        server.start();
+        Socket socket = connect();
+        for (int i = 0; i < 3; i++)
+            assertTrue(request(socket, "GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n")
+                    .contains("Connection: keep-alive"));
+
+        assertTrue(request(socket, "GET / HTTP/1.0\r\n\r\n").contains("Connection: close"));
+        assertClosed(socket);
+    }
+
+    @Test
+    public void http10ChunkedResponseClosesConnection() throws ServerStartException, IOException {
+        server.setHTTPHandler(new org.nanohttpd.util.Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession input) {
+                return Response.newChunkedResponse(org.nanohttpd.protocols.http.response.DefaultStatusCode.OK,
+                        NanoHTTPD.MIME_PLAINTEXT, new java.io.ByteArrayInputStream(new byte[0]));
+            }
+        });
+        server.start();
+        Socket socket = connect();
+        assertTrue(request(socket, "GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n").contains("Connection: close"));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.server.ServerStartException;
+import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
+import org.nanohttpd.util.concurrent.WorkStealingExecutorServiceFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.request;
+
+public class LoadSheddingTest {
+
+    private static class TestServer extends NanoHTTPD {
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        public TestServer() {
+            super(0);
+            setClientRequestExecutorServiceFactory(new DefaultExecutorServiceFactory(1, 1, 0, 5));
+        }
+
+        @Override
+        public Response serve(HTTPSession session) {
+            if ("/blocked".equals(session.getUri())) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Response.newFixedLengthResponse(session.getUri());
+        }
+    }
+
+    private TestServer server;
+
+    private final SocketClient client = new SocketClient(5000);
+
+    @Before
+    public void setUp() throws ServerStartException {
+        server = new TestServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.release.countDown();
+        client.close();
+        server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        return client.connect(server.getListeningPort());
+    }
+
+    @Test
+    public void saturatedServerAnswersServiceUnavailable() throws Exception {
+        // the only worker thread stays on this request, an idle keep-alive connection would give it back
+        OutputStream out = connect().getOutputStream();
+        out.write("GET /blocked HTTP/1.1\r\n\r\n".getBytes("US-ASCII"));
+        out.flush();
+        assertTrue(server.blocked.await(5, TimeUnit.SECONDS));
+
+        Socket rejected = connect();
+        String header = request(rejected, "GET /rejected HTTP/1.1\r\n\r\n");
+        assertTrue(header.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertTrue(header.contains("Retry-After: " + NanoHTTPD.SERVICE_UNAVAILABLE_RETRY_AFTER + "\r\n"));
+        assertTrue(header.contains("Connection: close\r\n"));
+        assertEquals(-1, rejected.getInputStream().read());
+    }
+
+    @Test
+    public void serverRecoversOnceWorkerIsFree() throws Exception {
+        Socket busy = connect();
+        assertTrue(request(busy, "GET /busy HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+        busy.close();
+
+        long deadline = System.currentTimeMillis() + 3000;
+        while (!request(connect(), "GET /later HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK")) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Server did not accept connections again.");
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void poolGrowsToMaximumBeforeQueueing() throws InterruptedException {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) new DefaultExecutorServiceFactory(1, 2, 1, 5).create();
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        try {
+            executor.execute(blocking);
+            executor.execute(blocking);
+            assertEquals(2, executor.getPoolSize());
+            assertEquals(0, executor.getQueue().size());
+
+            executor.execute(blocking);
+            assertEquals(1, executor.getQueue().size());
+
+            try {
+                executor.execute(blocking);
+                fail("Executor should reject once threads and queue are full.");
+            } catch (RejectedExecutionException ignored) {
+            }
+        } finally {
+            release.countDown();
+            shutdown(executor);
+        }
+    }
+
+    @Test
+    public void workStealingPoolRejectsBeyondQueuedTaskLimit() throws InterruptedException {
+        ExecutorService executor = new WorkStealingExecutorServiceFactory(1, 1).create();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        try {
+            executor.execute(blocking);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute(blocking);
+
+            try {
+                executor.execute(blocking);
+                fail("Pool should reject once its worker is busy and the queue is full.");
+            } catch (RejectedExecutionException ignored) {
+            }
+        } finally {
+            release.countDown();
+            shutdown(executor);
+        }
+    }
+
+    private static void shutdown(ExecutorService executor) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.server.NioServerExecutor;
+import org.nanohttpd.protocols.http.server.ServerStartException;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.util.concurrent.ExecutorServiceFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.readResponse;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.send;
+
+public class NioServerExecutorTest {
+
+    private static class TestServer extends NanoHTTPD {
+
+        public TestServer() {
+            super(new ChannelServerSocketFactory(0));
+        }
+
+        @Override
+        protected ServerExecutor createServerExecutor() {
+            return new NioServerExecutor(this, 2);
+        }
+
+        @Override
+        public ExecutorServiceFactory getClientRequestExecutorServiceFactory() {
+            return new ExecutorServiceFactory() {
+
+                @Override
+                public ExecutorService create() {
+                    return Executors.newFixedThreadPool(2);
+                }
+            };
+        }
+
+        @Override
+        public Response serve(HTTPSession session) {
+            return Response.newFixedLengthResponse(session.getUri());
+        }
+    }
+
+    private TestServer server;
+
+    private final SocketClient client = new SocketClient(5000);
+
+    @Before
+    public void setUp() throws ServerStartException {
+        server = new TestServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        return client.connect(server.getListeningPort());
+    }
+
+    @Test
+    public void keepAliveConnectionServesSequentialRequests() throws IOException {
+        Socket socket = connect();
+        for (int i = 0; i < 5; i++) {
+            send(socket, "GET /request" + i + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(readResponse(socket).endsWith("\r\n\r\n/request" + i));
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsAreAllServed() throws IOException {
+        Socket socket = connect();
+        send(socket, "GET /first HTTP/1.1\r\n\r\nGET /second HTTP/1.1\r\n\r\nGET /third HTTP/1.1\r\n\r\n");
+        assertTrue(readResponse(socket).endsWith("\r\n\r\n/first"));
+        assertTrue(readResponse(socket).endsWith("\r\n\r\n/second"));
+        assertTrue(readResponse(socket).endsWith("\r\n\r\n/third"));
+    }
+
+    @Test
+    public void headerSentInPiecesIsServed() throws Exception {
+        Socket socket = connect();
+        send(socket, "GET /sl");
+        Thread.sleep(100);
+        send(socket, "ow HTTP/1.1\r\n");
+        Thread.sleep(100);
+        send(socket, "\r\n");
+        assertTrue(readResponse(socket).endsWith("\r\n\r\n/slow"));
+    }
+
+    @Test
+    public void idleConnectionsDoNotHoldWorkerThreads() throws IOException {
+        // the pool only has two threads, idle and half sent requests must not take them
+        for (int i = 0; i < 20; i++) {
+            Socket socket = connect();
+            if (i % 2 == 0) {
+                send(socket, "GET /idle HTTP/1.1\r\n\r\n");
+                assertTrue(readResponse(socket).endsWith("\r\n\r\n/idle"));
+            } else {
+                send(socket, "GET /incomplete HTTP/1.1\r\n");
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        Socket socket = connect();
+        send(socket, "GET /served HTTP/1.1\r\n\r\n");
+        assertTrue(readResponse(socket).endsWith("\r\n\r\n/served"));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+}
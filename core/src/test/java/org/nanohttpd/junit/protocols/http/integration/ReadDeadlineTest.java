@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.ReadDeadline;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.DefaultServerSocketFactory;
+import org.nanohttpd.protocols.http.sockets.ServerSocketFactory;
+import org.nanohttpd.util.Handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadDeadlineTest {
+
+    private NanoHTTPD server;
+
+    private Socket socket;
+
+    @After
+    public void tearDown() throws IOException {
+        if (socket != null)
+            socket.close();
+        server.stop();
+    }
+
+    private void start(ServerSocketFactory socketFactory) throws Exception {
+        server = new NanoHTTPD(socketFactory) {
+        };
+        server.setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+            @Override
+            public Response handle(HTTPSession session) {
+                try {
+                    session.parseBody(new HashMap<String, String>());
+                } catch (Exception e) {
+                    return Response.newFixedLengthResponse("failed: " + e);
+                }
+                return Response.newFixedLengthResponse(session.getUri());
+            }
+        });
+        server.start();
+        socket = new Socket("localhost", server.getListeningPort());
+        socket.setSoTimeout(2000);
+    }
+
+    /**
+     * Write the text, unless the server closed the connection already.
+     */
+    private void trySend(String text) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(text.getBytes("US-ASCII"));
+            out.flush();
+        } catch (IOException e) {
+            // the server gave up on the request
+        }
+    }
+
+    private String receiveHeader() throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (!header.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0)
+                throw new IOException("Connection closed before the response header ended.");
+            header.write(b);
+        }
+        return header.toString("US-ASCII");
+    }
+
+    private void trickledHeaderGets408(ServerSocketFactory socketFactory) throws Exception {
+        start(socketFactory);
+        server.setReadDeadline(ReadDeadline.HEADER, 300);
+
+        trySend("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(100);
+            trySend("X-Slow-" + i + ": 1\r\n");
+        }
+
+        String header = receiveHeader();
+        assertTrue(header, header.startsWith("HTTP/1.1 408 Request Timeout"));
+        assertTrue(header, header.toLowerCase().contains("connection: close"));
+        assertEquals(1, server.getReadDeadlineExpirations(ReadDeadline.HEADER));
+        // the connection is closed after the body
+        InputStream in = socket.getInputStream();
+        while (in.read() >= 0) {
+        }
+    }
+
+    @Test
+    public void trickledHeaderGets408WithChannel() throws Exception {
+        trickledHeaderGets408(new ChannelServerSocketFactory(0));
+    }
+
+    @Test
+    public void trickledHeaderGets408WithoutChannel() throws Exception {
+        trickledHeaderGets408(new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT));
+    }
+
+    @Test
+    public void slowBodyGets408() throws Exception {
+        start(new ChannelServerSocketFactory(0));
+        server.setReadDeadline(ReadDeadline.BODY, 300);
+
+        // the handler turns the failed read into a response of its own, which is not sent
+        trySend("POST / HTTP/1.1\r\nContent-Type: text/plain\r\nContent-Length: 10\r\n\r\n12");
+        String header = receiveHeader();
+        assertTrue(header, header.startsWith("HTTP/1.1 408 Request Timeout"));
+        assertEquals(1, server.getReadDeadlineExpirations(ReadDeadline.BODY));
+        assertEquals(0, server.getReadDeadlineExpirations(ReadDeadline.HEADER));
+    }
+
+    @Test
+    public void requestDeadlineCoversHeaderAndBody() throws Exception {
+        start(new DefaultServerSocketFactory(null, 0, NanoHTTPD.SOCKET_READ_TIMEOUT));
+        server.setReadDeadline(ReadDeadline.REQUEST, 400);
+
+        trySend("POST / HTTP/1.1\r\nContent-Type: text/plain\r\n");
+        Thread.sleep(200);
+        trySend("Content-Length: 10\r\n\r\n12");
+        String header = receiveHeader();
+        assertTrue(header, header.startsWith("HTTP/1.1 408 Request Timeout"));
+        assertEquals(1, server.getReadDeadlineExpirations(ReadDeadline.REQUEST));
+    }
+
+    @Test
+    public void requestsWithinTheDeadlinesAreServed() throws Exception {
+        start(new ChannelServerSocketFactory(0));
+        for (ReadDeadline deadline : ReadDeadline.values())
+            server.setReadDeadline(deadline, 300);
+
+        for (int i = 0; i < 3; i++) {
+            trySend("POST /" + i + " HTTP/1.1\r\nContent-Type: text/plain\r\nContent-Length: 2\r\n\r\nok");
+            String header = receiveHeader();
+            assertTrue(header, header.startsWith("HTTP/1.1 200 OK"));
+            int length = Integer.parseInt(header.replaceAll("(?s).*Content-Length: (\\d+).*", "$1"));
+            for (int j = 0; j < length; j++)
+                socket.getInputStream().read();
+            // idle time between requests does not count against the deadlines
+            Thread.sleep(400);
+        }
+        for (ReadDeadline deadline : ReadDeadline.values())
+            assertEquals(0, server.getReadDeadlineExpirations(deadline));
+    }
+}
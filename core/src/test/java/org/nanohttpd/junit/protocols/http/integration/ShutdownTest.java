@@ -35,6 +35,7 @@ import org.nanohttpd.protocols.http.HTTPSession;
 import org.nanohttpd.protocols.http.NanoHTTPD;
 import org.nanohttpd.protocols.http.response.Response;
 import org.nanohttpd.protocols.http.server.ServerStartException;
+import org.nanohttpd.util.concurrent.TimingWheel;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -42,6 +43,9 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.concurrent.TimeoutException;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ShutdownTest {
@@ -72,6 +76,31 @@ public class ShutdownTest {
         }
     }
 
+    @Test
+    public void timingWheelRunsOnlyWhileTheServerRuns() throws Exception {
+        TestServer server = new TestServer();
+        assertTrue(server.getTimingWheel().isClosed());
+
+        server.start();
+        TimingWheel wheel = server.getTimingWheel();
+        assertFalse(wheel.isClosed());
+        server.stop();
+        assertTrue(wheel.isClosed());
+
+        // a worker finishing a request after the stop gets no wheel started for it, its timeouts never run
+        assertSame(wheel, server.getTimingWheel());
+        assertTrue(server.getTimingWheel().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        }, 10).isCancelled());
+
+        server.start();
+        assertFalse(server.getTimingWheel().isClosed());
+        server.stop();
+    }
+
     private void makeRequest() throws IOException {
         HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:8092/").openConnection();
         // Keep-alive seems to be on by default, but just in case that changes.
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Talks HTTP/1.1 over plain sockets, for the tests that need to control the connection: when requests are sent, how
+ * the response is read and whether the connection stays open. Closing it closes every socket it opened.
+ */
+public class SocketClient implements Closeable {
+
+    private final int soTimeout;
+
+    private final List<Socket> sockets = new ArrayList<>();
+
+    /**
+     * @param soTimeout milliseconds a read from the server may block.
+     */
+    public SocketClient(int soTimeout) {
+        this.soTimeout = soTimeout;
+    }
+
+    public Socket connect(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(soTimeout);
+        sockets.add(socket);
+        return socket;
+    }
+
+    /**
+     * Connect with a small receive buffer, which keeps the client from taking much of a response before it reads it.
+     */
+    public Socket connect(int port, int receiveBufferSize) throws IOException {
+        Socket socket = new Socket();
+        sockets.add(socket);
+        socket.setReceiveBufferSize(receiveBufferSize);
+        socket.connect(new InetSocketAddress("localhost", port));
+        socket.setSoTimeout(soTimeout);
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Socket socket : sockets)
+            socket.close();
+    }
+
+    public static void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * @return the head of the next response, up to and including the empty line.
+     */
+    public static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0)
+                throw new IOException("Connection closed before the response header ended.");
+            head.write(b);
+        }
+        return head.toString("US-ASCII");
+    }
+
+    /**
+     * @return the next response, its head followed by as much body as its {@code Content-Length} gives.
+     */
+    public static String readResponse(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        String head = readHead(in);
+        int contentLength = 0;
+        for (String line : head.split("\r\n"))
+            if (line.toLowerCase().startsWith("content-length:"))
+                contentLength = Integer.parseInt(line.substring(15).trim());
+
+        byte[] body = new byte[contentLength];
+        for (int read = 0; read < contentLength; ) {
+            int count = in.read(body, read, contentLength - read);
+            if (count < 0)
+                throw new IOException("Connection closed before the response body ended.");
+            read += count;
+        }
+        return head + new String(body, "US-ASCII");
+    }
+
+    /**
+     * Send a request and read its response, see {@link #readResponse(Socket)}.
+     */
+    public static String request(Socket socket, String request) throws IOException {
+        send(socket, request);
+        return readResponse(socket);
+    }
+}
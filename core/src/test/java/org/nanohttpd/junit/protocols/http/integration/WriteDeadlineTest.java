@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.protocols.http.integration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.protocols.http.HTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.BodyOutputStream;
+import org.nanohttpd.protocols.http.response.DefaultStatusCode;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.StreamingBody;
+import org.nanohttpd.protocols.http.sockets.ChannelServerSocketFactory;
+import org.nanohttpd.util.Handler;
+import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.readHead;
+import static org.nanohttpd.junit.protocols.http.integration.SocketClient.send;
+
+public class WriteDeadlineTest {
+
+    private static class TestServer extends NanoHTTPD {
+
+        private final Map<String, Long> stalls = new ConcurrentHashMap<>();
+
+        public TestServer() {
+            super(new ChannelServerSocketFactory(0));
+            // a single worker, a slow client holding it would make the others wait
+            setClientRequestExecutorServiceFactory(new DefaultExecutorServiceFactory(1, 1, 10, 5));
+            setHTTPHandler(new Handler<HTTPSession, Response>() {
+
+                @Override
+                public Response handle(HTTPSession session) {
+                    if (!session.getUri().equals("/large"))
+                        return Response.newFixedLengthResponse(session.getUri());
+
+                    return Response.newStreamingResponse(DefaultStatusCode.OK, "application/octet-stream",
+                            new StreamingBody() {
+
+                                @Override
+                                public void writeTo(BodyOutputStream out) throws IOException {
+                                    byte[] block = new byte[65536];
+                                    for (int i = 0; i < 4096; i++)
+                                        out.write(block);
+                                }
+                            });
+                }
+            });
+        }
+
+        @Override
+        protected void onWriteStall(HTTPSession session, long millis) {
+            stalls.put(session.getUri(), millis);
+        }
+    }
+
+    private TestServer server;
+
+    private final SocketClient client = new SocketClient(5000);
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    private Socket request(String uri) throws IOException {
+        Socket socket = client.connect(server.getListeningPort(), 4096);
+        send(socket, "GET " + uri + " HTTP/1.1\r\n\r\n");
+        return socket;
+    }
+
+    /**
+     * @return whether the connection was closed before the body ended.
+     */
+    private static boolean readSlowly(Socket socket, long pauseMillis) throws Exception {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[16384];
+        long end = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < end) {
+            try {
+                if (in.read(buffer) < 0)
+                    return true;
+            } catch (IOException e) {
+                return true;
+            }
+            Thread.sleep(pauseMillis);
+        }
+        return false;
+    }
+
+    private void assertWorkerIsFree() throws IOException {
+        Socket other = request("/other");
+        assertTrue(readHead(other.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+    }
+
+    @Test
+    public void clientNotReadingIsClosedAtTheWriteDeadline() throws Exception {
+        server.setWriteDeadline(300);
+        Socket socket = request("/large");
+        assertTrue(readHead(socket.getInputStream()).startsWith("HTTP/1.1 200 OK"));
+
+        // the client stops reading, the worker is freed once a write is blocked for the deadline
+        Thread.sleep(1000);
+        assertWorkerIsFree();
+        assertTrue("not closed", readSlowly(socket, 0));
+        assertEquals(1, server.getWriteDeadlineExpirations());
+        assertEquals(0, server.getMinWriteRateViolations());
+        assertTrue("stall " + server.getWriteStallTime(), server.getWriteStallTime() >= 300);
+        assertTrue("stalls " + server.stalls, server.stalls.get("/large") >= 300);
+    }
+
+    @Test
+    public void clientBelowTheMinimumRateIsClosed() throws Exception {
+        server.setWriteDeadline(0);
+        // the client takes about 1.6 MB per second
+        server.setMinWriteRate(64 * 1024 * 1024, 300);
+        Socket socket = request("/large");
+
+        assertTrue("not closed", readSlowly(socket, 10));
+        assertWorkerIsFree();
+        assertEquals(1, server.getMinWriteRateViolations());
+        assertEquals(0, server.getWriteDeadlineExpirations());
+        assertTrue("stalls " + server.stalls, server.stalls.get("/large") >= 300);
+    }
+
+    @Test
+    public void fastClientIsNotLimited() throws Exception {
+        server.setWriteDeadline(300);
+        server.setMinWriteRate(1024, 300);
+        Socket socket = request("/small");
+        InputStream in = socket.getInputStream();
+        String header = readHead(in);
+        assertTrue(header, header.startsWith("HTTP/1.1 200 OK"));
+        Thread.sleep(500);
+
+        // the idle keep-alive connection is not held against the client
+        socket.getOutputStream().write("GET /next HTTP/1.1\r\n\r\n".getBytes("US-ASCII"));
+        for (int i = 0; i < "/small".length(); i++)
+            in.read();
+        assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+        assertEquals(0, server.getWriteDeadlineExpirations());
+        assertEquals(0, server.getMinWriteRateViolations());
+    }
+}
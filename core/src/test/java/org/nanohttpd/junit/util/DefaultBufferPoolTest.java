@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.util;
+
+import org.junit.Test;
+import org.nanohttpd.util.buffer.DefaultBufferPool;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultBufferPoolTest {
+
+    @Test
+    public void buffersAreRoundedUpToTheirSizeClass() {
+        DefaultBufferPool pool = new DefaultBufferPool(512, 4096, 4, 2, false);
+
+        assertEquals(512, pool.acquire(1).length);
+        assertEquals(512, pool.acquire(512).length);
+        assertEquals(1024, pool.acquire(513).length);
+        assertEquals(4096, pool.acquire(4096).length);
+        assertEquals(4, pool.getOutstandingCount());
+
+        // larger than the largest class, not pooled
+        assertEquals(5000, pool.acquire(5000).length);
+        assertEquals(4, pool.getOutstandingCount());
+        assertEquals(5, pool.getMissCount());
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        DefaultBufferPool pool = new DefaultBufferPool(512, 4096, 4, 2, false);
+        byte[] buffer = pool.acquire(1000);
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire(1024));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void buffersReleasedByAnotherThreadAreShared() throws InterruptedException {
+        final DefaultBufferPool pool = new DefaultBufferPool(512, 4096, 4, 0, false);
+        final byte[][] buffer = new byte[1][];
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                buffer[0] = pool.acquire(512);
+                pool.release(buffer[0]);
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertSame(buffer[0], pool.acquire(512));
+    }
+
+    @Test
+    public void foreignBuffersAreIgnored() {
+        DefaultBufferPool pool = new DefaultBufferPool(512, 4096, 4, 2, false);
+        pool.release(new byte[600]);
+        pool.release((byte[]) null);
+
+        assertEquals(0, pool.getOutstandingCount());
+        assertEquals(1024, pool.acquire(600).length);
+    }
+
+    @Test
+    public void directBuffersArePooled() {
+        DefaultBufferPool pool = new DefaultBufferPool(512, 4096, 4, 2, true);
+        ByteBuffer buffer = pool.acquireByteBuffer(700);
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquireByteBuffer(1024);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void heapByteBuffersShareTheArrays() {
+        DefaultBufferPool pool = new DefaultBufferPool(512, 4096, 4, 2, false);
+        ByteBuffer buffer = pool.acquireByteBuffer(512);
+        byte[] array = buffer.array();
+        pool.release(buffer);
+
+        assertSame(array, pool.acquire(512));
+        assertNotSame(array, pool.acquire(512));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.util;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nanohttpd.util.concurrent.DefaultExecutorServiceFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DefaultExecutorServiceFactoryTest {
+
+    private final ThreadPoolExecutor executor =
+            (ThreadPoolExecutor) new DefaultExecutorServiceFactory(1, 4, 2, 60).create();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        release.countDown();
+        executor.shutdownNow();
+        executor.awaitTermination(2, TimeUnit.SECONDS);
+    }
+
+    private void submitBlocked(final CountDownLatch started) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private void awaitIdle(long completed) throws InterruptedException {
+        long end = System.currentTimeMillis() + 2000;
+        while (executor.getCompletedTaskCount() < completed && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        // the workers get back to waiting on the queue
+        Thread.sleep(50);
+    }
+
+    @Test
+    public void poolGrowsBeforeTasksAreQueued() throws Exception {
+        CountDownLatch started = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++)
+            submitBlocked(started);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        assertEquals(4, executor.getPoolSize());
+        assertEquals(0, executor.getQueue().size());
+
+        submitBlocked(new CountDownLatch(1));
+        submitBlocked(new CountDownLatch(1));
+        assertEquals(2, executor.getQueue().size());
+        try {
+            submitBlocked(new CountDownLatch(1));
+            fail("the pool and its queue are full");
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    @Test
+    public void idleWorkersTakeTasksBeforeThePoolGrows() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        submitBlocked(started);
+        submitBlocked(started);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        assertEquals(2, executor.getPoolSize());
+        release.countDown();
+        awaitIdle(2);
+
+        // one task at a time, there is always an idle worker to take it
+        for (int i = 0; i < 20; i++) {
+            final CountDownLatch ran = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(2, TimeUnit.SECONDS));
+            awaitIdle(3 + i);
+            assertEquals(2, executor.getPoolSize());
+        }
+    }
+}
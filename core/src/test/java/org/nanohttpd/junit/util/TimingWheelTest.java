@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2020 uduhttpd
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.nanohttpd.junit.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nanohttpd.util.concurrent.TimingWheel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        // a turn takes 80 ms, longer timeouts wait for the turns to pass
+        wheel = new TimingWheel(10, 5);
+        Thread thread = new Thread(wheel);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() {
+        wheel.close();
+    }
+
+    @Test
+    public void timeoutRunsAfterItsDelay() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 200);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 190);
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        TimingWheel.Timeout cancelled = wheel.schedule(task, 50);
+        wheel.schedule(task, 100);
+        cancelled.cancel();
+        assertTrue(cancelled.isCancelled());
+
+        Thread.sleep(300);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void closedWheelTakesNoTimeouts() throws Exception {
+        wheel.close();
+        assertTrue(wheel.isClosed());
+        final CountDownLatch ran = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 10);
+
+        assertTrue(timeout.isCancelled());
+        assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+    }
+}
@@ -535,7 +535,7 @@ public class SimpleWebServer extends NanoHTTPD {
                     res = newFixedLengthResponse(DefaultStatusCode.NOT_MODIFIED, mime, "");
                     res.addHeader("ETag", etag);
                 } else {
-                    if (endAt < 0) {
+                    if (endAt < 0 || endAt >= fileLen) {
                         endAt = fileLen - 1;
                     }
                     long newLen = endAt - startFrom + 1;
@@ -543,10 +543,7 @@ public class SimpleWebServer extends NanoHTTPD {
                         newLen = 0;
                     }
 
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
-
-                    res = Response.newFixedLengthResponse(DefaultStatusCode.PARTIAL_CONTENT, mime, fis, newLen);
+                    res = Response.newFileResponse(DefaultStatusCode.PARTIAL_CONTENT, mime, file, startFrom, newLen);
                     res.addHeader("Accept-Ranges", "bytes");
                     res.addHeader("Content-Length", "" + newLen);
                     res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
@@ -587,9 +584,9 @@ public class SimpleWebServer extends NanoHTTPD {
         }
     }
 
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
+    private Response newFixedFileResponse(File file, String mime) throws IOException {
         Response res;
-        res = Response.newFixedLengthResponse(DefaultStatusCode.OK, mime, new FileInputStream(file), (int) file.length());
+        res = Response.newFileResponse(DefaultStatusCode.OK, mime, file);
         res.addHeader("Accept-Ranges", "bytes");
         return res;
     }
@@ -30,6 +30,9 @@
 
 package org.nanohttpd.protocols.websockets;
 
+import org.nanohttpd.util.buffer.BufferPool;
+import org.nanohttpd.util.buffer.BufferPools;
+
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,6 +47,8 @@ public class WebSocketFrame {
 
     public static final Charset TEXT_CHARSET = StandardCharsets.UTF_8;
 
+    private static final int WRITE_BUFFER_SIZE = 4 * 1024;
+
     public static String binary2Text(byte[] payload) throws CharacterCodingException {
         return new String(payload, WebSocketFrame.TEXT_CHARSET);
     }
@@ -322,41 +327,57 @@ public class WebSocketFrame {
     // ------------------------------------------------------------------------
 
     public void write(OutputStream out) throws IOException {
-        byte header = 0;
-        if (this.fin) {
-            header |= 0x80;
-        }
-        header |= this.opCode.getValue() & 0x0F;
-        out.write(header);
-
-        this._payloadLength = getBinaryPayload().length;
-        if (this._payloadLength <= 125) {
-            out.write(isMasked() ? 0x80 | (byte) this._payloadLength : (byte) this._payloadLength);
-        } else if (this._payloadLength <= 0xFFFF) {
-            out.write(isMasked() ? 0xFE : 126);
-            out.write(this._payloadLength >>> 8);
-            out.write(this._payloadLength);
-        } else {
-            out.write(isMasked() ? 0xFF : 127);
-            out.write(this._payloadLength >>> 56 & 0); // integer only
-            // contains
-            // 31 bit
-            out.write(this._payloadLength >>> 48 & 0);
-            out.write(this._payloadLength >>> 40 & 0);
-            out.write(this._payloadLength >>> 32 & 0);
-            out.write(this._payloadLength >>> 24);
-            out.write(this._payloadLength >>> 16);
-            out.write(this._payloadLength >>> 8);
-            out.write(this._payloadLength);
-        }
+        byte[] payload = getBinaryPayload();
+        this._payloadLength = payload.length;
 
-        if (isMasked()) {
-            out.write(this.maskingKey);
-            for (int i = 0; i < this._payloadLength; i++) {
-                out.write(getBinaryPayload()[i] ^ this.maskingKey[i % 4]);
+        // the header, the masking key and the masked payload go out through one pooled buffer
+        BufferPool bufferPool = BufferPools.getDefault();
+        byte[] buffer = bufferPool.acquire(WRITE_BUFFER_SIZE);
+        try {
+            int position = 0;
+            byte header = 0;
+            if (this.fin) {
+                header |= 0x80;
             }
-        } else {
-            out.write(getBinaryPayload());
+            header |= this.opCode.getValue() & 0x0F;
+            buffer[position++] = header;
+
+            if (this._payloadLength <= 125) {
+                buffer[position++] = (byte) (isMasked() ? 0x80 | this._payloadLength : this._payloadLength);
+            } else if (this._payloadLength <= 0xFFFF) {
+                buffer[position++] = (byte) (isMasked() ? 0xFE : 126);
+                buffer[position++] = (byte) (this._payloadLength >>> 8);
+                buffer[position++] = (byte) this._payloadLength;
+            } else {
+                buffer[position++] = (byte) (isMasked() ? 0xFF : 127);
+                // the length is an int, its upper four bytes are zero
+                buffer[position++] = 0;
+                buffer[position++] = 0;
+                buffer[position++] = 0;
+                buffer[position++] = 0;
+                buffer[position++] = (byte) (this._payloadLength >>> 24);
+                buffer[position++] = (byte) (this._payloadLength >>> 16);
+                buffer[position++] = (byte) (this._payloadLength >>> 8);
+                buffer[position++] = (byte) this._payloadLength;
+            }
+
+            if (isMasked()) {
+                System.arraycopy(this.maskingKey, 0, buffer, position, 4);
+                position += 4;
+                for (int i = 0; i < this._payloadLength; i++) {
+                    if (position == buffer.length) {
+                        out.write(buffer, 0, position);
+                        position = 0;
+                    }
+                    buffer[position++] = (byte) (payload[i] ^ this.maskingKey[i % 4]);
+                }
+                out.write(buffer, 0, position);
+            } else {
+                out.write(buffer, 0, position);
+                out.write(payload);
+            }
+        } finally {
+            bufferPool.release(buffer);
         }
         out.flush();
     }